@@ -0,0 +1,371 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides whether a request may run now, has to wait, or is turned away with RESOURCE_EXHAUSTED.
+ * <p>
+ * Every request reserves its estimated working memory from a shared budget, and a request that could never fit is
+ * rejected without waiting. Bulk requests, those whose cost is over the small request threshold, also need one of a
+ * fixed number of CPU slots. Small requests skip the CPU slots, so they keep their latency while bulk jobs queue
+ * behind each other. A request that can't be admitted within the queue timeout (or the call deadline, whichever comes
+ * first) is rejected.
+ * <p>
+ * Requests are admitted on the worker pool, so the waits go through {@link ForkJoinPool#managedBlock}. The pool makes
+ * up for a waiting worker with a spare thread, and the admitted requests can still run their subtasks on it.
+ */
+class AdmissionController {
+    private static final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+
+    // decoded geometries, intermediate cursors and the encoded result all take a multiple of the wire size
+    static final int MEMORY_EXPANSION = 4;
+    // per geometry overhead of the decoded java objects, independent of vertex count
+    static final int GEOMETRY_OVERHEAD_BYTES = 256;
+
+    static final long DEFAULT_SMALL_REQUEST_COST = 256 * 1024;
+    static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 2000;
+
+    private final Semaphore cpuSlots;
+    private final int cpuSlotCount;
+    private final long memoryBudget;
+    private final long smallRequestCost;
+    private final long queueTimeoutNanos;
+
+    // guarded by this
+    private long memoryAvailable;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * The estimated cost of a request, including the requests nested inside it.
+     */
+    static class Cost {
+        final long bytes;
+        final long geometries;
+        final int depth;
+        final long cpu;
+        final long memory;
+
+        Cost(long bytes, long geometries, int depth, long cpu) {
+            this.bytes = bytes;
+            this.geometries = geometries;
+            this.depth = depth;
+            this.cpu = cpu;
+            this.memory = bytes * MEMORY_EXPANSION + geometries * GEOMETRY_OVERHEAD_BYTES;
+        }
+    }
+
+    /**
+     * Holds the resources of an admitted request until it is closed.
+     */
+    class Permit implements AutoCloseable {
+        private final long memory;
+        private final boolean cpuSlot;
+        private boolean closed = false;
+
+        private Permit(long memory, boolean cpuSlot) {
+            this.memory = memory;
+            this.cpuSlot = cpuSlot;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (cpuSlot) {
+                cpuSlots.release();
+            }
+            __releaseMemory(memory);
+        }
+    }
+
+    AdmissionController(int cpuSlotCount, long memoryBudget, long smallRequestCost, long queueTimeoutMillis) {
+        if (cpuSlotCount < 1 || memoryBudget < 1) {
+            throw new IllegalArgumentException("cpu slots and memory budget must be positive");
+        }
+        this.cpuSlotCount = cpuSlotCount;
+        this.cpuSlots = new Semaphore(cpuSlotCount, true);
+        this.memoryBudget = memoryBudget;
+        this.memoryAvailable = memoryBudget;
+        this.smallRequestCost = smallRequestCost;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+
+    /**
+     * Budgets sized for a pool of cpuSlotCount workers: half of the max heap for memory and the default thresholds.
+     */
+    AdmissionController(int cpuSlotCount) {
+        this(cpuSlotCount, Runtime.getRuntime().maxMemory() / 2, DEFAULT_SMALL_REQUEST_COST, DEFAULT_QUEUE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Budgets from the environment. GEOMETRY_CPU_SLOTS is the number of bulk requests that may run at once (defaults
+     * to workerThreads), GEOMETRY_MEMORY_BUDGET_MB the memory shared by all running requests (defaults to half of the
+     * max heap), GEOMETRY_SMALL_REQUEST_BYTES the cost under which a request skips the CPU slots and
+     * GEOMETRY_ADMISSION_TIMEOUT_MS how long a request may wait to be admitted.
+     */
+    static AdmissionController fromEnvironment(int workerThreads) {
+        long defaultBudgetMb = Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024);
+        return new AdmissionController(
+                (int) __parsePositive(System.getenv("GEOMETRY_CPU_SLOTS"), workerThreads),
+                __parsePositive(System.getenv("GEOMETRY_MEMORY_BUDGET_MB"), defaultBudgetMb) * 1024 * 1024,
+                __parsePositive(System.getenv("GEOMETRY_SMALL_REQUEST_BYTES"), DEFAULT_SMALL_REQUEST_COST),
+                __parsePositive(System.getenv("GEOMETRY_ADMISSION_TIMEOUT_MS"), DEFAULT_QUEUE_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Wait for the resources operatorRequest needs.
+     *
+     * @return a permit that must be closed when the request is done
+     * @throws io.grpc.StatusRuntimeException RESOURCE_EXHAUSTED if the request can't be admitted
+     */
+    Permit admit(OperatorRequest operatorRequest) {
+        Cost cost = estimate(operatorRequest);
+        if (cost.memory > memoryBudget) {
+            throw __reject("request needs an estimated " + cost.memory + " bytes, the server budget is " + memoryBudget);
+        }
+
+        long deadlineNanos = System.nanoTime() + __waitNanos();
+        boolean cpuSlot = cost.cpu >= smallRequestCost;
+        try {
+            if (cpuSlot && !__await(timeoutNanos -> cpuSlots.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS), deadlineNanos)) {
+                throw __reject("all " + cpuSlotCount + " slots for bulk requests are busy");
+            }
+            try {
+                if (!__await(timeoutNanos -> __acquireMemory(cost.memory, timeoutNanos), deadlineNanos)) {
+                    throw __reject("memory budget of " + memoryBudget + " bytes is in use");
+                }
+            } catch (Throwable t) {
+                if (cpuSlot) {
+                    cpuSlots.release();
+                }
+                throw t;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("interrupted waiting for admission").asRuntimeException();
+        }
+
+        return new Permit(cost.memory, cpuSlot);
+    }
+
+    /**
+     * Wait for the resources registering geometryBag needs. Registration decodes, accelerates and indexes the bag,
+     * which costs about as much as a relational operator over it. The registry's own quota covers the bag once it
+     * is registered.
+     *
+     * @return a permit that must be closed when the bag is registered
+     * @throws io.grpc.StatusRuntimeException RESOURCE_EXHAUSTED if the registration can't be admitted
+     */
+    Permit admit(GeometryBagData geometryBag) {
+        return admit(OperatorRequest.newBuilder()
+                .setGeometryBag(geometryBag)
+                .setOperatorType(ServiceOperatorType.Contains)
+                .build());
+    }
+
+    /**
+     * Cost of a request from its serialized size, the number of geometries, how deeply requests are nested and how
+     * expensive the operators are. Only the request message is inspected, no geometry is decoded.
+     */
+    static Cost estimate(OperatorRequest operatorRequest) {
+        long[] totals = new long[2];
+        int depth = __accumulate(operatorRequest, totals, 1);
+        return new Cost(operatorRequest.getSerializedSize(), totals[0], depth, totals[1]);
+    }
+
+    long rejectedCount() {
+        return rejected.get();
+    }
+
+    synchronized long memoryInUse() {
+        return memoryBudget - memoryAvailable;
+    }
+
+    int cpuSlotsInUse() {
+        return cpuSlotCount - cpuSlots.availablePermits();
+    }
+
+    // totals[0] counts geometries, totals[1] accumulates cpu cost. returns the depth of the deepest nested request
+    private static int __accumulate(OperatorRequest operatorRequest, long[] totals, int depth) {
+        long geometries = (long) GeometryOperatorsUtil.__geometryCount(operatorRequest.getGeometryBag()) +
+                GeometryOperatorsUtil.__geometryCount(operatorRequest.getLeftGeometryBag()) +
+                GeometryOperatorsUtil.__geometryCount(operatorRequest.getRightGeometryBag());
+        long bytes = operatorRequest.getGeometryBag().getSerializedSize() +
+                operatorRequest.getLeftGeometryBag().getSerializedSize() +
+                operatorRequest.getRightGeometryBag().getSerializedSize();
+        long geometriesBefore = totals[0];
+        totals[0] += geometries;
+
+        int maxDepth = depth;
+        if (operatorRequest.hasGeometryRequest()) {
+            maxDepth = Math.max(maxDepth, __accumulate(operatorRequest.getGeometryRequest(), totals, depth + 1));
+        }
+        if (operatorRequest.hasLeftGeometryRequest()) {
+            maxDepth = Math.max(maxDepth, __accumulate(operatorRequest.getLeftGeometryRequest(), totals, depth + 1));
+        }
+        if (operatorRequest.hasRightGeometryRequest()) {
+            maxDepth = Math.max(maxDepth, __accumulate(operatorRequest.getRightGeometryRequest(), totals, depth + 1));
+        }
+
+        // an operator works over the results of the requests nested in it as well as its own bags, approximated by
+        // its own input size plus the geometry overhead of everything below it
+        long allGeometries = totals[0] - geometriesBefore;
+        totals[1] += __operatorWeight(operatorRequest.getOperatorType()) *
+                (bytes + allGeometries * GEOMETRY_OVERHEAD_BYTES);
+        return maxDepth;
+    }
+
+    /**
+     * Relative cost per input byte. Encoding conversions are cheapest, topology operators that build a planar graph
+     * of their inputs are the most expensive.
+     */
+    private static int __operatorWeight(ServiceOperatorType serviceOperatorType) {
+        switch (serviceOperatorType) {
+            case Union:
+            case Intersection:
+            case Difference:
+            case SymmetricDifference:
+            case Buffer:
+            case GeodesicBuffer:
+            case Offset:
+            case Cut:
+            case ConvexHull:
+            case SimplifyOGC:
+            case Relate:
+                return 8;
+            case Equals:
+            case Disjoint:
+            case Intersects:
+            case Within:
+            case Contains:
+            case Crosses:
+            case Touches:
+            case Overlaps:
+            case Simplify:
+            case Clip:
+            case Distance:
+            case Proximity2D:
+            case EnclosingCircle:
+                return 4;
+            case Project:
+            case GeodeticDensifyByLength:
+            case GeodeticLength:
+            case GeodeticArea:
+            case DensifyByLength:
+            case Generalize:
+            case GeneralizeByArea:
+            case RandomPoints:
+            case Boundary:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private long __waitNanos() {
+        long waitNanos = queueTimeoutNanos;
+        Deadline deadline = Context.current().getDeadline();
+        if (deadline != null) {
+            waitNanos = Math.min(waitNanos, deadline.timeRemaining(TimeUnit.NANOSECONDS));
+        }
+        return waitNanos;
+    }
+
+    private interface Acquire {
+        boolean tryAcquire(long timeoutNanos) throws InterruptedException;
+    }
+
+    /**
+     * Acquire without waiting if possible, otherwise wait until deadlineNanos as a managed blocker.
+     */
+    private static boolean __await(Acquire acquire, long deadlineNanos) throws InterruptedException {
+        if (acquire.tryAcquire(0)) {
+            return true;
+        }
+        boolean[] acquired = new boolean[1];
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                acquired[0] = acquire.tryAcquire(Math.max(0, deadlineNanos - System.nanoTime()));
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return acquired[0];
+            }
+        });
+        return acquired[0];
+    }
+
+    private synchronized boolean __acquireMemory(long memory, long timeoutNanos) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + timeoutNanos;
+        while (memoryAvailable < memory) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        memoryAvailable -= memory;
+        return true;
+    }
+
+    private synchronized void __releaseMemory(long memory) {
+        memoryAvailable += memory;
+        notifyAll();
+    }
+
+    private RuntimeException __reject(String reason) {
+        rejected.incrementAndGet();
+        logger.log(Level.WARNING, "request rejected : ".concat(reason));
+        return Status.RESOURCE_EXHAUSTED.withDescription(reason).asRuntimeException();
+    }
+
+    private static long __parsePositive(String value, long defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "ignoring admission setting : ".concat(value));
+        }
+        return defaultValue;
+    }
+}
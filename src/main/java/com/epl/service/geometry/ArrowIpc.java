@@ -0,0 +1,1278 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads and writes a bag's geometries as an Apache Arrow IPC stream with a GeoArrow geometry column and an optional
+ * int64 geometry_id column.
+ * <p>
+ * The geometry column is the first one with a geoarrow extension name, or else the one named geometry. Points,
+ * linestrings, polygons and their multi variants are read in both the interleaved and the separated coordinate
+ * layouts, and geoarrow.wkb binary columns through the wkb importer. Other columns are skipped. Geometries are read
+ * straight out of the stream's buffers, without copying them, and null rows are read as empty geometries. Dictionary
+ * encoded or compressed geometry columns are not supported.
+ * <p>
+ * Results are written as a single record batch, points as geoarrow.point and every other type as its geoarrow.multi
+ * variant, with interleaved coordinates, into a single array the stream is handed off as.
+ * <p>
+ * Arrow's metadata is flatbuffers. The few tables needed are read and written with the small flatbuffer reader and
+ * writer at the end of this class, rather than with the Arrow library and the netty version it brings.
+ */
+class ArrowIpc {
+    static final String GEOMETRY_ID_COLUMN = "geometry_id";
+    static final String GEOMETRY_COLUMN = "geometry";
+
+    private static final String EXTENSION_NAME = "ARROW:extension:name";
+    private static final String EXTENSION_METADATA = "ARROW:extension:metadata";
+
+    // MetadataVersion.V5
+    private static final short METADATA_VERSION = 4;
+    private static final int CONTINUATION = 0xFFFFFFFF;
+
+    // MessageHeader
+    private static final int SCHEMA = 1;
+    private static final int RECORD_BATCH = 3;
+
+    // Type
+    private static final int TYPE_NULL = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_FLOATING_POINT = 3;
+    private static final int TYPE_BINARY = 4;
+    private static final int TYPE_UTF8 = 5;
+    private static final int TYPE_BOOL = 6;
+    private static final int TYPE_LIST = 12;
+    private static final int TYPE_STRUCT = 13;
+    private static final int TYPE_UNION = 14;
+    private static final int TYPE_FIXED_SIZE_LIST = 16;
+    private static final int TYPE_MAP = 17;
+    private static final int TYPE_LARGE_BINARY = 19;
+    private static final int TYPE_LARGE_UTF8 = 20;
+    private static final int TYPE_LARGE_LIST = 21;
+    private static final int TYPE_RUN_END_ENCODED = 22;
+    private static final int TYPE_BINARY_VIEW = 23;
+
+    private enum Kind {
+        POINT, LINESTRING, POLYGON, MULTIPOINT, MULTILINESTRING, MULTIPOLYGON, WKB
+    }
+
+    private ArrowIpc() {
+    }
+
+    /**
+     * The geometries of an Arrow IPC stream, read as the cursor is read.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the stream has no geometry column it can read
+     */
+    static GeometryCursor importCursor(ByteString arrow) {
+        Stream stream = new Stream(arrow);
+        int geometryColumn = stream.geometryColumn();
+        Kind kind = __kind(stream.fields.get(geometryColumn));
+        return new GeometryCursor() {
+            private int batch = 0;
+            private int row = -1;
+            private int geometryId = -1;
+            private GeometryColumn column = stream.batches.isEmpty() ? null : new GeometryColumn(kind, stream.batches.get(0).get(geometryColumn));
+
+            @Override
+            public Geometry next() {
+                while (column != null && row + 1 >= column.length) {
+                    batch++;
+                    row = -1;
+                    column = batch < stream.batches.size() ? new GeometryColumn(kind, stream.batches.get(batch).get(geometryColumn)) : null;
+                }
+                if (column == null) {
+                    return null;
+                }
+                row++;
+                geometryId++;
+                try {
+                    return column.geometry(row);
+                } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("malformed arrow geometry " + geometryId + " : " + e.toString())
+                            .asRuntimeException();
+                }
+            }
+
+            @Override
+            public int getGeometryID() {
+                return geometryId;
+            }
+
+            public boolean hasNext() {
+                if (column != null && row + 1 < column.length) {
+                    return true;
+                }
+                for (int i = batch + 1; i < stream.batches.size(); i++) {
+                    if (stream.batches.get(i).get(geometryColumn).length > 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The rows of every record batch of the stream.
+     */
+    static int geometryCount(ByteString arrow) {
+        if (arrow.isEmpty()) {
+            return 0;
+        }
+        long count = 0;
+        for (Message message : __messages(arrow.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN))) {
+            if (message.headerType == RECORD_BATCH) {
+                count += message.header.getLong(0, 0);
+            }
+        }
+        return (int) count;
+    }
+
+    /**
+     * The values of the stream's geometry_id column, empty if it has none.
+     */
+    static List<Long> geometryIds(ByteString arrow) {
+        Stream stream = new Stream(arrow);
+        int idColumn = -1;
+        for (int i = 0; i < stream.fields.size(); i++) {
+            Field field = stream.fields.get(i);
+            if (GEOMETRY_ID_COLUMN.equals(field.name) && field.typeType == TYPE_INT) {
+                idColumn = i;
+            }
+        }
+        if (idColumn < 0) {
+            return Collections.emptyList();
+        }
+
+        int bitWidth = stream.fields.get(idColumn).type.getInt(0, 0);
+        List<Long> geometryIds = new ArrayList<>();
+        for (List<Array> batch : stream.batches) {
+            Array ids = batch.get(idColumn);
+            for (int row = 0; row < ids.length; row++) {
+                // nulls keep their position
+                if (!ids.valid(row)) {
+                    geometryIds.add(0L);
+                } else if (bitWidth == 64) {
+                    geometryIds.add(ids.buffers[1].getLong(row * 8));
+                } else if (bitWidth == 32) {
+                    geometryIds.add((long) ids.buffers[1].getInt(row * 4));
+                } else {
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("arrow geometry_id column must be 32 or 64 bit integers")
+                            .asRuntimeException();
+                }
+            }
+        }
+        return geometryIds;
+    }
+
+    /**
+     * The geometries of geometryCursor as an Arrow IPC stream. Envelopes are written as polygons and lines as
+     * polylines, and every other geometry must be of the same type as the first. geometryIds are written as a
+     * geometry_id column if there is one for every geometry.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the geometries aren't all of one type
+     */
+    static ByteString encode(GeometryCursor geometryCursor, List<Long> geometryIds, ProgressTracker progressTracker) {
+        ColumnWriter columnWriter = new ColumnWriter();
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            ProgressTracker.checkAndThrow(progressTracker);
+            columnWriter.add(geometry);
+        }
+        boolean withIds = geometryIds.size() == columnWriter.rows && columnWriter.rows > 0;
+
+        // schema
+        List<FlatWriter.Table> fields = new ArrayList<>();
+        fields.add(columnWriter.field());
+        if (withIds) {
+            fields.add(__field(GEOMETRY_ID_COLUMN, TYPE_INT, new FlatWriter.Table().addInt(0, 64).addBool(1, true), Collections.emptyList(), null));
+        }
+        FlatWriter.Table schema = new FlatWriter.Table()
+                .addShort(0, (short) 0)
+                .addOffset(1, new FlatWriter.TableVector(fields));
+        byte[] schemaMessage = FlatWriter.finish(__message(SCHEMA, schema, 0));
+
+        // record batch, each buffer padded to 8 bytes
+        List<long[]> nodes = new ArrayList<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        columnWriter.buffers(nodes, buffers);
+        if (withIds) {
+            nodes.add(new long[]{columnWriter.rows, 0});
+            buffers.add(ByteBuffer.allocate(0));
+            ByteBuffer idValues = ByteBuffer.allocate(geometryIds.size() * 8).order(ByteOrder.LITTLE_ENDIAN);
+            for (long geometryId : geometryIds) {
+                idValues.putLong(geometryId);
+            }
+            idValues.flip();
+            buffers.add(idValues);
+        }
+        ByteBuffer nodeStructs = ByteBuffer.allocate(nodes.size() * 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] node : nodes) {
+            nodeStructs.putLong(node[0]).putLong(node[1]);
+        }
+        ByteBuffer bufferStructs = ByteBuffer.allocate(buffers.size() * 16).order(ByteOrder.LITTLE_ENDIAN);
+        long bodyLength = 0;
+        for (ByteBuffer buffer : buffers) {
+            bufferStructs.putLong(bodyLength).putLong(buffer.remaining());
+            bodyLength += __pad8(buffer.remaining());
+        }
+        FlatWriter.Table recordBatch = new FlatWriter.Table()
+                .addLong(0, columnWriter.rows)
+                .addOffset(1, new FlatWriter.StructVector(nodes.size(), nodeStructs.array()))
+                .addOffset(2, new FlatWriter.StructVector(buffers.size(), bufferStructs.array()));
+        byte[] batchMessage = FlatWriter.finish(__message(RECORD_BATCH, recordBatch, bodyLength));
+
+        // the whole stream in one array, handed to the result without another copy
+        long size = 8 + __pad8(schemaMessage.length) + 8 + __pad8(batchMessage.length) + bodyLength + 8;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw Status.RESOURCE_EXHAUSTED.withDescription("arrow result is larger than 2GB").asRuntimeException();
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        __putMessage(out, schemaMessage);
+        __putMessage(out, batchMessage);
+        for (ByteBuffer buffer : buffers) {
+            int start = out.position();
+            out.put(buffer);
+            out.position(start + (int) __pad8(out.position() - start));
+        }
+        out.putInt(CONTINUATION).putInt(0);
+        return UnsafeByteOperations.unsafeWrap(out.array());
+    }
+
+    private static FlatWriter.Table __message(int headerType, FlatWriter.Table header, long bodyLength) {
+        return new FlatWriter.Table()
+                .addShort(0, METADATA_VERSION)
+                .addByte(1, (byte) headerType)
+                .addOffset(2, header)
+                .addLong(3, bodyLength);
+    }
+
+    private static void __putMessage(ByteBuffer out, byte[] message) {
+        int length = (int) __pad8(message.length);
+        out.putInt(CONTINUATION).putInt(length).put(message);
+        out.position(out.position() + length - message.length);
+    }
+
+    private static long __pad8(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    private static FlatWriter.Table __field(String name,
+                                            int typeType,
+                                            FlatWriter.Table type,
+                                            List<FlatWriter.Table> children,
+                                            String extensionName) {
+        FlatWriter.Table field = new FlatWriter.Table()
+                .addOffset(0, new FlatWriter.Text(name))
+                .addBool(1, true)
+                .addByte(2, (byte) typeType)
+                .addOffset(3, type)
+                .addOffset(5, new FlatWriter.TableVector(children));
+        if (extensionName != null) {
+            field.addOffset(6, new FlatWriter.TableVector(Arrays.asList(
+                    new FlatWriter.Table().addOffset(0, new FlatWriter.Text(EXTENSION_NAME)).addOffset(1, new FlatWriter.Text(extensionName)),
+                    new FlatWriter.Table().addOffset(0, new FlatWriter.Text(EXTENSION_METADATA)).addOffset(1, new FlatWriter.Text("{}")))));
+        }
+        return field;
+    }
+
+    private static Kind __kind(Field field) {
+        String extensionName = field.metadata.get(EXTENSION_NAME);
+        if (extensionName != null) {
+            switch (extensionName) {
+                case "geoarrow.point":
+                    return Kind.POINT;
+                case "geoarrow.linestring":
+                    return Kind.LINESTRING;
+                case "geoarrow.polygon":
+                    return Kind.POLYGON;
+                case "geoarrow.multipoint":
+                    return Kind.MULTIPOINT;
+                case "geoarrow.multilinestring":
+                    return Kind.MULTILINESTRING;
+                case "geoarrow.multipolygon":
+                    return Kind.MULTIPOLYGON;
+                case "geoarrow.wkb":
+                    return Kind.WKB;
+                default:
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("arrow geometry column type " + extensionName + " is not supported")
+                            .asRuntimeException();
+            }
+        }
+        if (field.typeType == TYPE_BINARY || field.typeType == TYPE_LARGE_BINARY) {
+            return Kind.WKB;
+        }
+        // without an extension name the nesting of lists says what it is
+        int depth = 0;
+        for (Field level = field; level.typeType == TYPE_LIST || level.typeType == TYPE_LARGE_LIST; level = level.children.get(0)) {
+            depth++;
+        }
+        switch (depth) {
+            case 0:
+                return Kind.POINT;
+            case 1:
+                return Kind.LINESTRING;
+            case 2:
+                return Kind.POLYGON;
+            default:
+                return Kind.MULTIPOLYGON;
+        }
+    }
+
+    private static class Field {
+        final String name;
+        final int typeType;
+        final FlatReader.Table type;
+        final boolean dictionaryEncoded;
+        final List<Field> children = new ArrayList<>();
+        final Map<String, String> metadata = new HashMap<>();
+
+        Field(FlatReader.Table field) {
+            name = field.getString(0);
+            typeType = field.getByte(2, 0) & 0xff;
+            type = field.getTable(3);
+            dictionaryEncoded = field.getTable(4) != null;
+            for (int i = 0; i < field.getVectorLength(5); i++) {
+                children.add(new Field(field.getTableAt(5, i)));
+            }
+            for (int i = 0; i < field.getVectorLength(6); i++) {
+                FlatReader.Table keyValue = field.getTableAt(6, i);
+                metadata.put(keyValue.getString(0), keyValue.getString(1));
+            }
+        }
+
+        int bufferCount() {
+            switch (typeType) {
+                case TYPE_NULL:
+                case TYPE_RUN_END_ENCODED:
+                    return 0;
+                case TYPE_STRUCT:
+                case TYPE_FIXED_SIZE_LIST:
+                    return 1;
+                case TYPE_BINARY:
+                case TYPE_UTF8:
+                case TYPE_LARGE_BINARY:
+                case TYPE_LARGE_UTF8:
+                    return 3;
+                case TYPE_UNION:
+                    // type ids, and offsets if dense
+                    return type.getShort(0, 0) == 1 ? 2 : 1;
+                case TYPE_MAP:
+                case TYPE_LIST:
+                case TYPE_LARGE_LIST:
+                    return 2;
+                default:
+                    if (typeType >= TYPE_BINARY_VIEW) {
+                        throw Status.INVALID_ARGUMENT
+                                .withDescription("arrow column " + name + " is of a type that is not supported")
+                                .asRuntimeException();
+                    }
+                    // validity and values
+                    return 2;
+            }
+        }
+    }
+
+    // a column of one record batch
+    private static class Array {
+        final Field field;
+        final int length;
+        final long nullCount;
+        final ByteBuffer[] buffers;
+        final List<Array> children = new ArrayList<>();
+
+        Array(Field field, int length, long nullCount, ByteBuffer[] buffers) {
+            this.field = field;
+            this.length = length;
+            this.nullCount = nullCount;
+            this.buffers = buffers;
+        }
+
+        boolean valid(int row) {
+            return nullCount == 0 || buffers[0].capacity() == 0 || (buffers[0].get(row >> 3) & (1 << (row & 7))) != 0;
+        }
+
+        // start of the child range of row, for a list
+        int offset(int row) {
+            return field.typeType == TYPE_LARGE_LIST || field.typeType == TYPE_LARGE_BINARY ?
+                    (int) buffers[1].getLong(row * 8) :
+                    buffers[1].getInt(row * 4);
+        }
+    }
+
+    private static class Message {
+        final int headerType;
+        final FlatReader.Table header;
+        final ByteBuffer body;
+
+        Message(int headerType, FlatReader.Table header, ByteBuffer body) {
+            this.headerType = headerType;
+            this.header = header;
+            this.body = body;
+        }
+    }
+
+    private static List<Message> __messages(ByteBuffer input) {
+        List<Message> messages = new ArrayList<>();
+        int position = 0;
+        try {
+            while (input.limit() - position >= 4) {
+                int metadataLength = input.getInt(position);
+                position += 4;
+                if (metadataLength == CONTINUATION) {
+                    metadataLength = input.getInt(position);
+                    position += 4;
+                }
+                if (metadataLength == 0) {
+                    // end of stream
+                    break;
+                }
+
+                ByteBuffer metadata = __slice(input, position, metadataLength);
+                position += metadataLength;
+                FlatReader.Table message = FlatReader.root(metadata);
+                long bodyLength = message.getLong(3, 0);
+                ByteBuffer body = __slice(input, position, (int) bodyLength);
+                position += bodyLength;
+                messages.add(new Message(message.getByte(1, 0) & 0xff, message.getTable(2), body));
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw Status.INVALID_ARGUMENT.withDescription("malformed arrow stream : ".concat(e.toString())).asRuntimeException();
+        }
+        return messages;
+    }
+
+    private static ByteBuffer __slice(ByteBuffer input, int position, int length) {
+        ByteBuffer slice = input.duplicate();
+        slice.limit(position + length).position(position);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // the schema and the record batches of a stream
+    private static class Stream {
+        final List<Field> fields = new ArrayList<>();
+        final List<List<Array>> batches = new ArrayList<>();
+
+        Stream(ByteString arrow) {
+            boolean hasSchema = false;
+            try {
+                for (Message message : __messages(arrow.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN))) {
+                    if (message.headerType == SCHEMA) {
+                        for (int i = 0; i < message.header.getVectorLength(1); i++) {
+                            fields.add(new Field(message.header.getTableAt(1, i)));
+                        }
+                        hasSchema = true;
+                    } else if (message.headerType == RECORD_BATCH && hasSchema) {
+                        batches.add(__batch(message));
+                    }
+                }
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw Status.INVALID_ARGUMENT.withDescription("malformed arrow stream : ".concat(e.toString())).asRuntimeException();
+            }
+            if (!hasSchema) {
+                throw Status.INVALID_ARGUMENT.withDescription("arrow stream has no schema").asRuntimeException();
+            }
+        }
+
+        private List<Array> __batch(Message message) {
+            if (message.header.getTable(3) != null) {
+                throw Status.INVALID_ARGUMENT.withDescription("compressed arrow record batches are not supported").asRuntimeException();
+            }
+            int[] counters = new int[2];
+            List<Array> columns = new ArrayList<>();
+            for (Field field : fields) {
+                columns.add(__array(field, message, counters));
+            }
+            return columns;
+        }
+
+        // the field's array and its children's, which come in depth first order
+        private Array __array(Field field, Message message, int[] counters) {
+            FlatReader.Table recordBatch = message.header;
+            int nodesStart = recordBatch.getVectorStart(1);
+            int node = counters[0]++;
+            long length = recordBatch.buffer.getLong(nodesStart + node * 16);
+            long nullCount = recordBatch.buffer.getLong(nodesStart + node * 16 + 8);
+
+            int buffersStart = recordBatch.getVectorStart(2);
+            ByteBuffer[] buffers = new ByteBuffer[field.bufferCount()];
+            for (int i = 0; i < buffers.length; i++) {
+                int buffer = counters[1]++;
+                long offset = recordBatch.buffer.getLong(buffersStart + buffer * 16);
+                long bufferLength = recordBatch.buffer.getLong(buffersStart + buffer * 16 + 8);
+                buffers[i] = __slice(message.body, (int) offset, (int) bufferLength);
+            }
+
+            Array array = new Array(field, (int) length, nullCount, buffers);
+            for (Field child : field.children) {
+                array.children.add(__array(child, message, counters));
+            }
+            return array;
+        }
+
+        int geometryColumn() {
+            int named = -1;
+            for (int i = 0; i < fields.size(); i++) {
+                String extensionName = fields.get(i).metadata.get(EXTENSION_NAME);
+                if (extensionName != null && extensionName.startsWith("geoarrow.")) {
+                    return __readable(i);
+                }
+                if (named < 0 && GEOMETRY_COLUMN.equals(fields.get(i).name)) {
+                    named = i;
+                }
+            }
+            if (named < 0) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("arrow stream has no geoarrow or geometry column")
+                        .asRuntimeException();
+            }
+            return __readable(named);
+        }
+
+        private int __readable(int column) {
+            if (fields.get(column).dictionaryEncoded) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("dictionary encoded arrow geometry columns are not supported")
+                        .asRuntimeException();
+            }
+            return column;
+        }
+    }
+
+    // the coordinates at the bottom of a geometry column, interleaved or separated
+    private static class Coordinates {
+        final DoubleBuffer x;
+        final DoubleBuffer y;
+        final DoubleBuffer z;
+        final int stride;
+
+        Coordinates(Array array) {
+            Field field = array.field;
+            if (field.typeType == TYPE_FIXED_SIZE_LIST) {
+                stride = field.type.getInt(0, 2);
+                String dimensions = field.children.get(0).name == null ? "" : field.children.get(0).name;
+                DoubleBuffer values = __doubles(array.children.get(0));
+                x = values;
+                y = values;
+                z = dimensions.indexOf('z') == 2 || (dimensions.isEmpty() && stride >= 3) ? values : null;
+            } else if (field.typeType == TYPE_STRUCT) {
+                stride = 1;
+                DoubleBuffer xValues = null;
+                DoubleBuffer yValues = null;
+                DoubleBuffer zValues = null;
+                for (int i = 0; i < field.children.size(); i++) {
+                    String name = field.children.get(i).name;
+                    DoubleBuffer values = __doubles(array.children.get(i));
+                    if ("x".equals(name) || (name == null && i == 0)) {
+                        xValues = values;
+                    } else if ("y".equals(name) || (name == null && i == 1)) {
+                        yValues = values;
+                    } else if ("z".equals(name)) {
+                        zValues = values;
+                    }
+                }
+                if (xValues == null || yValues == null) {
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("arrow coordinate struct needs x and y fields")
+                            .asRuntimeException();
+                }
+                x = xValues;
+                y = yValues;
+                z = zValues;
+            } else {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("arrow coordinates must be a fixed size list or a struct of doubles")
+                        .asRuntimeException();
+            }
+        }
+
+        double x(int i) {
+            return x.get(i * stride);
+        }
+
+        double y(int i) {
+            return stride == 1 ? y.get(i) : y.get(i * stride + 1);
+        }
+
+        double z(int i) {
+            return stride == 1 ? z.get(i) : z.get(i * stride + 2);
+        }
+
+        private static DoubleBuffer __doubles(Array array) {
+            // FloatingPoint.precision DOUBLE
+            if (array.field.typeType != TYPE_FLOATING_POINT || array.field.type.getShort(0, 0) != 2) {
+                throw Status.INVALID_ARGUMENT.withDescription("arrow coordinates must be doubles").asRuntimeException();
+            }
+            return array.buffers[1].asDoubleBuffer();
+        }
+    }
+
+    // a record batch's geometry column, read a row at a time
+    private static class GeometryColumn {
+        final Kind kind;
+        final Array array;
+        final int length;
+        // the list levels below the geometry, outermost first, and the coordinates
+        final Array[] levels = new Array[3];
+        final Coordinates coordinates;
+
+        GeometryColumn(Kind kind, Array array) {
+            this.kind = kind;
+            this.array = array;
+            this.length = array.length;
+            if (kind == Kind.WKB) {
+                coordinates = null;
+                return;
+            }
+
+            Array level = array;
+            int depth = 0;
+            while (level.field.typeType == TYPE_LIST || level.field.typeType == TYPE_LARGE_LIST) {
+                if (depth == levels.length) {
+                    throw Status.INVALID_ARGUMENT.withDescription("arrow geometry column is nested too deep").asRuntimeException();
+                }
+                levels[depth++] = level;
+                level = level.children.get(0);
+            }
+            coordinates = new Coordinates(level);
+            int expected;
+            switch (kind) {
+                case POINT:
+                    expected = 0;
+                    break;
+                case LINESTRING:
+                case MULTIPOINT:
+                    expected = 1;
+                    break;
+                case POLYGON:
+                case MULTILINESTRING:
+                    expected = 2;
+                    break;
+                default:
+                    expected = 3;
+            }
+            if (depth != expected) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("arrow geometry column nesting doesn't match its " + kind.toString().toLowerCase() + " type")
+                        .asRuntimeException();
+            }
+        }
+
+        Geometry geometry(int row) {
+            boolean valid = array.valid(row);
+            switch (kind) {
+                case POINT:
+                    Point point = new Point();
+                    if (valid && !Double.isNaN(coordinates.x(row)) && !Double.isNaN(coordinates.y(row))) {
+                        point.setXY(coordinates.x(row), coordinates.y(row));
+                        if (coordinates.z != null) {
+                            point.setZ(coordinates.z(row));
+                        }
+                    }
+                    return point;
+                case MULTIPOINT:
+                    MultiPoint multiPoint = new MultiPoint();
+                    if (valid) {
+                        for (int i = levels[0].offset(row); i < levels[0].offset(row + 1); i++) {
+                            multiPoint.add(coordinates.x(i), coordinates.y(i));
+                        }
+                        __setZ(multiPoint, levels[0].offset(row));
+                    }
+                    return multiPoint;
+                case LINESTRING:
+                    Polyline linestring = new Polyline();
+                    if (valid) {
+                        __path(linestring, levels[0], row, false, false);
+                    }
+                    return linestring;
+                case MULTILINESTRING:
+                    Polyline multiLinestring = new Polyline();
+                    if (valid) {
+                        for (int line = levels[0].offset(row); line < levels[0].offset(row + 1); line++) {
+                            __path(multiLinestring, levels[1], line, false, false);
+                        }
+                    }
+                    return multiLinestring;
+                case POLYGON:
+                    Polygon polygon = new Polygon();
+                    if (valid) {
+                        __polygon(polygon, levels[0], levels[1], row);
+                    }
+                    return polygon;
+                case MULTIPOLYGON:
+                    Polygon multiPolygon = new Polygon();
+                    if (valid) {
+                        for (int part = levels[0].offset(row); part < levels[0].offset(row + 1); part++) {
+                            __polygon(multiPolygon, levels[1], levels[2], part);
+                        }
+                    }
+                    return multiPolygon;
+                default:
+                    if (!valid) {
+                        return new Point();
+                    }
+                    int start = array.offset(row);
+                    ByteBuffer wkb = __slice(array.buffers[2], start, array.offset(row + 1) - start);
+                    return OperatorImportFromWkb.local().execute(0, Geometry.Type.Unknown, wkb, null);
+            }
+        }
+
+        private void __polygon(Polygon polygon, Array rings, Array vertices, int part) {
+            for (int ring = rings.offset(part); ring < rings.offset(part + 1); ring++) {
+                __path(polygon, vertices, ring, true, ring == rings.offset(part));
+            }
+        }
+
+        // the vertices of item of the list array as a path of multiPath
+        private void __path(MultiPath multiPath, Array vertices, int item, boolean ring, boolean exterior) {
+            int start = vertices.offset(item);
+            int end = vertices.offset(item + 1);
+            if (ring && end - start > 1 && coordinates.x(start) == coordinates.x(end - 1) && coordinates.y(start) == coordinates.y(end - 1)) {
+                // a polygon closes its rings itself
+                end--;
+            }
+            if (end <= start) {
+                return;
+            }
+
+            int firstVertex = multiPath.getPointCount();
+            multiPath.startPath(coordinates.x(start), coordinates.y(start));
+            for (int i = start + 1; i < end; i++) {
+                multiPath.lineTo(coordinates.x(i), coordinates.y(i));
+            }
+            if (coordinates.z != null) {
+                multiPath.addAttribute(VertexDescription.Semantics.Z);
+                for (int i = start; i < end; i++) {
+                    multiPath.setAttribute(VertexDescription.Semantics.Z, firstVertex + i - start, 0, coordinates.z(i));
+                }
+            }
+            if (ring) {
+                int path = multiPath.getPathCount() - 1;
+                // exterior rings have a positive area in a Polygon, holes a negative one
+                double area = ((Polygon) multiPath).calculateRingArea2D(path);
+                if ((area < 0) == exterior) {
+                    multiPath.reversePath(path);
+                }
+            }
+        }
+
+        private void __setZ(MultiPoint multiPoint, int start) {
+            if (coordinates.z == null || multiPoint.isEmpty()) {
+                return;
+            }
+            multiPoint.addAttribute(VertexDescription.Semantics.Z);
+            for (int i = 0; i < multiPoint.getPointCount(); i++) {
+                multiPoint.setAttribute(VertexDescription.Semantics.Z, i, 0, coordinates.z(start + i));
+            }
+        }
+    }
+
+    // gathers a geometry column's coordinates and offsets
+    private static class ColumnWriter {
+        Kind kind;
+        boolean hasZ;
+        int rows = 0;
+        int dimensions;
+        double[] coordinates = new double[1024];
+        int coordinateCount = 0;
+        // the offsets of each list level, outermost first
+        final int[][] offsets = new int[3][];
+        final int[] offsetCounts = new int[3];
+
+        void add(Geometry geometry) {
+            if (geometry.getType() == Geometry.Type.Envelope) {
+                Polygon polygon = new Polygon(geometry.getDescription());
+                polygon.addEnvelope((Envelope) geometry, false);
+                geometry = polygon;
+            } else if (geometry.getType() == Geometry.Type.Line) {
+                Polyline polyline = new Polyline(geometry.getDescription());
+                polyline.addSegment((Segment) geometry, true);
+                geometry = polyline;
+            }
+
+            Kind geometryKind;
+            switch (geometry.getType()) {
+                case Point:
+                    geometryKind = Kind.POINT;
+                    break;
+                case MultiPoint:
+                    geometryKind = Kind.MULTIPOINT;
+                    break;
+                case Polyline:
+                    geometryKind = Kind.MULTILINESTRING;
+                    break;
+                case Polygon:
+                    geometryKind = Kind.MULTIPOLYGON;
+                    break;
+                default:
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("arrow can't hold a " + geometry.getType())
+                            .asRuntimeException();
+            }
+            if (kind == null) {
+                kind = geometryKind;
+                hasZ = geometry.hasAttribute(VertexDescription.Semantics.Z);
+                dimensions = hasZ ? 3 : 2;
+                for (int level = 0; level < __levels(); level++) {
+                    offsets[level] = new int[256];
+                    offsets[level][0] = 0;
+                    offsetCounts[level] = 1;
+                }
+            } else if (geometryKind != kind) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("arrow results hold geometries of a single type, got a " + geometry.getType() + " after " + kind.toString().toLowerCase())
+                        .asRuntimeException();
+            }
+
+            rows++;
+            switch (kind) {
+                case POINT:
+                    Point point = (Point) geometry;
+                    if (point.isEmpty()) {
+                        __coordinate(Double.NaN, Double.NaN, Double.NaN);
+                    } else {
+                        __coordinate(point.getX(), point.getY(), hasZ ? point.getZ() : 0);
+                    }
+                    break;
+                case MULTIPOINT:
+                    MultiPoint multiPoint = (MultiPoint) geometry;
+                    for (int i = 0; i < multiPoint.getPointCount(); i++) {
+                        __vertex(multiPoint.getXY(i), hasZ ? multiPoint.getAttributeAsDbl(VertexDescription.Semantics.Z, i, 0) : 0);
+                    }
+                    __offset(0, coordinateCount / dimensions);
+                    break;
+                case MULTILINESTRING:
+                    Polyline polyline = (Polyline) geometry;
+                    for (int path = 0; path < polyline.getPathCount(); path++) {
+                        __path(polyline, path, false);
+                        __offset(1, coordinateCount / dimensions);
+                    }
+                    __offset(0, offsetCounts[1] - 1);
+                    break;
+                default:
+                    // each exterior ring and the holes that follow it, closed
+                    Polygon polygon = (Polygon) geometry;
+                    for (int path = 0; path < polygon.getPathCount(); path++) {
+                        if (path > 0 && polygon.isExteriorRing(path)) {
+                            __offset(1, offsetCounts[2] - 1);
+                        }
+                        __path(polygon, path, true);
+                        __offset(2, coordinateCount / dimensions);
+                    }
+                    if (polygon.getPathCount() > 0) {
+                        __offset(1, offsetCounts[2] - 1);
+                    }
+                    __offset(0, offsetCounts[1] - 1);
+                    break;
+            }
+        }
+
+        private int __levels() {
+            switch (kind) {
+                case POINT:
+                    return 0;
+                case MULTIPOINT:
+                    return 1;
+                case MULTILINESTRING:
+                    return 2;
+                default:
+                    return 3;
+            }
+        }
+
+        private void __path(MultiPath multiPath, int path, boolean ring) {
+            int start = multiPath.getPathStart(path);
+            int end = multiPath.getPathEnd(path);
+            for (int i = start; i < end; i++) {
+                __vertex(multiPath.getXY(i), hasZ ? multiPath.getAttributeAsDbl(VertexDescription.Semantics.Z, i, 0) : 0);
+            }
+            if (ring) {
+                __vertex(multiPath.getXY(start), hasZ ? multiPath.getAttributeAsDbl(VertexDescription.Semantics.Z, start, 0) : 0);
+            }
+        }
+
+        private void __vertex(Point2D xy, double z) {
+            __coordinate(xy.x, xy.y, z);
+        }
+
+        private void __coordinate(double x, double y, double z) {
+            if (coordinateCount + dimensions > coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+            }
+            coordinates[coordinateCount++] = x;
+            coordinates[coordinateCount++] = y;
+            if (hasZ) {
+                coordinates[coordinateCount++] = z;
+            }
+        }
+
+        private void __offset(int level, int value) {
+            if (offsetCounts[level] == offsets[level].length) {
+                offsets[level] = Arrays.copyOf(offsets[level], offsets[level].length * 2);
+            }
+            offsets[level][offsetCounts[level]++] = value;
+        }
+
+        FlatWriter.Table field() {
+            if (kind == null) {
+                // nothing to write, an empty point column
+                kind = Kind.POINT;
+                dimensions = 2;
+            }
+            // the child names of each list level, outermost first, the last one is the coordinates'
+            String[] childNames;
+            switch (kind) {
+                case POINT:
+                    childNames = new String[0];
+                    break;
+                case MULTIPOINT:
+                    childNames = new String[]{"points"};
+                    break;
+                case MULTILINESTRING:
+                    childNames = new String[]{"linestrings", "vertices"};
+                    break;
+                default:
+                    childNames = new String[]{"polygons", "rings", "vertices"};
+                    break;
+            }
+            String extensionName = "geoarrow." + kind.toString().toLowerCase();
+            int levels = childNames.length;
+
+            FlatWriter.Table field = __field(hasZ ? "xyz" : "xy", TYPE_FLOATING_POINT,
+                    new FlatWriter.Table().addShort(0, (short) 2), Collections.emptyList(), null);
+            field = __field(levels == 0 ? GEOMETRY_COLUMN : childNames[levels - 1], TYPE_FIXED_SIZE_LIST,
+                    new FlatWriter.Table().addInt(0, dimensions), Collections.singletonList(field), levels == 0 ? extensionName : null);
+            for (int level = levels - 1; level >= 0; level--) {
+                field = __field(level == 0 ? GEOMETRY_COLUMN : childNames[level - 1], TYPE_LIST,
+                        new FlatWriter.Table(), Collections.singletonList(field), level == 0 ? extensionName : null);
+            }
+            return field;
+        }
+
+        // the nodes and buffers of the column, depth first
+        void buffers(List<long[]> nodes, List<ByteBuffer> buffers) {
+            int levels = kind == null ? 0 : __levels();
+            for (int level = 0; level < levels; level++) {
+                nodes.add(new long[]{offsetCounts[level] - 1, 0});
+                buffers.add(ByteBuffer.allocate(0));
+                ByteBuffer levelOffsets = ByteBuffer.allocate(offsetCounts[level] * 4).order(ByteOrder.LITTLE_ENDIAN);
+                levelOffsets.asIntBuffer().put(offsets[level], 0, offsetCounts[level]);
+                buffers.add(levelOffsets);
+            }
+            int vertexCount = dimensions == 0 ? 0 : coordinateCount / dimensions;
+            nodes.add(new long[]{vertexCount, 0});
+            buffers.add(ByteBuffer.allocate(0));
+            nodes.add(new long[]{coordinateCount, 0});
+            buffers.add(ByteBuffer.allocate(0));
+            ByteBuffer values = ByteBuffer.allocate(coordinateCount * 8).order(ByteOrder.LITTLE_ENDIAN);
+            values.asDoubleBuffer().put(coordinates, 0, coordinateCount);
+            buffers.add(values);
+        }
+    }
+
+    /**
+     * Reads flatbuffer tables through their vtables, so it reads whatever layout the writer chose.
+     */
+    private static class FlatReader {
+        static Table root(ByteBuffer buffer) {
+            return new Table(buffer, buffer.getInt(0));
+        }
+
+        static class Table {
+            final ByteBuffer buffer;
+            final int position;
+
+            Table(ByteBuffer buffer, int position) {
+                this.buffer = buffer;
+                this.position = position;
+            }
+
+            // the field's position relative to the table, 0 if it isn't there
+            private int __offset(int field) {
+                int vtable = position - buffer.getInt(position);
+                int vtableSize = buffer.getShort(vtable) & 0xffff;
+                int entry = 4 + 2 * field;
+                return entry < vtableSize ? buffer.getShort(vtable + entry) & 0xffff : 0;
+            }
+
+            byte getByte(int field, int defaultValue) {
+                int offset = __offset(field);
+                return offset == 0 ? (byte) defaultValue : buffer.get(position + offset);
+            }
+
+            short getShort(int field, int defaultValue) {
+                int offset = __offset(field);
+                return offset == 0 ? (short) defaultValue : buffer.getShort(position + offset);
+            }
+
+            int getInt(int field, int defaultValue) {
+                int offset = __offset(field);
+                return offset == 0 ? defaultValue : buffer.getInt(position + offset);
+            }
+
+            long getLong(int field, long defaultValue) {
+                int offset = __offset(field);
+                return offset == 0 ? defaultValue : buffer.getLong(position + offset);
+            }
+
+            // the position an offset field points to, -1 if it isn't there
+            private int __indirect(int field) {
+                int offset = __offset(field);
+                if (offset == 0) {
+                    return -1;
+                }
+                int at = position + offset;
+                return at + buffer.getInt(at);
+            }
+
+            Table getTable(int field) {
+                int at = __indirect(field);
+                return at < 0 ? null : new Table(buffer, at);
+            }
+
+            String getString(int field) {
+                int at = __indirect(field);
+                if (at < 0) {
+                    return null;
+                }
+                byte[] bytes = new byte[buffer.getInt(at)];
+                ByteBuffer string = buffer.duplicate();
+                string.position(at + 4);
+                string.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int getVectorLength(int field) {
+                int at = __indirect(field);
+                return at < 0 ? 0 : buffer.getInt(at);
+            }
+
+            // the position of the vector's first element
+            int getVectorStart(int field) {
+                int at = __indirect(field);
+                return at < 0 ? -1 : at + 4;
+            }
+
+            Table getTableAt(int field, int index) {
+                int at = getVectorStart(field) + 4 * index;
+                return new Table(buffer, at + buffer.getInt(at));
+            }
+        }
+    }
+
+    /**
+     * Writes flatbuffer tables front to back, each table ahead of what it points to so every offset is positive.
+     */
+    private static class FlatWriter {
+        interface Node {
+        }
+
+        static class Text implements Node {
+            final byte[] bytes;
+
+            Text(String text) {
+                bytes = text.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        static class TableVector implements Node {
+            final List<Table> tables;
+
+            TableVector(List<Table> tables) {
+                this.tables = tables;
+            }
+        }
+
+        // a vector of structs of 8 byte aligned fields, already laid out
+        static class StructVector implements Node {
+            final int count;
+            final byte[] bytes;
+
+            StructVector(int count, byte[] bytes) {
+                this.count = count;
+                this.bytes = bytes;
+            }
+        }
+
+        static class Table implements Node {
+            // field id, size in bytes and value, a Number or a Node for an offset
+            private final List<Object[]> fields = new ArrayList<>();
+
+            Table addByte(int field, byte value) {
+                fields.add(new Object[]{field, 1, value});
+                return this;
+            }
+
+            Table addBool(int field, boolean value) {
+                return addByte(field, (byte) (value ? 1 : 0));
+            }
+
+            Table addShort(int field, short value) {
+                fields.add(new Object[]{field, 2, value});
+                return this;
+            }
+
+            Table addInt(int field, int value) {
+                fields.add(new Object[]{field, 4, value});
+                return this;
+            }
+
+            Table addLong(int field, long value) {
+                fields.add(new Object[]{field, 8, value});
+                return this;
+            }
+
+            Table addOffset(int field, Node value) {
+                fields.add(new Object[]{field, 4, value});
+                return this;
+            }
+        }
+
+        private ByteBuffer out = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        static byte[] finish(Table root) {
+            FlatWriter flatWriter = new FlatWriter();
+            flatWriter.__ensure(4);
+            flatWriter.out.putInt(0);
+            int rootPosition = flatWriter.__write(root);
+            flatWriter.out.putInt(0, rootPosition);
+            return Arrays.copyOf(flatWriter.out.array(), flatWriter.out.position());
+        }
+
+        private void __ensure(int size) {
+            if (out.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + size)).order(ByteOrder.LITTLE_ENDIAN);
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+        }
+
+        // pad with zeros until the position is remainder modulo alignment
+        private void __align(int alignment, int remainder) {
+            while (out.position() % alignment != remainder) {
+                __ensure(1);
+                out.put((byte) 0);
+            }
+        }
+
+        private int __write(Node node) {
+            if (node instanceof Text) {
+                byte[] bytes = ((Text) node).bytes;
+                __align(4, 0);
+                int position = out.position();
+                __ensure(bytes.length + 5);
+                out.putInt(bytes.length).put(bytes).put((byte) 0);
+                return position;
+            } else if (node instanceof StructVector) {
+                StructVector structVector = (StructVector) node;
+                // the structs start 8 byte aligned, after the length
+                __align(8, 4);
+                int position = out.position();
+                __ensure(structVector.bytes.length + 4);
+                out.putInt(structVector.count).put(structVector.bytes);
+                return position;
+            } else if (node instanceof TableVector) {
+                List<Table> tables = ((TableVector) node).tables;
+                __align(4, 0);
+                int position = out.position();
+                __ensure(4 + 4 * tables.size());
+                out.putInt(tables.size());
+                for (int i = 0; i < tables.size(); i++) {
+                    out.putInt(0);
+                }
+                for (int i = 0; i < tables.size(); i++) {
+                    int slot = position + 4 + 4 * i;
+                    int tablePosition = __write(tables.get(i));
+                    out.putInt(slot, tablePosition - slot);
+                }
+                return position;
+            }
+            return __writeTable((Table) node);
+        }
+
+        private int __writeTable(Table table) {
+            // the largest fields first, so each is aligned to its size after the 4 byte vtable offset
+            List<Object[]> fields = new ArrayList<>(table.fields);
+            fields.sort((a, b) -> (Integer) b[1] - (Integer) a[1]);
+            int fieldCount = 0;
+            int[] fieldOffsets = new int[fields.size()];
+            int tableSize = 4;
+            for (int i = 0; i < fields.size(); i++) {
+                fieldCount = Math.max(fieldCount, (Integer) fields.get(i)[0] + 1);
+                fieldOffsets[i] = tableSize;
+                tableSize += (Integer) fields.get(i)[1];
+            }
+
+            __align(2, 0);
+            int vtable = out.position();
+            __ensure(4 + 2 * fieldCount);
+            out.putShort((short) (4 + 2 * fieldCount)).putShort((short) tableSize);
+            short[] entries = new short[fieldCount];
+            for (int i = 0; i < fields.size(); i++) {
+                entries[(Integer) fields.get(i)[0]] = (short) fieldOffsets[i];
+            }
+            for (short entry : entries) {
+                out.putShort(entry);
+            }
+
+            // the table starts 4 bytes short of 8 byte alignment, so its longs are aligned
+            __align(8, 4);
+            int position = out.position();
+            __ensure(tableSize);
+            out.putInt(position - vtable);
+            List<int[]> children = new ArrayList<>();
+            for (int i = 0; i < fields.size(); i++) {
+                Object value = fields.get(i)[2];
+                if (value instanceof Node) {
+                    children.add(new int[]{out.position(), i});
+                    out.putInt(0);
+                } else if (value instanceof Long) {
+                    out.putLong((Long) value);
+                } else if (value instanceof Integer) {
+                    out.putInt((Integer) value);
+                } else if (value instanceof Short) {
+                    out.putShort((Short) value);
+                } else {
+                    out.put((Byte) value);
+                }
+            }
+            for (int[] child : children) {
+                int childPosition = __write((Node) fields.get(child[1])[2]);
+                out.putInt(child[0], childPosition - child[0]);
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.ProgressTracker;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+
+/**
+ * Stops geometry operators once the gRPC call they are working for has been cancelled or has passed its deadline.
+ * The operators poll the tracker through {@link ProgressTracker#checkAndThrow(ProgressTracker)} and throw out of
+ * their loops, which frees the worker thread instead of finishing work nobody will read.
+ */
+class ContextProgressTracker extends ProgressTracker {
+    private final Context context;
+
+    ContextProgressTracker(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * A tracker for the call the current thread is working on.
+     */
+    static ContextProgressTracker current() {
+        return new ContextProgressTracker(Context.current());
+    }
+
+    @Override
+    public boolean progress(int step, int totalExpectedSteps) {
+        return !context.isCancelled();
+    }
+
+    /**
+     * @return the status to report for work abandoned in context, or null if context is still live
+     */
+    static Status cancelledStatus(Context context) {
+        if (!context.isCancelled()) {
+            return null;
+        }
+
+        Deadline deadline = context.getDeadline();
+        if (deadline != null && deadline.isExpired()) {
+            return Status.DEADLINE_EXCEEDED.withDescription("operation stopped at deadline");
+        }
+        return Status.CANCELLED.withDescription("operation stopped, call cancelled");
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import io.grpc.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Worker pool, admission, geometry registry and stream window settings for a server. The server level values come
+ * from the constructor or the environment, and a call can narrow them through request metadata (see
+ * {@link Interceptor}).
+ */
+class ExecutionSettings {
+    private static final Logger logger = Logger.getLogger(ExecutionSettings.class.getName());
+
+    // upper bound on a client supplied window so a single call can't ask the server to buffer an unbounded stream
+    static final int MAX_STREAM_WINDOW = 4096;
+
+    static final Metadata.Key<String> STREAM_WINDOW_KEY =
+            Metadata.Key.of("geometry-stream-window", Metadata.ASCII_STRING_MARSHALLER);
+    static final Metadata.Key<String> STREAM_PARALLELISM_KEY =
+            Metadata.Key.of("geometry-stream-parallelism", Metadata.ASCII_STRING_MARSHALLER);
+
+    static final Context.Key<ExecutionSettings> CONTEXT_KEY =
+            Context.keyWithDefault("geometry-execution-settings", new ExecutionSettings(ForkJoinPool.commonPool()));
+
+    // pool shared by every call on the server. stream messages and parallel operators run here
+    final ForkJoinPool workerPool;
+
+    // max number of stream messages received but not yet answered
+    final int streamWindow;
+
+    // max number of stream messages from one call running on the worker pool at the same time
+    final int streamParallelism;
+
+    // cpu and memory budgets shared by every call on the server
+    final AdmissionController admission;
+
+    // geometry bags registered by clients, shared by every call on the server
+    final GeometryRegistry registry;
+
+    ExecutionSettings(ForkJoinPool workerPool) {
+        this(workerPool, workerPool.getParallelism() * 2, workerPool.getParallelism());
+    }
+
+    ExecutionSettings(ForkJoinPool workerPool, int streamWindow, int streamParallelism) {
+        this(workerPool,
+                streamWindow,
+                streamParallelism,
+                new AdmissionController(workerPool.getParallelism()),
+                new GeometryRegistry(Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    ExecutionSettings(ForkJoinPool workerPool,
+                      int streamWindow,
+                      int streamParallelism,
+                      AdmissionController admission,
+                      GeometryRegistry registry) {
+        if (streamWindow < 1 || streamParallelism < 1) {
+            throw new IllegalArgumentException("stream window and parallelism must be positive");
+        }
+        this.workerPool = workerPool;
+        this.streamWindow = Math.min(streamWindow, MAX_STREAM_WINDOW);
+        this.streamParallelism = Math.min(streamParallelism, workerPool.getParallelism());
+        this.admission = admission;
+        this.registry = registry;
+    }
+
+    /**
+     * Settings from the environment. GEOMETRY_WORKER_THREADS sizes the worker pool (defaults to the number of
+     * processors) and GEOMETRY_STREAM_WINDOW sets the default stream window (defaults to twice the pool size). See
+     * {@link AdmissionController#fromEnvironment(int)} for the admission budgets and
+     * {@link GeometryRegistry#fromEnvironment()} for the registry quota.
+     */
+    static ExecutionSettings fromEnvironment() {
+        int workerThreads = __parsePositive(System.getenv("GEOMETRY_WORKER_THREADS"), Runtime.getRuntime().availableProcessors());
+        int streamWindow = __parsePositive(System.getenv("GEOMETRY_STREAM_WINDOW"), workerThreads * 2);
+        return new ExecutionSettings(new ForkJoinPool(workerThreads), streamWindow, workerThreads,
+                AdmissionController.fromEnvironment(workerThreads),
+                GeometryRegistry.fromEnvironment());
+    }
+
+    static ExecutionSettings current() {
+        return CONTEXT_KEY.get();
+    }
+
+    /**
+     * Apply the per call overrides from the request headers. Headers can only shrink the parallelism to the size of
+     * the server pool, and the window is capped at {@link #MAX_STREAM_WINDOW}.
+     */
+    ExecutionSettings withOverrides(Metadata headers) {
+        String window = headers.get(STREAM_WINDOW_KEY);
+        String parallelism = headers.get(STREAM_PARALLELISM_KEY);
+        if (window == null && parallelism == null) {
+            return this;
+        }
+
+        return new ExecutionSettings(
+                workerPool,
+                __parsePositive(window, streamWindow),
+                __parsePositive(parallelism, streamParallelism),
+                admission,
+                registry);
+    }
+
+    private static int __parsePositive(String value, int defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "ignoring execution setting : ".concat(value));
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Attaches the server settings, with any per call overrides, to the call {@link Context}.
+     */
+    static class Interceptor implements ServerInterceptor {
+        private final ExecutionSettings serverSettings;
+
+        Interceptor(ExecutionSettings serverSettings) {
+            this.serverSettings = serverSettings;
+        }
+
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                     Metadata headers,
+                                                                     ServerCallHandler<ReqT, RespT> next) {
+            Context context = Context.current().withValue(CONTEXT_KEY, serverSettings.withOverrides(headers));
+            return Contexts.interceptCall(context, call, headers, next);
+        }
+    }
+}
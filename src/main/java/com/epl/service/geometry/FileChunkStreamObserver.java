@@ -0,0 +1,241 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Decodes a shapefile from a stream of {@link FileChunk}s while it is uploading. Each record is run through the
+ * first chunk's nested_request and the results are streamed back, in record order, before the upload has finished.
+ * <p>
+ * Only {@link #MAX_BUFFERED_CHUNKS} chunks, or as many as the record being read still needs if it is larger, are
+ * requested from the client ahead of the record reader, so memory use depends on the largest record and not on the
+ * size of the file.
+ */
+class FileChunkStreamObserver implements StreamObserver<FileChunk> {
+    private static final Logger logger = Logger.getLogger(FileChunkStreamObserver.class.getName());
+
+    static final int MAX_BUFFERED_CHUNKS = 4;
+
+    private final ServerCallStreamObserver<OperatorResult> responseObserver;
+    private final OperatorStreamWindow window;
+    private final Executor readerExecutor;
+
+    // all of the below are guarded by this
+    private ShapefileChunkedReader shapefileChunkedReader;
+    private OperatorRequest requestTemplate;
+    private SpatialReferenceData inputSpatialReference;
+    private long expectedOffset = 0;
+    private int requestedChunks = 0;
+    private int chunkSize = 0;
+    private boolean lastChunk = false;
+
+    FileChunkStreamObserver(StreamObserver<OperatorResult> responseObserver,
+                            ExecutionSettings settings,
+                            Executor readerExecutor,
+                            OperatorStreamWindow.Operation operation) {
+        this.responseObserver = (ServerCallStreamObserver<OperatorResult>) responseObserver;
+        this.readerExecutor = readerExecutor;
+
+        // chunks are pulled by the record reader, the window only throttles the records
+        this.responseObserver.disableAutoInboundFlowControl();
+        this.window = new OperatorStreamWindow(responseObserver, settings, true, false,
+                operatorRequest -> GeometryOperatorsUtil.tagInputGeometryIds(operatorRequest, operation.execute(operatorRequest)));
+
+        // wake the record reader if the call goes away while it waits for a chunk
+        Context.current().addListener(context -> __closeReader(), Runnable::run);
+
+        __pullChunks();
+    }
+
+    @Override
+    public void onNext(FileChunk fileChunk) {
+        try {
+            synchronized (this) {
+                requestedChunks--;
+                if (fileChunk.getOffset() != expectedOffset) {
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("expected chunk at offset " + expectedOffset + " but got " + fileChunk.getOffset())
+                            .asRuntimeException();
+                }
+                expectedOffset += fileChunk.getData().size();
+                chunkSize = Math.max(chunkSize, fileChunk.getData().size());
+
+                if (shapefileChunkedReader == null) {
+                    __startReader(fileChunk);
+                } else {
+                    shapefileChunkedReader.addStream(fileChunk.getData().newInput(), fileChunk.getData().size());
+                }
+
+                if (fileChunk.getIsLastChunk()) {
+                    lastChunk = true;
+                    shapefileChunkedReader.close();
+                }
+            }
+            __pullChunks();
+        } catch (Throwable t) {
+            __closeReader();
+            window.fail(__invalidFile(t));
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        __closeReader();
+        window.onError(t);
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (this) {
+            lastChunk = true;
+            if (shapefileChunkedReader != null) {
+                // the reader finishes the window once it has read the remaining records
+                shapefileChunkedReader.close();
+                return;
+            }
+        }
+        // no file at all
+        window.onCompleted();
+    }
+
+    // must hold the lock
+    private void __startReader(FileChunk fileChunk) throws Exception {
+        String fileName = fileChunk.getFileName().toLowerCase();
+        if (!fileName.isEmpty() && !fileName.endsWith(".shp")) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("only shapefile (.shp) uploads are supported, not " + fileChunk.getFileName())
+                    .asRuntimeException();
+        }
+
+        OperatorRequest.Builder templateBuilder = fileChunk.getNestedRequest().toBuilder();
+        if (fileChunk.getResultsEncodingType() != GeometryEncodingType.unknown) {
+            templateBuilder.setResultsEncodingType(fileChunk.getResultsEncodingType());
+        }
+        if (fileChunk.hasResultSpatialReference()) {
+            templateBuilder.setResultSpatialReference(fileChunk.getResultSpatialReference());
+        }
+        requestTemplate = templateBuilder.build();
+        inputSpatialReference = fileChunk.hasInputSpatialReference() ? fileChunk.getInputSpatialReference() : null;
+
+        shapefileChunkedReader = new ShapefileChunkedReader(fileChunk.getData().newInput(), fileChunk.getData().size());
+        ShapefileChunkedReader reader = shapefileChunkedReader;
+        readerExecutor.execute(Context.current().wrap(() -> __readRecords(reader)));
+    }
+
+    private void __readRecords(ShapefileChunkedReader reader) {
+        try {
+            while (reader.hasNext()) {
+                byte[] record = reader.next();
+                // a chunk may have been used up
+                __pullChunks();
+                if (!window.put(__recordRequest(record, reader.getGeometryID()))) {
+                    // the call is already over
+                    return;
+                }
+            }
+            logger.info("COMPLETED FILE");
+            window.onCompleted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            window.fail(Status.CANCELLED.withDescription("file reader interrupted").asRuntimeException());
+        } catch (Throwable t) {
+            window.fail(__invalidFile(t));
+        }
+    }
+
+    /**
+     * The record goes in as the geometry bag of the innermost request on the left side of the nested request.
+     */
+    private synchronized OperatorRequest __recordRequest(byte[] record, int recordNumber) {
+        GeometryBagData.Builder geometryBagBuilder = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.esrishape)
+                // the record array is never touched again, so it doesn't need a copy
+                .addEsriShape(UnsafeByteOperations.unsafeWrap(record))
+                .addGeometryIds(recordNumber);
+        if (inputSpatialReference != null) {
+            geometryBagBuilder.setSpatialReference(inputSpatialReference);
+        }
+
+        OperatorRequest.Builder operatorRequestBuilder = requestTemplate.toBuilder();
+        OperatorRequest.Builder leafBuilder = operatorRequestBuilder;
+        while (true) {
+            if (leafBuilder.hasLeftGeometryRequest()) {
+                leafBuilder = leafBuilder.getLeftGeometryRequestBuilder();
+            } else if (leafBuilder.hasGeometryRequest()) {
+                leafBuilder = leafBuilder.getGeometryRequestBuilder();
+            } else {
+                break;
+            }
+        }
+        leafBuilder.clearLeftGeometryBag().setGeometryBag(geometryBagBuilder);
+
+        return operatorRequestBuilder.build();
+    }
+
+    /**
+     * Ask for chunks until {@link #MAX_BUFFERED_CHUNKS} are either buffered in the reader or on their way, or until
+     * enough are on their way for the reader to finish its record, which can be larger than that many chunks.
+     */
+    private void __pullChunks() {
+        int count;
+        synchronized (this) {
+            if (lastChunk) {
+                return;
+            }
+            int buffered = 0;
+            int missing = 0;
+            if (shapefileChunkedReader != null) {
+                buffered = shapefileChunkedReader.getChunkCount();
+                // chunks of the largest size seen so far, the client may send smaller ones
+                long missingBytes = shapefileChunkedReader.getMissingBytes();
+                missing = (int) Math.min(Integer.MAX_VALUE, (missingBytes + chunkSize - 1) / chunkSize);
+            }
+            count = Math.max(MAX_BUFFERED_CHUNKS - buffered, missing) - requestedChunks;
+            if (count <= 0) {
+                return;
+            }
+            requestedChunks += count;
+        }
+        responseObserver.request(count);
+    }
+
+    private synchronized void __closeReader() {
+        lastChunk = true;
+        if (shapefileChunkedReader != null) {
+            shapefileChunkedReader.close();
+        }
+    }
+
+    private static Throwable __invalidFile(Throwable t) {
+        if (t instanceof io.grpc.StatusRuntimeException) {
+            return t;
+        }
+        return Status.INVALID_ARGUMENT.withDescription("Error reading file : ".concat(t.toString())).withCause(t).asRuntimeException();
+    }
+}
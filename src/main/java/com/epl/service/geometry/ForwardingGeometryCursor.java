@@ -0,0 +1,50 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryCursor;
+
+/**
+ * A {@link GeometryCursor} that passes every call on to another cursor. Subclasses override the calls they watch.
+ */
+class ForwardingGeometryCursor extends GeometryCursor {
+    private final GeometryCursor delegate;
+
+    ForwardingGeometryCursor(GeometryCursor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Geometry next() {
+        return delegate.next();
+    }
+
+    @Override
+    public int getGeometryID() {
+        return delegate.getGeometryID();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return delegate.hasNext();
+    }
+}
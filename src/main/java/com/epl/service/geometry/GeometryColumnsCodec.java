@@ -0,0 +1,386 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import io.grpc.Status;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Reads and writes {@link GeometryColumns}, a bag's geometries as packed coordinate and offset arrays. Geometries are
+ * built straight from the arrays, without a buffer or a parse per geometry, and written back the same way, which is
+ * what makes large bags of points and small polygons cheap.
+ */
+class GeometryColumnsCodec {
+    private GeometryColumnsCodec() {
+    }
+
+    static int geometryCount(GeometryColumns columns) {
+        if (columns.getGeometryType() == ColumnGeometryType.column_point) {
+            return columns.getXCount();
+        }
+        return Math.max(0, columns.getGeometryOffsetsCount() - 1);
+    }
+
+    /**
+     * Geometries [start, end) of columns, which must be {@link #validate valid}, with the offsets made relative to
+     * the slice.
+     */
+    static GeometryColumns slice(GeometryColumns columns, int start, int end) {
+        GeometryColumns.Builder sliceBuilder = GeometryColumns.newBuilder().setGeometryType(columns.getGeometryType());
+        int coordinateStart = start;
+        int coordinateEnd = end;
+        switch (columns.getGeometryType()) {
+            case column_point:
+                break;
+            case column_multipoint:
+                coordinateStart = columns.getGeometryOffsets(start);
+                coordinateEnd = columns.getGeometryOffsets(end);
+                for (int i = start; i <= end; i++) {
+                    sliceBuilder.addGeometryOffsets(columns.getGeometryOffsets(i) - coordinateStart);
+                }
+                break;
+            default:
+                int partStart = columns.getGeometryOffsets(start);
+                int partEnd = columns.getGeometryOffsets(end);
+                coordinateStart = columns.getPartOffsets(partStart);
+                coordinateEnd = columns.getPartOffsets(partEnd);
+                for (int i = start; i <= end; i++) {
+                    sliceBuilder.addGeometryOffsets(columns.getGeometryOffsets(i) - partStart);
+                }
+                for (int i = partStart; i <= partEnd; i++) {
+                    sliceBuilder.addPartOffsets(columns.getPartOffsets(i) - coordinateStart);
+                }
+                break;
+        }
+        boolean hasZ = columns.getZCount() > 0;
+        for (int i = coordinateStart; i < coordinateEnd; i++) {
+            sliceBuilder.addX(columns.getX(i)).addY(columns.getY(i));
+            if (hasZ) {
+                sliceBuilder.addZ(columns.getZ(i));
+            }
+        }
+        return sliceBuilder.build();
+    }
+
+    /**
+     * The geometries of columns, built as the cursor is read.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the arrays don't fit together
+     */
+    static GeometryCursor importCursor(GeometryColumns columns) {
+        validate(columns);
+        int geometryCount = geometryCount(columns);
+        boolean hasZ = columns.getZCount() > 0;
+        return new GeometryCursor() {
+            private int geometryId = -1;
+
+            @Override
+            public Geometry next() {
+                if (geometryId + 1 >= geometryCount) {
+                    return null;
+                }
+                geometryId++;
+                switch (columns.getGeometryType()) {
+                    case column_point:
+                        return __point(columns, geometryId, hasZ);
+                    case column_multipoint:
+                        return __multiPoint(columns, geometryId, hasZ);
+                    case column_polyline:
+                        return __multiPath(new Polyline(), columns, geometryId, hasZ);
+                    default:
+                        return __multiPath(new Polygon(), columns, geometryId, hasZ);
+                }
+            }
+
+            @Override
+            public int getGeometryID() {
+                return geometryId;
+            }
+
+            public boolean hasNext() {
+                return geometryId + 1 < geometryCount;
+            }
+        };
+    }
+
+    /**
+     * The geometries of geometryCursor as columns. Envelopes are written as polygons and lines as polylines, and
+     * every other geometry must be of the same type as the first. Z values are written if the first geometry has them.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the geometries aren't all of one type
+     */
+    static GeometryColumns encode(GeometryCursor geometryCursor, ProgressTracker progressTracker) {
+        GeometryColumns.Builder columnsBuilder = GeometryColumns.newBuilder();
+        ColumnGeometryType columnType = null;
+        boolean hasZ = false;
+        Point2D xy = new Point2D();
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            ProgressTracker.checkAndThrow(progressTracker);
+            if (geometry.getType() == Geometry.Type.Envelope) {
+                Polygon polygon = new Polygon(geometry.getDescription());
+                polygon.addEnvelope((Envelope) geometry, false);
+                geometry = polygon;
+            } else if (geometry.getType() == Geometry.Type.Line) {
+                Polyline polyline = new Polyline(geometry.getDescription());
+                polyline.addSegment((Segment) geometry, true);
+                geometry = polyline;
+            }
+
+            ColumnGeometryType geometryType = __columnType(geometry);
+            if (columnType == null) {
+                columnType = geometryType;
+                hasZ = geometry.hasAttribute(VertexDescription.Semantics.Z);
+                columnsBuilder.setGeometryType(columnType);
+                if (columnType != ColumnGeometryType.column_point) {
+                    columnsBuilder.addGeometryOffsets(0);
+                }
+                if (columnType == ColumnGeometryType.column_polyline || columnType == ColumnGeometryType.column_polygon) {
+                    columnsBuilder.addPartOffsets(0);
+                }
+            } else if (geometryType != columnType) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("columns hold geometries of a single type, got a " + geometry.getType() + " after " + columnType)
+                        .asRuntimeException();
+            }
+
+            switch (columnType) {
+                case column_point:
+                    Point point = (Point) geometry;
+                    if (point.isEmpty()) {
+                        columnsBuilder.addX(Double.NaN).addY(Double.NaN);
+                        if (hasZ) {
+                            columnsBuilder.addZ(Double.NaN);
+                        }
+                    } else {
+                        columnsBuilder.addX(point.getX()).addY(point.getY());
+                        if (hasZ) {
+                            columnsBuilder.addZ(point.getZ());
+                        }
+                    }
+                    break;
+                case column_multipoint:
+                    MultiVertexGeometry multiPoint = (MultiVertexGeometry) geometry;
+                    for (int i = 0; i < multiPoint.getPointCount(); i++) {
+                        __addCoordinate(columnsBuilder, multiPoint, i, hasZ, xy);
+                    }
+                    columnsBuilder.addGeometryOffsets(columnsBuilder.getXCount());
+                    break;
+                default:
+                    MultiPath multiPath = (MultiPath) geometry;
+                    for (int path = 0; path < multiPath.getPathCount(); path++) {
+                        for (int i = multiPath.getPathStart(path); i < multiPath.getPathEnd(path); i++) {
+                            __addCoordinate(columnsBuilder, multiPath, i, hasZ, xy);
+                        }
+                        columnsBuilder.addPartOffsets(columnsBuilder.getXCount());
+                    }
+                    columnsBuilder.addGeometryOffsets(columnsBuilder.getPartOffsetsCount() - 1);
+                    break;
+            }
+        }
+        return columnsBuilder.build();
+    }
+
+    /**
+     * Appends chunk, the encoded geometries that follow those of columnsBuilder, with its offsets moved past the ones
+     * already there. Z values are kept if columnsBuilder has them, the same way {@link #encode} keeps them if its first
+     * geometry has them.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if chunk's geometries aren't of the same type
+     */
+    static void append(GeometryColumns.Builder columnsBuilder, GeometryColumns chunk) {
+        if (geometryCount(chunk) == 0) {
+            return;
+        }
+        int coordinateBase = columnsBuilder.getXCount();
+        if (columnsBuilder.getGeometryOffsetsCount() == 0 && coordinateBase == 0) {
+            // nothing encoded yet
+            columnsBuilder.mergeFrom(chunk);
+            return;
+        }
+        if (chunk.getGeometryType() != columnsBuilder.getGeometryType()) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("columns hold geometries of a single type, got a " + chunk.getGeometryType() + " after " + columnsBuilder.getGeometryType())
+                    .asRuntimeException();
+        }
+
+        // the chunk's leading 0 offsets are the builder's last ones
+        switch (chunk.getGeometryType()) {
+            case column_point:
+                break;
+            case column_multipoint:
+                for (int i = 1; i < chunk.getGeometryOffsetsCount(); i++) {
+                    columnsBuilder.addGeometryOffsets(chunk.getGeometryOffsets(i) + coordinateBase);
+                }
+                break;
+            default:
+                int partBase = columnsBuilder.getPartOffsetsCount() - 1;
+                for (int i = 1; i < chunk.getGeometryOffsetsCount(); i++) {
+                    columnsBuilder.addGeometryOffsets(chunk.getGeometryOffsets(i) + partBase);
+                }
+                for (int i = 1; i < chunk.getPartOffsetsCount(); i++) {
+                    columnsBuilder.addPartOffsets(chunk.getPartOffsets(i) + coordinateBase);
+                }
+                break;
+        }
+
+        // geometries without z read back a z of 0, as the encoder writes them
+        boolean hasZ = columnsBuilder.getZCount() > 0 || (coordinateBase == 0 && chunk.getZCount() > 0);
+        if (hasZ) {
+            if (chunk.getZCount() > 0) {
+                columnsBuilder.addAllZ(chunk.getZList());
+            } else {
+                for (int i = 0; i < chunk.getXCount(); i++) {
+                    columnsBuilder.addZ(0);
+                }
+            }
+        }
+        columnsBuilder.addAllX(chunk.getXList()).addAllY(chunk.getYList());
+    }
+
+    private static ColumnGeometryType __columnType(Geometry geometry) {
+        switch (geometry.getType()) {
+            case Point:
+                return ColumnGeometryType.column_point;
+            case MultiPoint:
+                return ColumnGeometryType.column_multipoint;
+            case Polyline:
+                return ColumnGeometryType.column_polyline;
+            case Polygon:
+                return ColumnGeometryType.column_polygon;
+            default:
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("columns can't hold a " + geometry.getType())
+                        .asRuntimeException();
+        }
+    }
+
+    private static void __addCoordinate(GeometryColumns.Builder columnsBuilder,
+                                        MultiVertexGeometry geometry,
+                                        int index,
+                                        boolean hasZ,
+                                        Point2D xy) {
+        geometry.getXY(index, xy);
+        columnsBuilder.addX(xy.x).addY(xy.y);
+        if (hasZ) {
+            columnsBuilder.addZ(geometry instanceof MultiPath ?
+                    ((MultiPath) geometry).getAttributeAsDbl(VertexDescription.Semantics.Z, index, 0) :
+                    ((MultiPoint) geometry).getAttributeAsDbl(VertexDescription.Semantics.Z, index, 0));
+        }
+    }
+
+    /**
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the arrays don't fit together
+     */
+    static void validate(GeometryColumns columns) {
+        int coordinateCount = columns.getXCount();
+        if (columns.getYCount() != coordinateCount || (columns.getZCount() != 0 && columns.getZCount() != coordinateCount)) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("columns need as many y values, and z values if any, as x values")
+                    .asRuntimeException();
+        }
+        switch (columns.getGeometryType()) {
+            case column_point:
+                break;
+            case column_multipoint:
+                __validateOffsets(columns::getGeometryOffsets, columns.getGeometryOffsetsCount(), "geometry_offsets", coordinateCount);
+                break;
+            case column_polyline:
+            case column_polygon:
+                __validateOffsets(columns::getPartOffsets, columns.getPartOffsetsCount(), "part_offsets", coordinateCount);
+                __validateOffsets(columns::getGeometryOffsets, columns.getGeometryOffsetsCount(), "geometry_offsets", Math.max(0, columns.getPartOffsetsCount() - 1));
+                break;
+            default:
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("unknown columns geometry type " + columns.getGeometryType())
+                        .asRuntimeException();
+        }
+    }
+
+    // offsets start at 0, never decrease and end at size, or are missing when there is nothing to index
+    private static void __validateOffsets(IntUnaryOperator offsets, int count, String name, int size) {
+        if (count == 0 && size == 0) {
+            return;
+        }
+        boolean valid = count > 0 && offsets.applyAsInt(0) == 0 && offsets.applyAsInt(count - 1) == size;
+        for (int i = 1; valid && i < count; i++) {
+            valid = offsets.applyAsInt(i) >= offsets.applyAsInt(i - 1);
+        }
+        if (!valid) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("columns " + name + " must start at 0, never decrease and end at " + size)
+                    .asRuntimeException();
+        }
+    }
+
+    private static Point __point(GeometryColumns columns, int index, boolean hasZ) {
+        double x = columns.getX(index);
+        double y = columns.getY(index);
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            return new Point();
+        }
+        return hasZ ? new Point(x, y, columns.getZ(index)) : new Point(x, y);
+    }
+
+    private static MultiPoint __multiPoint(GeometryColumns columns, int geometry, boolean hasZ) {
+        MultiPoint multiPoint = new MultiPoint();
+        int start = columns.getGeometryOffsets(geometry);
+        int end = columns.getGeometryOffsets(geometry + 1);
+        for (int i = start; i < end; i++) {
+            multiPoint.add(columns.getX(i), columns.getY(i));
+        }
+        if (hasZ) {
+            __setZ(multiPoint, columns, start);
+        }
+        return multiPoint;
+    }
+
+    private static MultiPath __multiPath(MultiPath multiPath, GeometryColumns columns, int geometry, boolean hasZ) {
+        for (int part = columns.getGeometryOffsets(geometry); part < columns.getGeometryOffsets(geometry + 1); part++) {
+            int start = columns.getPartOffsets(part);
+            int end = columns.getPartOffsets(part + 1);
+            for (int i = start; i < end; i++) {
+                if (i == start) {
+                    multiPath.startPath(columns.getX(i), columns.getY(i));
+                } else {
+                    multiPath.lineTo(columns.getX(i), columns.getY(i));
+                }
+            }
+        }
+        if (hasZ && !multiPath.isEmpty()) {
+            __setZ(multiPath, columns, columns.getPartOffsets(columns.getGeometryOffsets(geometry)));
+        }
+        return multiPath;
+    }
+
+    // the z values of geometry's vertices, which start at coordinate first of columns
+    private static void __setZ(MultiVertexGeometry geometry, GeometryColumns columns, int first) {
+        geometry.addAttribute(VertexDescription.Semantics.Z);
+        for (int i = 0; i < geometry.getPointCount(); i++) {
+            if (geometry instanceof MultiPath) {
+                ((MultiPath) geometry).setAttribute(VertexDescription.Semantics.Z, i, 0, columns.getZ(first + i));
+            } else {
+                ((MultiPoint) geometry).setAttribute(VertexDescription.Semantics.Z, i, 0, columns.getZ(first + i));
+            }
+        }
+    }
+}
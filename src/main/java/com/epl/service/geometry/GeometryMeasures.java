@@ -0,0 +1,146 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Per geometry measures for the bulk measure operators, and a helper that computes one for every geometry of a bag on
+ * the worker pool.
+ * <p>
+ * The geodetic measures work on the WGS84 ellipsoid from geometries in longitude and latitude (wkid 4326).
+ */
+class GeometryMeasures {
+    // below this many geometries handing the work to the pool costs more than it saves
+    static final int PARALLEL_THRESHOLD = 512;
+
+    // WGS84
+    private static final double SEMI_MAJOR_AXIS = 6378137.0;
+    private static final double ECCENTRICITY_SQUARED = 0.00669437999014;
+    private static final double ECCENTRICITY = Math.sqrt(ECCENTRICITY_SQUARED);
+    private static final double AUTHALIC_Q_POLE = __authalicQ(1);
+    private static final double AUTHALIC_RADIUS = SEMI_MAJOR_AXIS * Math.sqrt(AUTHALIC_Q_POLE / 2);
+
+    /**
+     * measure(i) for every i in [0, count), in parallel on workerPool when count is large enough to be worth it.
+     */
+    static double[] compute(int count, IntToDoubleFunction measure, ForkJoinPool workerPool, ProgressTracker progressTracker) {
+        double[] measures = new double[count];
+        if (count < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < count; i++) {
+                ProgressTracker.checkAndThrow(progressTracker);
+                measures[i] = measure.applyAsDouble(i);
+            }
+            return measures;
+        }
+
+        // a parallel stream started from inside a pool splits its work over that pool rather than the common pool
+        workerPool.submit(() -> IntStream.range(0, count).parallel().forEach(i -> {
+            ProgressTracker.checkAndThrow(progressTracker);
+            measures[i] = measure.applyAsDouble(i);
+        })).join();
+        return measures;
+    }
+
+    /**
+     * Length of the boundary of an area or the paths of a line along the geodesics between its vertices, in meters.
+     */
+    static double geodesicLength(Geometry geometry) {
+        MultiPath multiPath = __multiPath(geometry);
+        if (multiPath == null) {
+            return 0;
+        }
+
+        double length = 0;
+        Point from = new Point();
+        Point to = new Point();
+        for (int path = 0; path < multiPath.getPathCount(); path++) {
+            int start = multiPath.getPathStart(path);
+            int end = multiPath.getPathEnd(path);
+            for (int i = start; i < end - 1; i++) {
+                multiPath.getPoint(i, from);
+                multiPath.getPoint(i + 1, to);
+                length += GeometryEngine.geodesicDistanceOnWGS84(from, to);
+            }
+            if (end - start > 1 && multiPath.isClosedPath(path)) {
+                multiPath.getPoint(end - 1, from);
+                multiPath.getPoint(start, to);
+                length += GeometryEngine.geodesicDistanceOnWGS84(from, to);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Area of a polygon on the ellipsoid, in square meters. The area is exact for rings whose edges are straight in the
+     * cylindrical equal area projection, and within a small fraction of the geodesic area for edges that are short
+     * compared to their distance from the poles.
+     */
+    static double geodeticArea(Geometry geometry) {
+        MultiPath multiPath = __multiPath(geometry);
+        if (multiPath == null || !(multiPath instanceof Polygon)) {
+            return 0;
+        }
+
+        // shoelace in the projection, rings are signed by orientation so holes subtract themselves
+        double area = 0;
+        Point2D from = new Point2D();
+        Point2D to = new Point2D();
+        for (int path = 0; path < multiPath.getPathCount(); path++) {
+            int start = multiPath.getPathStart(path);
+            int end = multiPath.getPathEnd(path);
+            for (int i = start; i < end; i++) {
+                multiPath.getXY(i, from);
+                multiPath.getXY(i + 1 < end ? i + 1 : start, to);
+                double fromY = __authalicQ(Math.sin(Math.toRadians(from.y))) / AUTHALIC_Q_POLE;
+                double toY = __authalicQ(Math.sin(Math.toRadians(to.y))) / AUTHALIC_Q_POLE;
+                area += Math.toRadians(to.x - from.x) * (fromY + toY) / 2;
+            }
+        }
+        return Math.abs(area) * AUTHALIC_RADIUS * AUTHALIC_RADIUS;
+    }
+
+    private static MultiPath __multiPath(Geometry geometry) {
+        if (geometry.isEmpty()) {
+            return null;
+        }
+        if (geometry instanceof MultiPath) {
+            return (MultiPath) geometry;
+        }
+        if (geometry.getType() == Geometry.Type.Envelope) {
+            Polygon polygon = new Polygon();
+            polygon.addEnvelope((Envelope) geometry, false);
+            return polygon;
+        }
+        return null;
+    }
+
+    // q of the authalic latitude for the sine of a geodetic latitude
+    private static double __authalicQ(double sinLatitude) {
+        double eSin = ECCENTRICITY * sinLatitude;
+        return (1 - ECCENTRICITY_SQUARED) * (sinLatitude / (1 - eSin * eSin) -
+                Math.log((1 - eSin) / (1 + eSin)) / (2 * ECCENTRICITY));
+    }
+}
@@ -27,6 +27,7 @@ import com.esri.core.geometry.*;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.ClientCallStreamObserver;
@@ -195,7 +196,8 @@ public class GeometryOperatorsClient {
                                 if (shapefileByteReader.hasNext()) {
                                     byte[] data = shapefileByteReader.next();
                                     int id = shapefileByteReader.getGeometryID();
-                                    ByteString byteString = ByteString.copyFrom(data);
+                                    // the reader returns a new array for every record, so it can be wrapped without a copy
+                                    ByteString byteString = UnsafeByteOperations.unsafeWrap(data);
 //                                    logger.info("bytes length -->" + data.length);
 
                                     GeometryBagData geometryBag = geometryBagBuilder
@@ -22,13 +22,14 @@ package com.epl.service.geometry;
 
 import io.grpc.*;
 import io.grpc.netty.NettyServerBuilder;
-import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.LinkedList;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -44,6 +45,11 @@ public class GeometryOperatorsServer {
     // io.grpc.Server
     private final Server server;
 
+    private final ExecutionSettings executionSettings;
+
+    // null unless GEOMETRY_METRICS_PORT is set
+    private final MetricsEndpoint metricsEndpoint;
+
     private final LinkedList<ManagedChannel> fakeOobChannels = new LinkedList<ManagedChannel>();
 
     /**
@@ -56,16 +62,46 @@ public class GeometryOperatorsServer {
         // TODO add a test to check data size can handle 2 gigs
         // maxInboundMessageSize
         // https://github.com/grpc/grpc-java/blob/master/SECURITY.md
+        // GEOMETRY_MAX_MESSAGE_BYTES lowers the limit, requests under it are still subject to admission control
         this(NettyServerBuilder
                 .forPort(port)
-                .maxMessageSize(2147483647), port);
+                .maxMessageSize(__maxMessageSize()), port);
+    }
+
+    private static int __maxMessageSize() {
+        String value = System.getenv("GEOMETRY_MAX_MESSAGE_BYTES");
+        if (value != null) {
+            try {
+                int maxMessageSize = Integer.parseInt(value.trim());
+                if (maxMessageSize > 0) {
+                    return maxMessageSize;
+                }
+            } catch (NumberFormatException e) {
+                logger.log(Level.WARNING, "ignoring GEOMETRY_MAX_MESSAGE_BYTES : ".concat(value));
+            }
+        }
+        return 2147483647;
     }
 
     /**
      * Create a GeometryOperators server using serverBuilder as a base and features as data.
      */
     public GeometryOperatorsServer(ServerBuilder<?> serverBuilder, int port) {
+        this(serverBuilder, port, ExecutionSettings.fromEnvironment());
+    }
+
+    /**
+     * Create a GeometryOperators server using serverBuilder as a base and executionSettings for the worker pool and
+     * stream windows.
+     */
+    GeometryOperatorsServer(ServerBuilder<?> serverBuilder, int port, ExecutionSettings executionSettings) {
         this.port = port;
+        this.executionSettings = executionSettings;
+        try {
+            this.metricsEndpoint = MetricsEndpoint.fromEnvironment(executionSettings);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not open the metrics port", e);
+        }
 
         // try adding security
         String chainPath = System.getenv("GRPC_CHAIN");
@@ -79,7 +115,14 @@ public class GeometryOperatorsServer {
             }
         }
 
-        server = serverBuilder.addService(new GeometryOperatorsService()).build();
+        server = serverBuilder
+                .addService(ServerInterceptors.intercept(
+                        new GeometryOperatorsService(),
+                        new ExecutionSettings.Interceptor(executionSettings),
+                        new RequestTrace.Interceptor(),
+                        // last so that it is outermost and sees every call
+                        new MetricsInterceptor()))
+                .build();
     }
 
     /**
@@ -88,6 +131,9 @@ public class GeometryOperatorsServer {
     public void start() throws IOException {
         server.start();
         logger.info("Server started, listening on " + port);
+        if (metricsEndpoint != null) {
+            metricsEndpoint.start();
+        }
         logger.info("server name" + System.getenv("MY_NODE_NAME"));
         logger.info("server name" + System.getenv("MY_POD_NAME"));
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -108,6 +154,10 @@ public class GeometryOperatorsServer {
         if (server != null) {
             server.shutdown();
         }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        executionSettings.workerPool.shutdown();
     }
 
     /**
@@ -134,103 +184,38 @@ public class GeometryOperatorsServer {
      * <p>See route_guide.proto for details of the methods.
      */
     private static class GeometryOperatorsService extends GeometryOperatorsGrpc.GeometryOperatorsImplBase {
+        // file readers block waiting for chunks, so they get their own threads rather than the worker pool
+        private final ExecutorService fileReaderPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "geometry-file-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
 
+        @Override
+        public StreamObserver<FileChunk> streamFileOperations(StreamObserver<OperatorResult> responseObserver) {
+            // records are decoded as the chunks arrive and results are sent in record order
+            return new FileChunkStreamObserver(responseObserver, ExecutionSettings.current(), fileReaderPool, this::__executeOperator);
+        }
 
         @Override
         public StreamObserver<OperatorRequest> streamOperationsEx(StreamObserver<OperatorResult> responseObserver) {
-
-            return new StreamObserver<OperatorRequest>() {
-                @Override
-                public void onNext(OperatorRequest value) {
-                    try {
-                        __executeOperator(value);
-                    } catch (Throwable throwable) {
-                        responseObserver.onError(Status.UNKNOWN.withDescription("Error handling request").withCause(throwable).asException());
-                    }
-                }
-
-                @Override
-                public void onError(Throwable throwable) {
-                    logger.info("ERROR");
-                    responseObserver.onCompleted();
-                }
-
-                @Override
-                public void onCompleted() {
-                    // Signal the end of work when the client ends the request stream.
-                    logger.info("COMPLETED");
-                    responseObserver.onCompleted();
-                }
-            };
+            // requests fan out over the worker pool and each result is sent as soon as it is done. results carry the
+            // input geometry ids so the client can match them up with what it sent
+            return new OperatorStreamWindow(responseObserver, ExecutionSettings.current(), false,
+                    operatorRequest -> GeometryOperatorsUtil.tagInputGeometryIds(operatorRequest, __executeOperator(operatorRequest)));
         }
 
         @Override
         public StreamObserver<OperatorRequest> streamOperations(StreamObserver<OperatorResult> responseObserver) {
-            // Set up manual flow control for the request stream. It feels backwards to configure the request
-            // stream's flow control using the response stream's observer, but this is the way it is.
-            final ServerCallStreamObserver<OperatorResult> serverCallStreamObserver =
-                    (ServerCallStreamObserver<OperatorResult>) responseObserver;
-            serverCallStreamObserver.disableAutoInboundFlowControl();
-
-            // Guard against spurious onReady() calls caused by a race between onNext() and onReady(). If the transport
-            // toggles isReady() from false to true while onNext() is executing, but before onNext() checks isReady(),
-            // request(1) would be called twice - once by onNext() and once by the onReady() scheduled during onNext()'s
-            // execution.
-            final AtomicBoolean wasReady = new AtomicBoolean(false);
-
-            serverCallStreamObserver.setOnReadyHandler(() -> {
-                if (serverCallStreamObserver.isReady() && wasReady.compareAndSet(false, true)) {
-//                    logger.info("READY");
-                    // Signal the request sender to send one message. This happens when isReady() turns true, signaling that
-                    // the receive buffer has enough free space to receive more messages. Calling request() serves to prime
-                    // the message pump.
-                    serverCallStreamObserver.request(1);
-                }
-            });
-
-            return new StreamObserver<OperatorRequest>() {
-                @Override
-                public void onNext(OperatorRequest value) {
-                    // Process the request and send a response or an error.
-                    try {
-                        // Accept and enqueue the request.
-                        responseObserver.onNext(__executeOperator(value));
-
-                        // Check the provided ServerCallStreamObserver to see if it is still ready to accept more messages.
-                        if (serverCallStreamObserver.isReady()) {
-                            // Signal the sender to send another request. As long as isReady() stays true, the server will keep
-                            // cycling through the loop of onNext() -> request()...onNext() -> request()... until either the client
-                            // runs out of messages and ends the loop or the server runs out of receive buffer space.
-                            //
-                            // If the server runs out of buffer space, isReady() will turn false. When the receive buffer has
-                            // sufficiently drained, isReady() will turn true, and the serverCallStreamObserver's onReadyHandler
-                            // will be called to restart the message pump.
-                            serverCallStreamObserver.request(1);
-                        } else {
-                            // If not, note that back-pressure has begun.
-                            wasReady.set(false);
-                        }
-                    } catch (Throwable throwable) {
-                        throwable.printStackTrace();
-                        responseObserver.onError(
-                                Status.UNKNOWN.withDescription("Error handling request").withCause(throwable).asException());
-                    }
-                }
-
-                @Override
-                public void onError(Throwable t) {
-                    // End the response stream if the client presents an error.
-                    t.printStackTrace();
-                    responseObserver.onCompleted();
-                }
+            // requests run concurrently on the worker pool, within the call's window, and results are sent in the
+            // order the requests arrived
+            return new OperatorStreamWindow(responseObserver, ExecutionSettings.current(), true, this::__executeOperator);
+        }
 
-                @Override
-                public void onCompleted() {
-                    // Signal the end of work when the client ends the request stream.
-                    logger.info("COMPLETED");
-                    responseObserver.onCompleted();
-                }
-            };
+        @Override
+        public StreamObserver<OperatorRequest> aggregateOperations(StreamObserver<OperatorResult> responseObserver) {
+            // each request is folded into the running aggregate as it arrives, the result is sent on completion
+            return new StreamAggregate(responseObserver, ExecutionSettings.current());
         }
 
         @Override
@@ -246,6 +231,13 @@ public class GeometryOperatorsServer {
                 StatusRuntimeException s = new StatusRuntimeException(Status.fromThrowable(sre));
                 responseObserver.onError(s.getStatus().withDescription("executeOperation error : ".concat(sre.getMessage())).asRuntimeException());
             } catch (Throwable t) {
+                // the operator gave up because the call went away, report why instead of the operator's exception
+                Status cancelled = ContextProgressTracker.cancelledStatus(Context.current());
+                if (cancelled != null) {
+                    logger.log(Level.INFO, "executeOperation stopped : ".concat(cancelled.getCode().toString()));
+                    responseObserver.onError(cancelled.asRuntimeException());
+                    return;
+                }
                 logger.log(Level.WARNING, "executeOperation error : ".concat(t.toString()));
                 StatusRuntimeException s = new StatusRuntimeException(Status.fromThrowable(t));
                 responseObserver.onError(s.getStatus().withDescription("executeOperation error : ".concat(t.toString())).asRuntimeException());
@@ -253,8 +245,82 @@ public class GeometryOperatorsServer {
             }
         }
 
+        @Override
+        public void registerGeometryBag(GeometryBagRegistration request, StreamObserver<GeometryBagHandle> responseObserver) {
+            ExecutionSettings settings = ExecutionSettings.current();
+            try (AdmissionController.Permit permit = settings.admission.admit(request.getGeometryBag())) {
+                GeometryRegistry.Entry entry = settings.registry.register(request.getGeometryBag(), request.getTtlSeconds());
+                responseObserver.onNext(GeometryBagHandle.newBuilder()
+                        .setHandle(entry.handle)
+                        .setGeometryCount(entry.geometries.size())
+                        .setMemoryBytes(entry.memoryBytes)
+                        .setTtlSeconds(TimeUnit.NANOSECONDS.toSeconds(entry.ttlNanos))
+                        .build());
+                responseObserver.onCompleted();
+            } catch (StatusRuntimeException sre) {
+                logger.log(Level.WARNING, "registerGeometryBag error : ".concat(sre.getMessage()));
+                responseObserver.onError(sre);
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "registerGeometryBag error : ".concat(t.toString()));
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("registerGeometryBag error : ".concat(t.toString())).asRuntimeException());
+            }
+        }
+
+        @Override
+        public void releaseGeometryBag(GeometryBagHandle request, StreamObserver<GeometryBagHandle> responseObserver) {
+            if (!ExecutionSettings.current().registry.release(request.getHandle())) {
+                responseObserver.onError(Status.NOT_FOUND.withDescription("no geometry bag registered as " + request.getHandle()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(GeometryBagHandle.newBuilder().setHandle(request.getHandle()).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void spatialJoin(OperatorRequest request, StreamObserver<SpatialJoinResult> responseObserver) {
+            // the inputs are loaded and indexed on this thread, the pairs are tested and sent from the worker pool
+            try {
+                SpatialJoin.start(request, ExecutionSettings.current(), responseObserver);
+            } catch (StatusRuntimeException sre) {
+                logger.log(Level.WARNING, "spatialJoin error : ".concat(sre.getMessage()));
+                responseObserver.onError(sre);
+            } catch (Throwable t) {
+                Status cancelled = ContextProgressTracker.cancelledStatus(Context.current());
+                if (cancelled != null) {
+                    logger.log(Level.INFO, "spatialJoin stopped : ".concat(cancelled.getCode().toString()));
+                    responseObserver.onError(cancelled.asRuntimeException());
+                    return;
+                }
+                logger.log(Level.WARNING, "spatialJoin error : ".concat(t.toString()));
+                responseObserver.onError(Status.fromThrowable(t).withDescription("spatialJoin error : ".concat(t.toString())).asRuntimeException());
+            }
+        }
+
+        @Override
+        public void vectorTiles(OperatorRequest request, StreamObserver<VectorTile> responseObserver) {
+            // the geometries are loaded and indexed on this thread, the tiles are made and sent from the worker pool
+            try {
+                VectorTiles.start(request, ExecutionSettings.current(), responseObserver);
+            } catch (StatusRuntimeException sre) {
+                logger.log(Level.WARNING, "vectorTiles error : ".concat(sre.getMessage()));
+                responseObserver.onError(sre);
+            } catch (Throwable t) {
+                Status cancelled = ContextProgressTracker.cancelledStatus(Context.current());
+                if (cancelled != null) {
+                    logger.log(Level.INFO, "vectorTiles stopped : ".concat(cancelled.getCode().toString()));
+                    responseObserver.onError(cancelled.asRuntimeException());
+                    return;
+                }
+                logger.log(Level.WARNING, "vectorTiles error : ".concat(t.toString()));
+                responseObserver.onError(Status.fromThrowable(t).withDescription("vectorTiles error : ".concat(t.toString())).asRuntimeException());
+            }
+        }
+
         private OperatorResult __executeOperator(OperatorRequest serviceOperator) throws IOException {
-            return GeometryOperatorsUtil.initExecuteOperatorEx(serviceOperator);
+            // waits for, or is refused, the cpu and memory the request is estimated to need
+            try (AdmissionController.Permit permit = ExecutionSettings.current().admission.admit(serviceOperator)) {
+                return GeometryOperatorsUtil.initExecuteOperatorEx(serviceOperator);
+            }
         }
     }
 }
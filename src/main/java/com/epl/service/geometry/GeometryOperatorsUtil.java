@@ -21,14 +21,17 @@ email: info@echoparklabs.io
 package com.epl.service.geometry;
 
 import com.esri.core.geometry.*;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
 
+import com.google.common.primitives.Doubles;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntToDoubleFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -128,6 +131,8 @@ class SpatialReferenceGroup {
             leftSR = GeometryOperatorsUtil.__extractSpatialReference(operatorRequest.getLeftGeometryBag());
         } else if (operatorRequest.hasGeometryBag() && operatorRequest.getGeometryBag().hasSpatialReference()) {
             leftSR = GeometryOperatorsUtil.__extractSpatialReference(operatorRequest.getGeometryBag());
+        } else if (!operatorRequest.getLeftGeometryHandle().isEmpty()) {
+            leftSR = GeometryOperatorsUtil.__registeredGeometries(operatorRequest.getLeftGeometryHandle()).spatialReference;
         } else if (operatorRequest.hasLeftGeometryRequest()) {
             leftSR = GeometryOperatorsUtil.__extractSpatialReferenceCursor(operatorRequest.getLeftGeometryRequest());
         } else {
@@ -137,6 +142,8 @@ class SpatialReferenceGroup {
 
         if (operatorRequest.hasRightGeometryBag() && operatorRequest.getRightGeometryBag().hasSpatialReference()) {
             rightSR = GeometryOperatorsUtil.__extractSpatialReference(operatorRequest.getRightGeometryBag());
+        } else if (!operatorRequest.getRightGeometryHandle().isEmpty()) {
+            rightSR = GeometryOperatorsUtil.__registeredGeometries(operatorRequest.getRightGeometryHandle()).spatialReference;
         } else if (operatorRequest.hasRightGeometryRequest()){
             rightSR = GeometryOperatorsUtil.__extractSpatialReferenceCursor(operatorRequest.getRightGeometryRequest());
         }
@@ -148,15 +155,18 @@ class SpatialReferenceGroup {
             operatorSR = leftSR;
         }
 
+        boolean hasRight = operatorRequest.hasRightGeometryBag() ||
+                operatorRequest.hasRightGeometryRequest() ||
+                !operatorRequest.getRightGeometryHandle().isEmpty();
         if (leftSR == null) {
             leftSR = operatorSR;
-            if (rightSR == null && (operatorRequest.hasRightGeometryBag() || operatorRequest.hasRightGeometryRequest())) {
+            if (rightSR == null && hasRight) {
                 rightSR = operatorSR;
             }
         }
 
         // TODO improve geometry to work with local spatial references. This is super ugly as it stands
-        if ((operatorRequest.hasRightGeometryRequest() || operatorRequest.hasRightGeometryBag()) &&
+        if (hasRight &&
                 ((leftSR != null && rightSR == null) ||
                         (leftSR == null && rightSR != null))) {
             throw new IllegalArgumentException("either both spatial references are local or neither");
@@ -169,10 +179,16 @@ class SpatialReferenceGroup {
     }
 }
 
+/**
+ * Wraps the buffers of an export cursor as ByteStrings without copying them. The export cursors allocate a new buffer
+ * for every geometry and never touch it again, so handing it to protobuf is safe.
+ */
 class ByteStringIterable implements Iterable<com.google.protobuf.ByteString> {
     ByteBufferCursor m_byteBufferCursor;
-    ByteStringIterable(ByteBufferCursor byteBufferCursor) {
+    ProgressTracker m_progressTracker;
+    ByteStringIterable(ByteBufferCursor byteBufferCursor, ProgressTracker progressTracker) {
         m_byteBufferCursor = byteBufferCursor;
+        m_progressTracker = progressTracker;
     }
 
     @Override
@@ -185,7 +201,9 @@ class ByteStringIterable implements Iterable<com.google.protobuf.ByteString> {
 
             @Override
             public ByteString next() {
-                return ByteString.copyFrom(m_byteBufferCursor.next());
+                // stop between geometries as well as inside the operators
+                ProgressTracker.checkAndThrow(m_progressTracker);
+                return UnsafeByteOperations.unsafeWrap(m_byteBufferCursor.next());
             }
         };
     }
@@ -193,8 +211,10 @@ class ByteStringIterable implements Iterable<com.google.protobuf.ByteString> {
 
 class StringIterable implements Iterable<String> {
     private StringCursor m_stringCursor;
-    StringIterable(StringCursor stringCursor) {
+    private ProgressTracker m_progressTracker;
+    StringIterable(StringCursor stringCursor, ProgressTracker progressTracker) {
         m_stringCursor = stringCursor;
+        m_progressTracker = progressTracker;
     }
 
 
@@ -208,6 +228,7 @@ class StringIterable implements Iterable<String> {
 
             @Override
             public String next() {
+                ProgressTracker.checkAndThrow(m_progressTracker);
                 return m_stringCursor.next();
             }
         };
@@ -215,7 +236,10 @@ class StringIterable implements Iterable<String> {
 }
 
 public class GeometryOperatorsUtil {
-    private static GeometryBagData __encodeGeometry(GeometryCursor geometryCursor, OperatorRequest operatorRequest, GeometryEncodingType encodingType) {
+    protected static GeometryBagData __encodeGeometry(GeometryCursor geometryCursor,
+                                                      OperatorRequest operatorRequest,
+                                                      GeometryEncodingType encodingType,
+                                                      ProgressTracker progressTracker) {
         GeometryBagData.Builder geometryBagBuilder = GeometryBagData.newBuilder();
 
 
@@ -232,26 +256,35 @@ public class GeometryOperatorsUtil {
         StringIterable stringIterable;
         switch (encodingType) {
             case wkb:
-                binaryStringIterable = new ByteStringIterable(new OperatorExportToWkbCursor(0, geometryCursor));
+                binaryStringIterable = new ByteStringIterable(new OperatorExportToWkbCursor(0, geometryCursor), progressTracker);
                 geometryBagBuilder.addAllWkb(binaryStringIterable);
                 break;
             case wkt:
-                stringIterable = new StringIterable(new OperatorExportToWktCursor(0, geometryCursor, null));
-                geometryBagBuilder.addAllWkt(stringIterable);
+                GeometryTextWriter.writeWkt(geometryCursor, GeometryTextWriter.decimalDigits(operatorRequest), geometryBagBuilder::addWktBytes, progressTracker);
                 break;
             case esrishape:
-                binaryStringIterable = new ByteStringIterable(new OperatorExportToESRIShapeCursor(0, geometryCursor));
+                binaryStringIterable = new ByteStringIterable(new OperatorExportToESRIShapeCursor(0, geometryCursor), progressTracker);
                 geometryBagBuilder.addAllEsriShape(binaryStringIterable);
                 break;
             case geojson:
                 //TODO I'm just blindly setting the spatial reference here instead of projecting the resultSR into the spatial reference
                 // TODO add Spatial reference
-                stringIterable = new StringIterable(new OperatorExportToGeoJsonCursor(GeoJsonExportFlags.geoJsonExportSkipCRS, null, geometryCursor));
-                geometryBagBuilder.addAllGeojson(stringIterable);
+                GeometryTextWriter.writeGeoJson(geometryCursor, GeometryTextWriter.decimalDigits(operatorRequest), geometryBagBuilder::addGeojsonBytes, progressTracker);
+                break;
             case esrijson:
-                stringIterable = new StringIterable(new OperatorExportToJsonCursor(null, geometryCursor));
+                stringIterable = new StringIterable(new OperatorExportToJsonCursor(null, geometryCursor), progressTracker);
                 geometryBagBuilder.addAllEsriJson(stringIterable);
                 break;
+            case twkb:
+                int precision = operatorRequest.hasTwkbParams() ? operatorRequest.getTwkbParams().getPrecision() : Twkb.DEFAULT_PRECISION;
+                geometryBagBuilder.addAllTwkb(Twkb.exportIterable(geometryCursor, precision, operatorRequest.getTwkbParams().getIncludeBbox(), progressTracker));
+                break;
+            case columns:
+                geometryBagBuilder.setColumns(GeometryColumnsCodec.encode(geometryCursor, progressTracker));
+                break;
+            case arrow:
+                geometryBagBuilder.setArrow(ArrowIpc.encode(geometryCursor, __inputGeometryIds(operatorRequest), progressTracker));
+                break;
         }
 
         //TODO I'm just blindly setting the spatial reference here instead of projecting the resultSR into the spatial reference
@@ -262,55 +295,62 @@ public class GeometryOperatorsUtil {
         // TODO There needs to be better tracking of geometry id throughout process
         // the only way that input geometry ids should be carried onto the result is if the input is not a left geometry, but just a geometry
         if (operatorRequest.hasGeometryBag()) {
-            geometryBagBuilder.addAllGeometryIds(operatorRequest.getGeometryBag().getGeometryIdsList());
+            geometryBagBuilder.addAllGeometryIds(__bagGeometryIds(operatorRequest.getGeometryBag()));
         }
 
         return geometryBagBuilder.build();
     }
 
 
-    private static GeometryCursor __getLeftGeometryRequestFromRequest(
+    protected static GeometryCursor __getLeftGeometryRequestFromRequest(
             OperatorRequest operatorRequest,
             GeometryCursor leftCursor,
-            SpatialReferenceGroup srGroup) throws IOException {
+            SpatialReferenceGroup srGroup,
+            ProgressTracker progressTracker) throws IOException {
         if (leftCursor == null) {
             if (operatorRequest.hasLeftGeometryBag()) {
-                leftCursor = __createGeometryCursor(operatorRequest.getLeftGeometryBag());
+                leftCursor = __time(__createGeometryCursor(operatorRequest.getLeftGeometryBag()), operatorRequest, OperatorMetrics.Stage.decode);
             } else if (operatorRequest.hasGeometryBag()) {
-                leftCursor = __createGeometryCursor(operatorRequest.getGeometryBag());
+                leftCursor = __time(__createGeometryCursor(operatorRequest.getGeometryBag()), operatorRequest, OperatorMetrics.Stage.decode);
+            } else if (!operatorRequest.getLeftGeometryHandle().isEmpty()) {
+                // already decoded
+                leftCursor = __registeredGeometries(operatorRequest.getLeftGeometryHandle()).cursor();
             } else if (operatorRequest.hasLeftGeometryRequest()) {
-                leftCursor = cursorFromRequest(operatorRequest.getLeftGeometryRequest(), null, null);
+                leftCursor = cursorFromRequest(operatorRequest.getLeftGeometryRequest(), null, null, progressTracker);
             } else {
                 // assumes there is always a nested request if none of the above worked
-                leftCursor = cursorFromRequest(operatorRequest.getGeometryRequest(), null, null);
+                leftCursor = cursorFromRequest(operatorRequest.getGeometryRequest(), null, null, progressTracker);
             }
         }
 
         // project left if needed
         if (srGroup.operatorSR != null && !srGroup.operatorSR.equals(srGroup.leftSR)) {
-            ProjectionTransformation projectionTransformation = new ProjectionTransformation(srGroup.leftSR, srGroup.operatorSR);
-            leftCursor = OperatorProject.local().execute(leftCursor, projectionTransformation, null);
+            ProjectionTransformation projectionTransformation = ProjectionTransformationCache.get(srGroup.leftSR, srGroup.operatorSR);
+            leftCursor = __time(OperatorProject.local().execute(leftCursor, projectionTransformation, progressTracker), operatorRequest, OperatorMetrics.Stage.project);
         }
 
         return leftCursor;
     }
 
-    private static GeometryCursor __getRightGeometryRequestFromRequest(
+    protected static GeometryCursor __getRightGeometryRequestFromRequest(
             OperatorRequest operatorRequest,
             GeometryCursor leftCursor,
             GeometryCursor rightCursor,
-            SpatialReferenceGroup srGroup) throws IOException {
+            SpatialReferenceGroup srGroup,
+            ProgressTracker progressTracker) throws IOException {
         if (leftCursor != null && rightCursor == null) {
             if (operatorRequest.hasRightGeometryBag()) {
-                rightCursor = __createGeometryCursor(operatorRequest.getRightGeometryBag());
+                rightCursor = __time(__createGeometryCursor(operatorRequest.getRightGeometryBag()), operatorRequest, OperatorMetrics.Stage.decode);
+            } else if (!operatorRequest.getRightGeometryHandle().isEmpty()) {
+                rightCursor = __registeredGeometries(operatorRequest.getRightGeometryHandle()).cursor();
             } else if (operatorRequest.hasRightGeometryRequest()) {
-                rightCursor = cursorFromRequest(operatorRequest.getRightGeometryRequest(), null, null);
+                rightCursor = cursorFromRequest(operatorRequest.getRightGeometryRequest(), null, null, progressTracker);
             }
         }
 
         if (rightCursor != null && srGroup.operatorSR != null && !srGroup.operatorSR.equals(srGroup.rightSR)) {
-            ProjectionTransformation projectionTransformation = new ProjectionTransformation(srGroup.rightSR, srGroup.operatorSR);
-            rightCursor = OperatorProject.local().execute(rightCursor, projectionTransformation, null);
+            ProjectionTransformation projectionTransformation = ProjectionTransformationCache.get(srGroup.rightSR, srGroup.operatorSR);
+            rightCursor = __time(OperatorProject.local().execute(rightCursor, projectionTransformation, progressTracker), operatorRequest, OperatorMetrics.Stage.project);
         }
         return rightCursor;
     }
@@ -319,17 +359,59 @@ public class GeometryOperatorsUtil {
             OperatorRequest operatorRequest,
             GeometryCursor leftCursor,
             GeometryCursor rightCursor) throws IOException {
+        return nonCursorFromRequest(operatorRequest, leftCursor, rightCursor, ContextProgressTracker.current());
+    }
+
+    public static OperatorResult nonCursorFromRequest(
+            OperatorRequest operatorRequest,
+            GeometryCursor leftCursor,
+            GeometryCursor rightCursor,
+            ProgressTracker progressTracker) throws IOException {
+        // a single left geometry that comes straight from a bag can be prepared once and shared across requests
+        GeometryBagData leftBag = null;
+        if (leftCursor == null) {
+            if (operatorRequest.hasLeftGeometryBag()) {
+                leftBag = operatorRequest.getLeftGeometryBag();
+            } else if (operatorRequest.hasGeometryBag()) {
+                leftBag = operatorRequest.getGeometryBag();
+            }
+        }
+
         SpatialReferenceGroup srGroup = new SpatialReferenceGroup(operatorRequest);
-        leftCursor = __getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, srGroup);
-        rightCursor = __getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, srGroup);
+        leftCursor = __getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, srGroup, progressTracker);
+        rightCursor = __getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, srGroup, progressTracker);
 
         OperatorResult.Builder operatorResultBuilder = OperatorResult.newBuilder();
-        Operator.Type operatorType = Operator.Type.valueOf(operatorRequest.getOperatorType().toString());
-        switch (operatorType) {
+        OperatorMetrics.Recorder recorder = OperatorMetrics.Recorder.current();
+        long saved = recorder == null ? 0 : recorder.enter();
+        long start = System.nanoTime();
+        try {
+            __nonCursorOperate(operatorRequest, leftBag, leftCursor, rightCursor, srGroup, progressTracker, operatorResultBuilder);
+        } finally {
+            if (recorder != null) {
+                recorder.stop(operatorRequest, OperatorMetrics.Stage.operate, start, saved);
+            }
+        }
+        return operatorResultBuilder.build();
+    }
+
+    private static void __nonCursorOperate(OperatorRequest operatorRequest,
+                                           GeometryBagData leftBag,
+                                           GeometryCursor leftCursor,
+                                           GeometryCursor rightCursor,
+                                           SpatialReferenceGroup srGroup,
+                                           ProgressTracker progressTracker,
+                                           OperatorResult.Builder operatorResultBuilder) {
+        switch (operatorRequest.getOperatorType()) {
             case Proximity2D:
+                __proximity(operatorRequest, leftCursor, rightCursor, srGroup, progressTracker, operatorResultBuilder);
                 break;
             case Relate:
-                boolean result = OperatorRelate.local().execute(leftCursor.next(), rightCursor.next(), srGroup.operatorSR, operatorRequest.getRelateParams().getDe9Im(), null);
+                if (operatorRequest.getRelateParams().getResultEncoding() != RelateResultEncoding.relate_map) {
+                    __relateBits(operatorRequest, leftCursor.next(), rightCursor, srGroup, progressTracker, operatorResultBuilder);
+                    break;
+                }
+                boolean result = OperatorRelate.local().execute(leftCursor.next(), rightCursor.next(), srGroup.operatorSR, operatorRequest.getRelateParams().getDe9Im(), progressTracker);
                 operatorResultBuilder.setSpatialRelationship(result);
                 break;
             case Equals:
@@ -340,7 +422,15 @@ public class GeometryOperatorsUtil {
             case Crosses:
             case Touches:
             case Overlaps:
-                HashMap<Integer, Boolean> result_map = ((OperatorSimpleRelation) OperatorFactoryLocal.getInstance().getOperator(operatorType)).execute(leftCursor.next(), rightCursor, srGroup.operatorSR, null);
+                Geometry leftGeometry = leftBag != null && __geometryCount(leftBag) == 1 ?
+                        PreparedGeometryCache.get(leftBag, leftCursor, srGroup.leftSR, srGroup.operatorSR) :
+                        leftCursor.next();
+                if (operatorRequest.getRelateParams().getResultEncoding() != RelateResultEncoding.relate_map) {
+                    __relateBits(operatorRequest, leftGeometry, rightCursor, srGroup, progressTracker, operatorResultBuilder);
+                    break;
+                }
+                Operator.Type operatorType = Operator.Type.valueOf(operatorRequest.getOperatorType().toString());
+                HashMap<Integer, Boolean> result_map = ((OperatorSimpleRelation) OperatorFactoryLocal.getInstance().getOperator(operatorType)).execute(leftGeometry, rightCursor, srGroup.operatorSR, progressTracker);
                 if (result_map.size() == 1) {
                     operatorResultBuilder.setSpatialRelationship(result_map.get(0));
                     operatorResultBuilder.putAllRelateMap(result_map);
@@ -349,25 +439,192 @@ public class GeometryOperatorsUtil {
                 }
                 break;
             case Distance:
-                operatorResultBuilder.setDistance(OperatorDistance.local().execute(leftCursor.next(), rightCursor.next(), null));
+            case Area:
+            case Length:
+            case GeodeticLength:
+            case GeodeticArea:
+                __measures(operatorRequest, leftCursor, rightCursor, srGroup, progressTracker, operatorResultBuilder);
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Relate leftGeometry to each right geometry into a bit per right geometry, without the boxed map the operators
+     * build for a cursor.
+     */
+    private static void __relateBits(OperatorRequest operatorRequest,
+                                     Geometry leftGeometry,
+                                     GeometryCursor rightCursor,
+                                     SpatialReferenceGroup srGroup,
+                                     ProgressTracker progressTracker,
+                                     OperatorResult.Builder operatorResultBuilder) {
+        String de9im = operatorRequest.getRelateParams().getDe9Im();
+        OperatorSimpleRelation simpleRelation = operatorRequest.getOperatorType() == ServiceOperatorType.Relate ? null :
+                (OperatorSimpleRelation) OperatorFactoryLocal.getInstance().getOperator(Operator.Type.valueOf(operatorRequest.getOperatorType().toString()));
+
+        BitSet bits = new BitSet();
+        int count = 0;
+        for (Geometry rightGeometry = rightCursor.next(); rightGeometry != null; rightGeometry = rightCursor.next(), count++) {
+            boolean related = simpleRelation == null ?
+                    OperatorRelate.local().execute(leftGeometry, rightGeometry, srGroup.operatorSR, de9im, progressTracker) :
+                    simpleRelation.execute(leftGeometry, rightGeometry, srGroup.operatorSR, progressTracker);
+            if (related) {
+                bits.set(count);
+            }
+        }
+
+        operatorResultBuilder
+                .setRelateBits(RelateBits.encode(bits, count, operatorRequest.getRelateParams().getResultEncoding()))
+                .setRelateCount(count);
+        if (count == 1) {
+            operatorResultBuilder.setSpatialRelationship(bits.get(0));
+        }
+    }
+
+    private static void __measures(OperatorRequest operatorRequest,
+                                   GeometryCursor leftCursor,
+                                   GeometryCursor rightCursor,
+                                   SpatialReferenceGroup srGroup,
+                                   ProgressTracker progressTracker,
+                                   OperatorResult.Builder operatorResultBuilder) {
+        ServiceOperatorType operatorType = operatorRequest.getOperatorType();
+        if (operatorType == ServiceOperatorType.GeodeticLength || operatorType == ServiceOperatorType.GeodeticArea) {
+            if (srGroup.operatorSR == null) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription(operatorType + " needs geometries with a spatial reference")
+                        .asRuntimeException();
+            }
+            // geodetic measures are taken from longitude and latitude
+            SpatialReference wgs84 = __extractSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326).build());
+            if (!srGroup.operatorSR.equals(wgs84)) {
+                ProjectionTransformation projectionTransformation = ProjectionTransformationCache.get(srGroup.operatorSR, wgs84);
+                leftCursor = __time(OperatorProject.local().execute(leftCursor, projectionTransformation, progressTracker), operatorRequest, OperatorMetrics.Stage.project);
+            }
+        }
+
+        List<Geometry> geometries = __collect(leftCursor);
+        IntToDoubleFunction measure;
+        switch (operatorType) {
+            case Area:
+                measure = i -> geometries.get(i).calculateArea2D();
+                break;
+            case Length:
+                measure = i -> geometries.get(i).calculateLength2D();
                 break;
             case GeodeticLength:
+                measure = i -> GeometryMeasures.geodesicLength(geometries.get(i));
                 break;
             case GeodeticArea:
+                measure = i -> GeometryMeasures.geodeticArea(geometries.get(i));
                 break;
             default:
-                throw new IllegalArgumentException();
+                // Distance, each left geometry to the right geometry at the same position, or to the only one
+                List<Geometry> others = rightCursor == null ? Collections.emptyList() : __collect(rightCursor);
+                if (others.size() != 1 && others.size() != geometries.size()) {
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("distance needs one right geometry, or one for each left geometry")
+                            .asRuntimeException();
+                }
+                measure = i -> OperatorDistance.local().execute(geometries.get(i), others.get(others.size() == 1 ? 0 : i), progressTracker);
+                break;
+        }
+
+        double[] measures = GeometryMeasures.compute(geometries.size(), measure, ExecutionSettings.current().workerPool, progressTracker);
+        operatorResultBuilder.addAllMeasures(Doubles.asList(measures));
+        if (operatorType == ServiceOperatorType.Distance && measures.length > 0) {
+            operatorResultBuilder.setDistance(measures[0]);
+        }
+        List<Long> geometryIds = __inputGeometryIds(operatorRequest);
+        if (geometryIds.size() == measures.length) {
+            operatorResultBuilder.getGeometryBagBuilder().addAllGeometryIds(geometryIds);
+        }
+    }
+
+    private static List<Geometry> __collect(GeometryCursor geometryCursor) {
+        List<Geometry> geometries = new ArrayList<>();
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            geometries.add(geometry);
+        }
+        return geometries;
+    }
+
+    private static void __proximity(OperatorRequest operatorRequest,
+                                    GeometryCursor leftCursor,
+                                    GeometryCursor rightCursor,
+                                    SpatialReferenceGroup srGroup,
+                                    ProgressTracker progressTracker,
+                                    OperatorResult.Builder operatorResultBuilder) {
+        ProximityParams proximityParams = operatorRequest.getProximityParams();
+        if (proximityParams.getGeodesic() && (srGroup.operatorSR == null || srGroup.operatorSR.getID() != 4326)) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("geodesic proximity needs geometries in wkid 4326")
+                    .asRuntimeException();
+        }
+        if (rightCursor == null) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("proximity needs a right geometry bag, request or handle")
+                    .asRuntimeException();
+        }
+        int k = proximityParams.getK() > 0 ? proximityParams.getK() : 1;
+
+        // a registered bag already has its index, unless it had to be projected
+        List<Geometry> candidates;
+        PackedRTree index;
+        if (!operatorRequest.getRightGeometryHandle().isEmpty() &&
+                (srGroup.operatorSR == null || srGroup.operatorSR.equals(srGroup.rightSR))) {
+            GeometryRegistry.Entry entry = __registeredGeometries(operatorRequest.getRightGeometryHandle());
+            candidates = entry.geometries;
+            index = entry.index;
+        } else {
+            candidates = __collect(rightCursor);
+            index = PackedRTree.fromGeometries(candidates);
+        }
+        List<Long> candidateIds = __inputRightGeometryIds(operatorRequest);
+        List<Long> queryIds = __inputGeometryIds(operatorRequest);
+
+        int position = 0;
+        for (Geometry query = leftCursor.next(); query != null; query = leftCursor.next(), position++) {
+            NearestNeighbors.Metric metric;
+            if (!proximityParams.getGeodesic()) {
+                metric = NearestNeighbors.planar(query, progressTracker);
+            } else if (query.getType() == Geometry.Type.Point) {
+                metric = NearestNeighbors.geodesic((Point) query);
+            } else {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("geodesic proximity is measured from points, not " + query.getType())
+                        .asRuntimeException();
+            }
+
+            ProximityResult.Builder proximityResultBuilder = ProximityResult.newBuilder()
+                    .setQueryId(position < queryIds.size() ? queryIds.get(position) : position);
+            if (!query.isEmpty()) {
+                for (NearestNeighbors.Neighbor neighbor : NearestNeighbors.search(index, candidates, metric, k, proximityParams.getMaxDistance(), progressTracker)) {
+                    proximityResultBuilder
+                            .addIds(candidateIds.size() == candidates.size() ? candidateIds.get(neighbor.item) : neighbor.item)
+                            .addDistances(neighbor.distance);
+                }
+            }
+            operatorResultBuilder.addProximityResults(proximityResultBuilder);
         }
-        return operatorResultBuilder.build();
     }
 
     public static GeometryCursor cursorFromRequest(
             OperatorRequest operatorRequest,
             GeometryCursor leftCursor,
             GeometryCursor rightCursor) throws IOException {
+        return cursorFromRequest(operatorRequest, leftCursor, rightCursor, ContextProgressTracker.current());
+    }
+
+    public static GeometryCursor cursorFromRequest(
+            OperatorRequest operatorRequest,
+            GeometryCursor leftCursor,
+            GeometryCursor rightCursor,
+            ProgressTracker progressTracker) throws IOException {
         SpatialReferenceGroup srGroup = new SpatialReferenceGroup(operatorRequest);
-        leftCursor = __getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, srGroup);
-        rightCursor = __getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, srGroup);
+        leftCursor = __getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, srGroup, progressTracker);
+        rightCursor = __getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, srGroup, progressTracker);
 
         GeometryCursor resultCursor = null;
         Operator.Type operatorType = Operator.Type.valueOf(operatorRequest.getOperatorType().toString());
@@ -390,7 +647,7 @@ public class GeometryOperatorsUtil {
                         maxDeviations,
                         false,
                         operatorRequest.getBufferParams().getUnionResult(),
-                        null);
+                        progressTracker);
                 break;
             case GeodeticDensifyByLength:
                 resultCursor = OperatorGeodeticDensifyByLength.local().execute(
@@ -398,7 +655,7 @@ public class GeometryOperatorsUtil {
                         srGroup.operatorSR,
                         operatorRequest.getDensifyParams().getMaxLength(),
                         0,
-                        null);
+                        progressTracker);
                 break;
             case ShapePreservingDensify:
                 break;
@@ -411,7 +668,7 @@ public class GeometryOperatorsUtil {
                             generalizeByAreaParams.getRemoveDegenerates(),
                             GeneralizeType.ResultContainsOriginal,
                             srGroup.operatorSR,
-                            null);
+                            progressTracker);
                 } else if (generalizeByAreaParams.getMaxPointCount() > 0) {
                     resultCursor = OperatorGeneralizeByArea.local().execute(
                             leftCursor,
@@ -419,7 +676,7 @@ public class GeometryOperatorsUtil {
                             generalizeByAreaParams.getMaxPointCount(),
                             GeneralizeType.ResultContainsOriginal,
                             srGroup.operatorSR,
-                            null);
+                            progressTracker);
                 } else {
                     // maybe a user passes a 0 for maxPoint count, which is impossible or 0 for percent reduced
                     // which means not reduced at all. so we just pass back the input
@@ -430,10 +687,10 @@ public class GeometryOperatorsUtil {
                 resultCursor = leftCursor;
                 break;
             case Union:
-                resultCursor = OperatorUnion.local().execute(leftCursor, srGroup.operatorSR, null);
+                resultCursor = ParallelUnion.execute(leftCursor, srGroup.operatorSR, ExecutionSettings.current().workerPool, progressTracker);
                 break;
             case Difference:
-                resultCursor = OperatorDifference.local().execute(leftCursor, rightCursor, srGroup.operatorSR, null);
+                resultCursor = OperatorDifference.local().execute(leftCursor, rightCursor, srGroup.operatorSR, progressTracker);
                 break;
             case Buffer:
                 // TODO clean this up
@@ -457,31 +714,31 @@ public class GeometryOperatorsUtil {
                                                               Double.NaN,
                                                               maxverticesFullCircle,
                                                               operatorRequest.getBufferParams().getUnionResult(),
-                                                              null);
+                                                              progressTracker);
 
                 break;
             case Intersection:
                 // TODO hasIntersectionDimensionMask needs to be automagically generated
                 if (operatorRequest.hasIntersectionParams() && operatorRequest.getIntersectionParams().getDimensionMask() != 0)
-                    resultCursor = OperatorIntersection.local().execute(leftCursor, rightCursor, srGroup.operatorSR, null, operatorRequest.getIntersectionParams().getDimensionMask());
+                    resultCursor = OperatorIntersection.local().execute(leftCursor, rightCursor, srGroup.operatorSR, progressTracker, operatorRequest.getIntersectionParams().getDimensionMask());
                 else
-                    resultCursor = OperatorIntersection.local().execute(leftCursor, rightCursor, srGroup.operatorSR, null);
+                    resultCursor = OperatorIntersection.local().execute(leftCursor, rightCursor, srGroup.operatorSR, progressTracker);
                 break;
             case Clip:
                 Envelope2D envelope2D = __extractEnvelope2D(operatorRequest.getClipParams().getEnvelope());
-                resultCursor = OperatorClip.local().execute(leftCursor, envelope2D, srGroup.operatorSR, null);
+                resultCursor = OperatorClip.local().execute(leftCursor, envelope2D, srGroup.operatorSR, progressTracker);
                 break;
             case Cut:
-                resultCursor = OperatorCut.local().execute(operatorRequest.getCutParams().getConsiderTouch(), leftCursor.next(), (Polyline) rightCursor.next(), srGroup.operatorSR, null);
+                resultCursor = OperatorCut.local().execute(operatorRequest.getCutParams().getConsiderTouch(), leftCursor.next(), (Polyline) rightCursor.next(), srGroup.operatorSR, progressTracker);
                 break;
             case DensifyByLength:
-                resultCursor = OperatorDensifyByLength.local().execute(leftCursor, operatorRequest.getDensifyParams().getMaxLength(), null);
+                resultCursor = OperatorDensifyByLength.local().execute(leftCursor, operatorRequest.getDensifyParams().getMaxLength(), progressTracker);
                 break;
             case Simplify:
-                resultCursor = OperatorSimplify.local().execute(leftCursor, srGroup.operatorSR, operatorRequest.getSimplifyParams().getForce(), null);
+                resultCursor = OperatorSimplify.local().execute(leftCursor, srGroup.operatorSR, operatorRequest.getSimplifyParams().getForce(), progressTracker);
                 break;
             case SimplifyOGC:
-                resultCursor = OperatorSimplifyOGC.local().execute(leftCursor, srGroup.operatorSR, operatorRequest.getSimplifyParams().getForce(), null);
+                resultCursor = OperatorSimplifyOGC.local().execute(leftCursor, srGroup.operatorSR, operatorRequest.getSimplifyParams().getForce(), progressTracker);
                 break;
             case Offset:
                 resultCursor = OperatorOffset.local().execute(
@@ -490,26 +747,26 @@ public class GeometryOperatorsUtil {
                         operatorRequest.getOffsetParams().getDistance(),
                         OperatorOffset.JoinType.valueOf(operatorRequest.getOffsetParams().getJoinType().toString()),
                         operatorRequest.getOffsetParams().getBevelRatio(),
-                        operatorRequest.getOffsetParams().getFlattenError(), null);
+                        operatorRequest.getOffsetParams().getFlattenError(), progressTracker);
                 break;
             case Generalize:
                 resultCursor = OperatorGeneralize.local().execute(
                         leftCursor,
                         operatorRequest.getGeneralizeParams().getMaxDeviation(),
                         operatorRequest.getGeneralizeParams().getRemoveDegenerates(),
-                        null);
+                        progressTracker);
                 break;
             case SymmetricDifference:
-                resultCursor = OperatorSymmetricDifference.local().execute(leftCursor, rightCursor, srGroup.operatorSR, null);
+                resultCursor = OperatorSymmetricDifference.local().execute(leftCursor, rightCursor, srGroup.operatorSR, progressTracker);
                 break;
             case ConvexHull:
-                resultCursor = OperatorConvexHull.local().execute(leftCursor, operatorRequest.getConvexParams().getMerge(), null);
+                resultCursor = OperatorConvexHull.local().execute(leftCursor, operatorRequest.getConvexParams().getMerge(), progressTracker);
                 break;
             case Boundary:
-                resultCursor = OperatorBoundary.local().execute(leftCursor, null);
+                resultCursor = OperatorBoundary.local().execute(leftCursor, progressTracker);
                 break;
             case EnclosingCircle:
-                resultCursor = new OperatorEnclosingCircleCursor(leftCursor, srGroup.operatorSR, null);
+                resultCursor = new OperatorEnclosingCircleCursor(leftCursor, srGroup.operatorSR, progressTracker);
                 break;
             case RandomPoints:
                 double[] pointsPerSqrKm = operatorRequest.getRandomPointsParams().getPointsPerSquareKmList().stream().mapToDouble(Double::doubleValue).toArray();
@@ -519,22 +776,50 @@ public class GeometryOperatorsUtil {
                         pointsPerSqrKm,
                         seed,
                         srGroup.operatorSR,
-                        null);
+                        progressTracker);
                 break;
             default:
                 throw new IllegalArgumentException();
 
         }
+        resultCursor = __time(resultCursor, operatorRequest, OperatorMetrics.Stage.operate);
 
         if (srGroup.resultSR != null && !srGroup.resultSR.equals(srGroup.operatorSR)) {
-            ProjectionTransformation projectionTransformation = new ProjectionTransformation(srGroup.operatorSR, srGroup.resultSR);
-            resultCursor = OperatorProject.local().execute(resultCursor, projectionTransformation, null);
+            ProjectionTransformation projectionTransformation = ProjectionTransformationCache.get(srGroup.operatorSR, srGroup.resultSR);
+            resultCursor = __time(OperatorProject.local().execute(resultCursor, projectionTransformation, progressTracker), operatorRequest, OperatorMetrics.Stage.project);
         }
 
         return resultCursor;
     }
 
     public static OperatorResult initExecuteOperatorEx(OperatorRequest operatorRequest) throws IOException {
+        // stage timings and geometry counts for the metrics endpoint, and the trace if the call asked for one
+        OperatorMetrics.Recorder recorder = OperatorMetrics.Recorder.begin(operatorRequest);
+        try {
+            return __initExecuteOperatorEx(operatorRequest, recorder);
+        } finally {
+            recorder.finish();
+        }
+    }
+
+    private static OperatorResult __initExecuteOperatorEx(OperatorRequest operatorRequest, OperatorMetrics.Recorder recorder) throws IOException {
+        // operators stop once the call has been cancelled or is past its deadline
+        ProgressTracker progressTracker = ContextProgressTracker.current();
+        // a stream message may have waited in the window after the call went away
+        ProgressTracker.checkAndThrow(progressTracker);
+
+        ForkJoinPool workerPool = ExecutionSettings.current().workerPool;
+        if (ParallelMap.splits(operatorRequest, workerPool)) {
+            // large bags of per geometry operators run as chunks on the worker pool
+            return ParallelMap.execute(operatorRequest, workerPool);
+        }
+
+        if (operatorRequest.getOperatorType() == ServiceOperatorType.Area ||
+                operatorRequest.getOperatorType() == ServiceOperatorType.Length) {
+            // planar measures have no operator type in the geometry library
+            return nonCursorFromRequest(operatorRequest, null, null, progressTracker);
+        }
+
         Operator.Type operatorType = Operator.Type.valueOf(operatorRequest.getOperatorType().toString());
         GeometryEncodingType encodingType = GeometryEncodingType.unknown;
         GeometryCursor resultCursor = null;
@@ -554,7 +839,7 @@ public class GeometryOperatorsUtil {
             case Distance:
             case GeodeticLength:
             case GeodeticArea:
-                return nonCursorFromRequest(operatorRequest, null, null);
+                return nonCursorFromRequest(operatorRequest, null, null, progressTracker);
 
             // cursors
             case Project:
@@ -580,7 +865,7 @@ public class GeometryOperatorsUtil {
             case Boundary:
             case RandomPoints:
             case EnclosingCircle:
-                resultCursor = cursorFromRequest(operatorRequest, null, null);
+                resultCursor = cursorFromRequest(operatorRequest, null, null, progressTracker);
                 break;
             case ExportToESRIShape:
                 encodingType = GeometryEncodingType.esrishape;
@@ -603,20 +888,115 @@ public class GeometryOperatorsUtil {
         if (encodingType != GeometryEncodingType.unknown) {
             if (operatorRequest.hasLeftGeometryBag()) {
                 resultCursor = __createGeometryCursor(operatorRequest.getLeftGeometryBag());
+            } else if (!operatorRequest.getLeftGeometryHandle().isEmpty()) {
+                resultCursor = __registeredGeometries(operatorRequest.getLeftGeometryHandle()).cursor();
             } else {
                 resultCursor = __createGeometryCursor(operatorRequest.getGeometryBag());
             }
+            resultCursor = __time(resultCursor, operatorRequest, OperatorMetrics.Stage.decode);
+        }
+
+        // encoding pulls the geometries through the whole cursor chain, the recorder only counts the encoding itself
+        long saved = recorder.enter();
+        long start = System.nanoTime();
+        try {
+            operatorResultBuilder.setGeometryBag(__encodeGeometry(resultCursor, operatorRequest, encodingType, progressTracker));
+        } finally {
+            recorder.stop(operatorRequest, OperatorMetrics.Stage.encode, start, saved);
         }
-        operatorResultBuilder.setGeometryBag(__encodeGeometry(resultCursor, operatorRequest, encodingType));
         return operatorResultBuilder.build();
     }
 
+    private static GeometryCursor __time(GeometryCursor geometryCursor, OperatorRequest operatorRequest, OperatorMetrics.Stage stage) {
+        OperatorMetrics.Recorder recorder = OperatorMetrics.Recorder.current();
+        return recorder == null ? geometryCursor : recorder.time(geometryCursor, operatorRequest, stage);
+    }
 
-    private static GeometryCursor __createGeometryCursor(GeometryBagData geometryBag) throws IOException {
+
+    /**
+     * Copies the ids of the geometries that went into operatorRequest onto the result, unless the result geometry
+     * bag already has ids of its own. Only a result with a geometry for every input geometry is tagged, the ids of a
+     * union or of a scalar result wouldn't line up with anything.
+     */
+    static OperatorResult tagInputGeometryIds(OperatorRequest operatorRequest, OperatorResult operatorResult) {
+        if (operatorResult.getGeometryBag().getGeometryIdsCount() > 0) {
+            return operatorResult;
+        }
+
+        List<Long> geometryIds = __inputGeometryIds(operatorRequest);
+        if (geometryIds.isEmpty() || geometryIds.size() != __geometryCount(operatorResult.getGeometryBag())) {
+            return operatorResult;
+        }
+
+        OperatorResult.Builder operatorResultBuilder = operatorResult.toBuilder();
+        operatorResultBuilder.getGeometryBagBuilder().addAllGeometryIds(geometryIds);
+        return operatorResultBuilder.build();
+    }
+
+    protected static List<Long> __inputGeometryIds(OperatorRequest operatorRequest) {
+        // follows the same left side precedence as __getLeftGeometryRequestFromRequest
+        if (operatorRequest.hasLeftGeometryBag()) {
+            return __bagGeometryIds(operatorRequest.getLeftGeometryBag());
+        } else if (operatorRequest.hasGeometryBag()) {
+            return __bagGeometryIds(operatorRequest.getGeometryBag());
+        } else if (!operatorRequest.getLeftGeometryHandle().isEmpty()) {
+            return __registeredGeometries(operatorRequest.getLeftGeometryHandle()).geometryIds;
+        } else if (operatorRequest.hasLeftGeometryRequest()) {
+            return __inputGeometryIds(operatorRequest.getLeftGeometryRequest());
+        } else if (operatorRequest.hasGeometryRequest()) {
+            return __inputGeometryIds(operatorRequest.getGeometryRequest());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * The bag's geometry_ids, or the geometry_id column of its arrow stream if it has no geometry_ids.
+     */
+    protected static List<Long> __bagGeometryIds(GeometryBagData geometryBag) {
+        if (geometryBag.getGeometryIdsCount() == 0 && !geometryBag.getArrow().isEmpty()) {
+            return ArrowIpc.geometryIds(geometryBag.getArrow());
+        }
+        return geometryBag.getGeometryIdsList();
+    }
+
+    protected static List<Long> __inputRightGeometryIds(OperatorRequest operatorRequest) {
+        // follows the same precedence as __getRightGeometryRequestFromRequest
+        if (operatorRequest.hasRightGeometryBag()) {
+            return __bagGeometryIds(operatorRequest.getRightGeometryBag());
+        } else if (!operatorRequest.getRightGeometryHandle().isEmpty()) {
+            return __registeredGeometries(operatorRequest.getRightGeometryHandle()).geometryIds;
+        } else if (operatorRequest.hasRightGeometryRequest()) {
+            return __inputGeometryIds(operatorRequest.getRightGeometryRequest());
+        }
+        return Collections.emptyList();
+    }
+
+
+
+    /**
+     * The number of geometries in geometryBag, whichever encoding it holds.
+     */
+    static int __geometryCount(GeometryBagData geometryBag) {
+        return geometryBag.getWktCount() +
+                geometryBag.getWkbCount() +
+                geometryBag.getGeojsonCount() +
+                geometryBag.getEsriShapeCount() +
+                geometryBag.getEsriJsonCount() +
+                geometryBag.getTwkbCount() +
+                GeometryColumnsCodec.geometryCount(geometryBag.getColumns()) +
+                ArrowIpc.geometryCount(geometryBag.getArrow());
+    }
+
+    protected static GeometryCursor __createGeometryCursor(GeometryBagData geometryBag) throws IOException {
         return __extractGeometryCursor(geometryBag);
     }
 
 
+    protected static GeometryRegistry.Entry __registeredGeometries(String handle) {
+        return ExecutionSettings.current().registry.get(handle);
+    }
+
+
     protected static SpatialReference __extractSpatialReference(GeometryBagData geometryBag) {
         return geometryBag.hasSpatialReference() ? __extractSpatialReference(geometryBag.getSpatialReference()) : null;
     }
@@ -631,6 +1011,8 @@ public class GeometryOperatorsUtil {
             return __extractSpatialReferenceCursor(operatorRequestCursor.getLeftGeometryRequest());
         } else if (operatorRequestCursor.hasLeftGeometryBag()) {
             return __extractSpatialReference(operatorRequestCursor.getLeftGeometryBag().getSpatialReference());
+        } else if (!operatorRequestCursor.getLeftGeometryHandle().isEmpty()) {
+            return __registeredGeometries(operatorRequestCursor.getLeftGeometryHandle()).spatialReference;
         } else if (operatorRequestCursor.hasGeometryRequest()) {
             return __extractSpatialReferenceCursor(operatorRequestCursor.getGeometryRequest());
         } else if (operatorRequestCursor.hasGeometryBag()) {
@@ -641,13 +1023,8 @@ public class GeometryOperatorsUtil {
 
 
     protected static SpatialReference __extractSpatialReference(SpatialReferenceData serviceSpatialReference) {
-        // TODO there seems to be a bug where hasWkid() is not getting generated. check back later
-        if (serviceSpatialReference.getWkid() != 0)
-            return SpatialReference.create(serviceSpatialReference.getWkid());
-        else if (serviceSpatialReference.getEsriWkt().length() > 0)
-            return SpatialReference.create(serviceSpatialReference.getEsriWkt());
-
-        return null;
+        // shared instances, so the same wkid or wkt is only parsed once across requests
+        return SpatialReferenceCache.get(serviceSpatialReference);
     }
 
 
@@ -684,19 +1061,15 @@ public class GeometryOperatorsUtil {
             simpleStringCursor = new SimpleStringCursor(stringArrayDeque);
             geometryCursor = new OperatorImportFromWktCursor(0, simpleStringCursor);
         } else if (geometryBag.getGeojsonCount() > 0) {
-            stringArrayDeque = new ArrayDeque<>(geometryBag.getGeojsonList());
-            simpleStringCursor = new SimpleStringCursor(stringArrayDeque);
-            MapGeometryCursor mapGeometryCursor = new OperatorImportFromGeoJsonCursor(GeoJsonImportFlags.geoJsonImportSkipCRS, simpleStringCursor, null);
-            geometryCursor = new SimpleGeometryCursor(mapGeometryCursor);
+            geometryCursor = JsonGeometryCursor.geoJsonCursor(geometryBag.getGeojsonList());
         } else if (geometryBag.getEsriJsonCount() > 0) {
-            JsonFactory factory = new JsonFactory();
-            String jsonString = geometryBag.getEsriJson(0);
-            // TODO no idea whats going on here
-            JsonParser jsonParser = factory.createJsonParser(jsonString);
-            JsonParserReader jsonParserReader = new JsonParserReader(jsonParser);
-            SimpleJsonReaderCursor simpleJsonParserCursor = new SimpleJsonReaderCursor(jsonParserReader);
-            MapGeometryCursor mapGeometryCursor = new OperatorImportFromJsonCursor(0, simpleJsonParserCursor);
-            geometryCursor = new SimpleGeometryCursor(mapGeometryCursor);
+            geometryCursor = JsonGeometryCursor.esriJsonCursor(geometryBag.getEsriJsonList());
+        } else if (geometryBag.getTwkbCount() > 0) {
+            geometryCursor = Twkb.importCursor(geometryBag.getTwkbList());
+        } else if (geometryBag.hasColumns()) {
+            geometryCursor = GeometryColumnsCodec.importCursor(geometryBag.getColumns());
+        } else if (!geometryBag.getArrow().isEmpty()) {
+            geometryCursor = ArrowIpc.importCursor(geometryBag.getArrow());
         }
         return geometryCursor;
     }
@@ -0,0 +1,282 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Geometry bags that clients upload once and then reference by handle from any number of requests, like a reference
+ * layer tested against a stream of points. The geometries are kept decoded, accelerated for relational operators and
+ * indexed with a {@link PackedRTree}.
+ * <p>
+ * A bag stays registered until it is released or hasn't been used for its TTL. Expired bags are swept every
+ * {@link #SWEEP_INTERVAL_SECONDS}, whether or not the server is busy. All registered bags share a memory quota, and a registration that doesn't fit is refused with RESOURCE_EXHAUSTED. Registered geometries are shared by
+ * every request that uses them, which is safe as operators never modify their inputs.
+ */
+class GeometryRegistry {
+    private static final Logger logger = Logger.getLogger(GeometryRegistry.class.getName());
+
+    static final long DEFAULT_TTL_SECONDS = 600;
+    static final long MAX_TTL_SECONDS = 24 * 60 * 60;
+    static final long SWEEP_INTERVAL_SECONDS = 30;
+
+    // one daemon thread sweeps every registry
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "geometry-registry-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // object headers, envelope and attribute overhead of a decoded geometry
+    private static final int GEOMETRY_OVERHEAD_BYTES = 256;
+    // coordinates plus the quad tree built by enumMild acceleration
+    private static final int BYTES_PER_VERTEX = 48;
+
+    static class Entry {
+        final String handle;
+        final List<Geometry> geometries;
+        final List<Long> geometryIds;
+        final SpatialReference spatialReference;
+        final PackedRTree index;
+        final long memoryBytes;
+        final long ttlNanos;
+        volatile long expiresAtNanos;
+
+        Entry(String handle,
+              List<Geometry> geometries,
+              List<Long> geometryIds,
+              SpatialReference spatialReference,
+              PackedRTree index,
+              long memoryBytes,
+              long ttlNanos) {
+            this.handle = handle;
+            this.geometries = geometries;
+            this.geometryIds = geometryIds;
+            this.spatialReference = spatialReference;
+            this.index = index;
+            this.memoryBytes = memoryBytes;
+            this.ttlNanos = ttlNanos;
+            this.expiresAtNanos = System.nanoTime() + ttlNanos;
+        }
+
+        /**
+         * A cursor over the registered geometries, in registration order.
+         */
+        GeometryCursor cursor() {
+            return new SimpleGeometryCursor(geometries);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long quotaBytes;
+
+    // guarded by this
+    private long usedBytes = 0;
+
+    GeometryRegistry(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+        Sweeper.schedule(this);
+    }
+
+    /**
+     * A registry with a quota of GEOMETRY_REGISTRY_MB, by default a quarter of the max heap.
+     */
+    static GeometryRegistry fromEnvironment() {
+        long quotaBytes = Runtime.getRuntime().maxMemory() / 4;
+        String value = System.getenv("GEOMETRY_REGISTRY_MB");
+        if (value != null) {
+            try {
+                quotaBytes = Long.parseLong(value.trim()) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.log(Level.WARNING, "ignoring GEOMETRY_REGISTRY_MB : ".concat(value));
+            }
+        }
+        return new GeometryRegistry(quotaBytes);
+    }
+
+    /**
+     * Decode, accelerate and index geometryBag and keep it under a new handle.
+     *
+     * @param ttlSeconds seconds the bag stays registered after it was last used, {@link #DEFAULT_TTL_SECONDS} if 0
+     */
+    Entry register(GeometryBagData geometryBag, long ttlSeconds) throws IOException {
+        if (ttlSeconds < 0 || ttlSeconds > MAX_TTL_SECONDS) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("ttl_seconds must be between 0 and " + MAX_TTL_SECONDS)
+                    .asRuntimeException();
+        }
+
+        if (geometryBag.getSerializedSize() > quotaBytes) {
+            // decoded geometries are never smaller than the wire format
+            throw Status.RESOURCE_EXHAUSTED
+                    .withDescription("geometry bag is larger than the registry quota of " + quotaBytes)
+                    .asRuntimeException();
+        }
+
+        SpatialReference spatialReference = GeometryOperatorsUtil.__extractSpatialReference(geometryBag);
+        List<Geometry> geometries = new ArrayList<>();
+        long memoryBytes = 0;
+        GeometryCursor geometryCursor = GeometryOperatorsUtil.__createGeometryCursor(geometryBag);
+        if (geometryCursor != null) {
+            OperatorContains operatorContains = OperatorContains.local();
+            for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+                if (operatorContains.canAccelerateGeometry(geometry)) {
+                    operatorContains.accelerateGeometry(geometry, spatialReference, Geometry.GeometryAccelerationDegree.enumMild);
+                }
+                geometries.add(geometry);
+                long vertices = geometry instanceof MultiVertexGeometry ? ((MultiVertexGeometry) geometry).getPointCount() : 1;
+                memoryBytes += GEOMETRY_OVERHEAD_BYTES + vertices * BYTES_PER_VERTEX;
+            }
+        }
+
+        PackedRTree index = PackedRTree.fromGeometries(geometries);
+        memoryBytes += index.memoryBytes();
+
+        long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds == 0 ? DEFAULT_TTL_SECONDS : ttlSeconds);
+        Entry entry = new Entry(
+                UUID.randomUUID().toString(),
+                Collections.unmodifiableList(geometries),
+                GeometryOperatorsUtil.__bagGeometryIds(geometryBag),
+                spatialReference,
+                index,
+                memoryBytes,
+                ttlNanos);
+
+        sweep();
+        synchronized (this) {
+            if (usedBytes + memoryBytes > quotaBytes) {
+                throw Status.RESOURCE_EXHAUSTED
+                        .withDescription("registering " + memoryBytes + " bytes would exceed the registry quota of " + quotaBytes)
+                        .asRuntimeException();
+            }
+            usedBytes += memoryBytes;
+        }
+        entries.put(entry.handle, entry);
+        return entry;
+    }
+
+    /**
+     * @throws io.grpc.StatusRuntimeException NOT_FOUND if handle was never registered, was released or has expired
+     */
+    Entry get(String handle) {
+        Entry entry = entries.get(handle);
+        long now = System.nanoTime();
+        if (entry == null || now - entry.expiresAtNanos > 0) {
+            if (entry != null) {
+                __remove(entry);
+            }
+            throw Status.NOT_FOUND.withDescription("no geometry bag registered as " + handle).asRuntimeException();
+        }
+        // the ttl counts from the last use
+        entry.expiresAtNanos = now + entry.ttlNanos;
+        return entry;
+    }
+
+    /**
+     * @return false if handle wasn't registered
+     */
+    boolean release(String handle) {
+        sweep();
+        Entry entry = entries.get(handle);
+        return entry != null && __remove(entry);
+    }
+
+    synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private boolean __remove(Entry entry) {
+        if (!entries.remove(entry.handle, entry)) {
+            return false;
+        }
+        synchronized (this) {
+            usedBytes -= entry.memoryBytes;
+        }
+        return true;
+    }
+
+    /**
+     * Remove the bags that have expired.
+     */
+    void sweep() {
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.expiresAtNanos > 0) {
+                __remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Sweeps a registry until it is garbage collected, so that servers that are stopped and dropped don't stay
+     * reachable from the sweeper thread.
+     */
+    private static class Sweeper implements Runnable {
+        private final WeakReference<GeometryRegistry> registry;
+        private volatile ScheduledFuture<?> future;
+
+        private Sweeper(GeometryRegistry registry) {
+            this.registry = new WeakReference<>(registry);
+        }
+
+        static void schedule(GeometryRegistry registry) {
+            Sweeper task = new Sweeper(registry);
+            task.future = sweeper.scheduleWithFixedDelay(task, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void run() {
+            GeometryRegistry geometryRegistry = registry.get();
+            if (geometryRegistry == null) {
+                future.cancel(false);
+                return;
+            }
+            try {
+                geometryRegistry.sweep();
+            } catch (RuntimeException e) {
+                // an exception would stop the schedule
+                logger.log(Level.WARNING, "geometry registry sweep error : ".concat(e.toString()));
+            }
+        }
+    }
+}
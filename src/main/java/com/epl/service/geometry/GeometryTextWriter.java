@@ -0,0 +1,439 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Writes geometries as WKT and GeoJSON straight into a reusable per thread byte buffer, which is copied once into the
+ * ByteString the result holds. The text has the same structure as the esri exporters': polylines and polygons are
+ * always MULTILINESTRING and MULTIPOLYGON in WKT, single part ones are LineString and Polygon in GeoJSON, and rings
+ * are wound counterclockwise. Empty geometries, envelopes, lines, geometries with m values and polygons that do not
+ * start with an exterior ring are rare and are left to the esri exporters.
+ * <p>
+ * Numbers are written either rounded to a number of decimal digits, trailing zeros dropped, or with the fewest digits
+ * that read back as the same double. Numbers are plain decimals, except that a shortest number of magnitude under 1e-7,
+ * or of 1e21 and over, keeps the exponent form of {@link Double#toString}, like 1.0E-25. Both read back the same way
+ * in WKT and JSON.
+ */
+class GeometryTextWriter {
+    // decimal digits for the shortest text that reads back as the same double
+    static final int SHORTEST = -1;
+    static final int MAX_DECIMAL_DIGITS = 17;
+
+    private static final ThreadLocal<GeometryTextWriter> WRITERS = ThreadLocal.withInitial(GeometryTextWriter::new);
+    private static final double[] POWERS_OF_TEN = new double[23];
+    // doubles up to 2^53 are whole numbers that a long holds exactly
+    private static final double EXACT_LIMIT = 9007199254740992.0;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            // exact, every power of ten up to 10^22 is a double
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+    private int decimalDigits;
+    private final byte[] digits = new byte[24];
+    private final Point2D xy = new Point2D();
+
+    private GeometryTextWriter() {
+    }
+
+    /**
+     * The decimal digits of a request's text_params, {@link #SHORTEST} if it has none.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if they are out of range
+     */
+    static int decimalDigits(OperatorRequest operatorRequest) {
+        if (!operatorRequest.hasTextParams()) {
+            return SHORTEST;
+        }
+        int decimalDigits = operatorRequest.getTextParams().getDecimalDigits();
+        if (decimalDigits < 0 || decimalDigits > MAX_DECIMAL_DIGITS) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("text decimal_digits must be between 0 and " + MAX_DECIMAL_DIGITS)
+                    .asRuntimeException();
+        }
+        return decimalDigits;
+    }
+
+    static void writeWkt(GeometryCursor geometryCursor,
+                         int decimalDigits,
+                         Consumer<ByteString> output,
+                         ProgressTracker progressTracker) {
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            ProgressTracker.checkAndThrow(progressTracker);
+            output.accept(WRITERS.get().wkt(geometry, decimalDigits));
+        }
+    }
+
+    static void writeGeoJson(GeometryCursor geometryCursor,
+                             int decimalDigits,
+                             Consumer<ByteString> output,
+                             ProgressTracker progressTracker) {
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            ProgressTracker.checkAndThrow(progressTracker);
+            output.accept(WRITERS.get().geoJson(geometry, decimalDigits));
+        }
+    }
+
+    // the polygon writers open a new polygon at each exterior ring, so the first ring has to be one
+    private static boolean __delegated(Geometry geometry) {
+        Geometry.Type type = geometry.getType();
+        return geometry.isEmpty() ||
+                geometry.hasAttribute(VertexDescription.Semantics.M) ||
+                (type != Geometry.Type.Point && type != Geometry.Type.MultiPoint && type != Geometry.Type.Polyline && type != Geometry.Type.Polygon) ||
+                (type == Geometry.Type.Polygon && !((Polygon) geometry).isExteriorRing(0));
+    }
+
+    ByteString wkt(Geometry geometry, int decimalDigits) {
+        if (__delegated(geometry)) {
+            return ByteString.copyFromUtf8(OperatorExportToWkt.local().execute(0, geometry, null));
+        }
+
+        length = 0;
+        this.decimalDigits = decimalDigits;
+        boolean hasZ = geometry.hasAttribute(VertexDescription.Semantics.Z);
+        switch (geometry.getType()) {
+            case Point:
+                __append(hasZ ? "POINT Z (" : "POINT (");
+                Point point = (Point) geometry;
+                __coordinate(point.getX(), point.getY(), hasZ, hasZ ? point.getZ() : 0, ' ');
+                __append(')');
+                break;
+            case MultiPoint:
+                __append(hasZ ? "MULTIPOINT Z (" : "MULTIPOINT (");
+                MultiPoint multiPoint = (MultiPoint) geometry;
+                for (int i = 0; i < multiPoint.getPointCount(); i++) {
+                    __append(i == 0 ? "(" : ", (");
+                    __vertex(multiPoint, i, hasZ, ' ');
+                    __append(')');
+                }
+                __append(')');
+                break;
+            case Polyline:
+                __append(hasZ ? "MULTILINESTRING Z (" : "MULTILINESTRING (");
+                Polyline polyline = (Polyline) geometry;
+                for (int path = 0; path < polyline.getPathCount(); path++) {
+                    __append(path == 0 ? "(" : ", (");
+                    __wktPath(polyline, path, false, hasZ);
+                    __append(')');
+                }
+                __append(')');
+                break;
+            default:
+                __append(hasZ ? "MULTIPOLYGON Z (" : "MULTIPOLYGON (");
+                Polygon polygon = (Polygon) geometry;
+                for (int path = 0; path < polygon.getPathCount(); path++) {
+                    if (polygon.isExteriorRing(path)) {
+                        __append(path == 0 ? "((" : "), ((");
+                    } else {
+                        __append(", (");
+                    }
+                    __wktPath(polygon, path, true, hasZ);
+                    __append(')');
+                }
+                __append("))");
+                break;
+        }
+        return ByteString.copyFrom(buffer, 0, length);
+    }
+
+    ByteString geoJson(Geometry geometry, int decimalDigits) {
+        if (__delegated(geometry)) {
+            return ByteString.copyFromUtf8(OperatorExportToGeoJson.local().execute(GeoJsonExportFlags.geoJsonExportSkipCRS, null, geometry));
+        }
+
+        length = 0;
+        this.decimalDigits = decimalDigits;
+        boolean hasZ = geometry.hasAttribute(VertexDescription.Semantics.Z);
+        switch (geometry.getType()) {
+            case Point:
+                __append("{\"type\":\"Point\",\"coordinates\":[");
+                Point point = (Point) geometry;
+                __coordinate(point.getX(), point.getY(), hasZ, hasZ ? point.getZ() : 0, ',');
+                __append("]}");
+                break;
+            case MultiPoint:
+                __append("{\"type\":\"MultiPoint\",\"coordinates\":[");
+                MultiPoint multiPoint = (MultiPoint) geometry;
+                for (int i = 0; i < multiPoint.getPointCount(); i++) {
+                    __append(i == 0 ? "[" : ",[");
+                    __vertex(multiPoint, i, hasZ, ',');
+                    __append(']');
+                }
+                __append("]}");
+                break;
+            case Polyline:
+                Polyline polyline = (Polyline) geometry;
+                if (polyline.getPathCount() == 1) {
+                    __append("{\"type\":\"LineString\",\"coordinates\":");
+                    __geoJsonPath(polyline, 0, false, hasZ);
+                } else {
+                    __append("{\"type\":\"MultiLineString\",\"coordinates\":[");
+                    for (int path = 0; path < polyline.getPathCount(); path++) {
+                        if (path > 0) {
+                            __append(',');
+                        }
+                        __geoJsonPath(polyline, path, false, hasZ);
+                    }
+                    __append(']');
+                }
+                __append('}');
+                break;
+            default:
+                Polygon polygon = (Polygon) geometry;
+                boolean multi = polygon.getExteriorRingCount() > 1;
+                __append(multi ? "{\"type\":\"MultiPolygon\",\"coordinates\":[" : "{\"type\":\"Polygon\",\"coordinates\":");
+                for (int path = 0; path < polygon.getPathCount(); path++) {
+                    if (!polygon.isExteriorRing(path)) {
+                        __append(',');
+                    } else if (path == 0) {
+                        __append('[');
+                    } else {
+                        __append("],[");
+                    }
+                    __geoJsonPath(polygon, path, true, hasZ);
+                }
+                __append(multi ? "]]}" : "]}");
+                break;
+        }
+        return ByteString.copyFrom(buffer, 0, length);
+    }
+
+    // a ring is written closed and the other way around, esri rings are clockwise
+    private void __wktPath(MultiPath multiPath, int path, boolean ring, boolean hasZ) {
+        int start = multiPath.getPathStart(path);
+        int end = multiPath.getPathEnd(path);
+        __vertex(multiPath, start, hasZ, ' ');
+        if (ring) {
+            for (int i = end - 1; i > start; i--) {
+                __append(", ");
+                __vertex(multiPath, i, hasZ, ' ');
+            }
+            __append(", ");
+            __vertex(multiPath, start, hasZ, ' ');
+        } else {
+            for (int i = start + 1; i < end; i++) {
+                __append(", ");
+                __vertex(multiPath, i, hasZ, ' ');
+            }
+        }
+    }
+
+    private void __geoJsonPath(MultiPath multiPath, int path, boolean ring, boolean hasZ) {
+        int start = multiPath.getPathStart(path);
+        int end = multiPath.getPathEnd(path);
+        __append('[');
+        __append('[');
+        __vertex(multiPath, start, hasZ, ',');
+        __append(']');
+        if (ring) {
+            for (int i = end - 1; i > start; i--) {
+                __append(",[");
+                __vertex(multiPath, i, hasZ, ',');
+                __append(']');
+            }
+            __append(",[");
+            __vertex(multiPath, start, hasZ, ',');
+            __append(']');
+        } else {
+            for (int i = start + 1; i < end; i++) {
+                __append(",[");
+                __vertex(multiPath, i, hasZ, ',');
+                __append(']');
+            }
+        }
+        __append(']');
+    }
+
+    private void __vertex(MultiVertexGeometry geometry, int index, boolean hasZ, char separator) {
+        geometry.getXY(index, xy);
+        double z = 0;
+        if (hasZ) {
+            z = geometry instanceof MultiPath ?
+                    ((MultiPath) geometry).getAttributeAsDbl(VertexDescription.Semantics.Z, index, 0) :
+                    ((MultiPoint) geometry).getAttributeAsDbl(VertexDescription.Semantics.Z, index, 0);
+        }
+        __coordinate(xy.x, xy.y, hasZ, z, separator);
+    }
+
+    private void __coordinate(double x, double y, boolean hasZ, double z, char separator) {
+        appendDouble(x);
+        __append(separator);
+        appendDouble(y);
+        if (hasZ) {
+            __append(separator);
+            appendDouble(z);
+        }
+    }
+
+    void appendDouble(double value) {
+        __ensure(48 + Math.max(0, decimalDigits));
+        if (value == 0) {
+            // negative zero too
+            buffer[length++] = '0';
+            return;
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            __append(Double.toString(value));
+            return;
+        }
+
+        double magnitude = Math.abs(value);
+        if (decimalDigits >= 0) {
+            double scaled = magnitude * POWERS_OF_TEN[decimalDigits];
+            if (scaled < EXACT_LIMIT) {
+                __appendDecimal(value < 0, Math.round(scaled), decimalDigits);
+                return;
+            }
+            // too large to have decimals to round away
+        }
+
+        // the fewest decimals that divide back to the same double. the division of two exact doubles is correctly
+        // rounded, as reading the decimal text is, so the text reads back as value
+        for (int decimals = 0; decimals < POWERS_OF_TEN.length; decimals++) {
+            double scaled = magnitude * POWERS_OF_TEN[decimals];
+            if (scaled >= EXACT_LIMIT) {
+                break;
+            }
+            long mantissa = Math.round(scaled);
+            if (mantissa / POWERS_OF_TEN[decimals] == magnitude) {
+                __appendDecimal(value < 0, mantissa, decimals);
+                return;
+            }
+        }
+        // seventeen significant digits past the long range, the digits of Double.toString moved into place
+        __appendPlain(Double.toString(value));
+    }
+
+    // Double.toString text in computerized scientific notation is written without the exponent where it is between
+    // -7 and 21, like the other numbers. Outside that range the text is written as it is, exponent included
+    private void __appendPlain(String text) {
+        int exponentIndex = text.indexOf('E');
+        if (exponentIndex < 0) {
+            __append(text);
+            return;
+        }
+        int exponent = Integer.parseInt(text.substring(exponentIndex + 1));
+        if (exponent < -7 || exponent >= 21) {
+            __append(text);
+            return;
+        }
+
+        int start = 0;
+        if (text.charAt(0) == '-') {
+            buffer[length++] = '-';
+            start = 1;
+        }
+        // the digits around the point, d.ddddE<exponent>
+        int digitCount = 0;
+        for (int i = start; i < exponentIndex; i++) {
+            if (text.charAt(i) != '.') {
+                digits[digitCount++] = (byte) text.charAt(i);
+            }
+        }
+        while (digitCount > 1 && digits[digitCount - 1] == '0') {
+            digitCount--;
+        }
+
+        int pointIndex = exponent + 1;
+        if (pointIndex <= 0) {
+            buffer[length++] = '0';
+            buffer[length++] = '.';
+            for (int i = pointIndex; i < 0; i++) {
+                buffer[length++] = '0';
+            }
+            for (int i = 0; i < digitCount; i++) {
+                buffer[length++] = digits[i];
+            }
+        } else {
+            for (int i = 0; i < Math.max(digitCount, pointIndex); i++) {
+                if (i == pointIndex) {
+                    buffer[length++] = '.';
+                }
+                buffer[length++] = i < digitCount ? digits[i] : (byte) '0';
+            }
+        }
+    }
+
+    // mantissa / 10^decimals, without trailing zeros
+    private void __appendDecimal(boolean negative, long mantissa, int decimals) {
+        while (decimals > 0 && mantissa % 10 == 0) {
+            mantissa /= 10;
+            decimals--;
+        }
+        if (negative && mantissa != 0) {
+            buffer[length++] = '-';
+        }
+
+        int digitCount = 0;
+        do {
+            digits[digitCount++] = (byte) ('0' + mantissa % 10);
+            mantissa /= 10;
+        } while (mantissa != 0);
+
+        if (decimals >= digitCount) {
+            buffer[length++] = '0';
+            buffer[length++] = '.';
+            for (int i = digitCount; i < decimals; i++) {
+                buffer[length++] = '0';
+            }
+            for (int i = digitCount - 1; i >= 0; i--) {
+                buffer[length++] = digits[i];
+            }
+        } else {
+            for (int i = digitCount - 1; i >= 0; i--) {
+                buffer[length++] = digits[i];
+                if (i == decimals && decimals > 0) {
+                    buffer[length++] = '.';
+                }
+            }
+        }
+    }
+
+    private void __append(char c) {
+        __ensure(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void __append(String ascii) {
+        __ensure(ascii.length());
+        for (int i = 0; i < ascii.length(); i++) {
+            buffer[length++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private void __ensure(int size) {
+        if (length + size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + size));
+        }
+    }
+}
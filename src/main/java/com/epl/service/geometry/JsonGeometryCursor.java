@@ -0,0 +1,223 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Reads the geometries of esri_json or geojson bag elements as they are pulled. An element is a geometry, an array of
+ * geometries, a feature or a feature collection (an esri feature set or a GeoJSON FeatureCollection), so a single
+ * element can carry a whole feed. Features without a geometry are skipped.
+ * <p>
+ * All parsers come from one JsonFactory, which is thread safe and recycles its parsers' buffers per thread.
+ */
+class JsonGeometryCursor extends GeometryCursor {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private enum Kind {
+        GEOMETRY, FEATURE, FEATURES
+    }
+
+    private final ArrayDeque<String> elements;
+    private final boolean geoJson;
+    private int elementIndex = -1;
+    private int geometryId = -1;
+
+    // the element being read, null between elements
+    private JsonParser parser;
+    private JsonReader jsonReader;
+    // what the element's objects are, and whether they are in an array
+    private Kind kind;
+    private boolean inArray;
+
+    private JsonGeometryCursor(List<String> elements, boolean geoJson) {
+        this.elements = new ArrayDeque<>(elements);
+        this.geoJson = geoJson;
+    }
+
+    static GeometryCursor esriJsonCursor(List<String> esriJsonList) {
+        return new JsonGeometryCursor(esriJsonList, false);
+    }
+
+    static GeometryCursor geoJsonCursor(List<String> geoJsonList) {
+        return new JsonGeometryCursor(geoJsonList, true);
+    }
+
+    @Override
+    public Geometry next() {
+        try {
+            while (true) {
+                if (parser == null && !__nextElement()) {
+                    return null;
+                }
+                Geometry geometry = __nextGeometry();
+                if (geometry != null) {
+                    geometryId++;
+                    return geometry;
+                }
+                parser.close();
+                parser = null;
+            }
+        } catch (IOException | JsonGeometryException | IllegalArgumentException e) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription((geoJson ? "geojson" : "esri_json") + " element " + elementIndex + " could not be read: " + e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException();
+        }
+    }
+
+    @Override
+    public int getGeometryID() {
+        return geometryId;
+    }
+
+    public boolean hasNext() {
+        return parser != null || !elements.isEmpty();
+    }
+
+    private boolean __nextElement() throws IOException {
+        String element = elements.poll();
+        if (element == null) {
+            return false;
+        }
+        elementIndex++;
+
+        parser = JSON_FACTORY.createParser(element);
+        jsonReader = new JsonParserReader(parser);
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            kind = Kind.GEOMETRY;
+            inArray = true;
+            return true;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("expected an object or an array");
+        }
+
+        kind = __kind(element);
+        inArray = false;
+        if (kind != Kind.FEATURES) {
+            return true;
+        }
+        // into the features array, the geometries are read from each feature as it comes
+        kind = Kind.FEATURE;
+        inArray = true;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY && "features".equals(fieldName)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        throw new IllegalArgumentException("features not found");
+    }
+
+    // what an object element is, from the first of its fields that tells, usually its first
+    private static Kind __kind(String element) throws IOException {
+        try (JsonParser peekParser = JSON_FACTORY.createParser(element)) {
+            peekParser.nextToken();
+            while (peekParser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = peekParser.getCurrentName();
+                JsonToken token = peekParser.nextToken();
+                switch (fieldName) {
+                    case "features":
+                        return Kind.FEATURES;
+                    case "geometry":
+                        return Kind.FEATURE;
+                    case "type":
+                        if (token == JsonToken.VALUE_STRING) {
+                            String type = peekParser.getText();
+                            return type.equals("FeatureCollection") ? Kind.FEATURES : type.equals("Feature") ? Kind.FEATURE : Kind.GEOMETRY;
+                        }
+                        break;
+                    case "x":
+                    case "points":
+                    case "paths":
+                    case "rings":
+                    case "xmin":
+                    case "coordinates":
+                        return Kind.GEOMETRY;
+                }
+                peekParser.skipChildren();
+            }
+        }
+        return Kind.GEOMETRY;
+    }
+
+    // the next geometry of the current element, null once it has no more
+    private Geometry __nextGeometry() throws IOException {
+        if (inArray) {
+            JsonToken token = parser.nextToken();
+            while (token == JsonToken.START_OBJECT) {
+                Geometry geometry = kind == Kind.GEOMETRY ? __readGeometry() : __readFeatureGeometry();
+                if (geometry != null) {
+                    return geometry;
+                }
+                token = parser.nextToken();
+            }
+            if (token != JsonToken.END_ARRAY) {
+                throw new IllegalArgumentException("expected an object in the array");
+            }
+            return null;
+        }
+
+        // a lone geometry or feature, read once
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        Geometry geometry = kind == Kind.GEOMETRY ? __readGeometry() : __readFeatureGeometry();
+        parser.clearCurrentToken();
+        return geometry;
+    }
+
+    private Geometry __readGeometry() {
+        MapGeometry mapGeometry = geoJson ?
+                OperatorImportFromGeoJson.local().execute(GeoJsonImportFlags.geoJsonImportSkipCRS, Geometry.Type.Unknown, jsonReader, null) :
+                OperatorImportFromJson.local().execute(Geometry.Type.Unknown, jsonReader);
+        if (mapGeometry == null || mapGeometry.getGeometry() == null) {
+            throw new IllegalArgumentException("expected a geometry");
+        }
+        return mapGeometry.getGeometry();
+    }
+
+    // the parser is on the feature's start, and is left on its end
+    private Geometry __readFeatureGeometry() throws IOException {
+        Geometry geometry = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT && "geometry".equals(fieldName)) {
+                geometry = __readGeometry();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return geometry;
+    }
+}
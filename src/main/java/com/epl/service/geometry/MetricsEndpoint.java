@@ -0,0 +1,111 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.google.common.cache.CacheStats;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Serves the server metrics at /metrics in the Prometheus text format. Started on GEOMETRY_METRICS_PORT when it is
+ * set.
+ */
+class MetricsEndpoint {
+    private static final Logger logger = Logger.getLogger(MetricsEndpoint.class.getName());
+
+    private final HttpServer httpServer;
+    private final ExecutionSettings executionSettings;
+
+    MetricsEndpoint(int port, ExecutionSettings executionSettings) throws IOException {
+        this.executionSettings = executionSettings;
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+    }
+
+    /**
+     * @return an endpoint on GEOMETRY_METRICS_PORT, or null if the variable isn't set
+     */
+    static MetricsEndpoint fromEnvironment(ExecutionSettings executionSettings) throws IOException {
+        String port = System.getenv("GEOMETRY_METRICS_PORT");
+        if (port == null || port.isEmpty()) {
+            return null;
+        }
+        return new MetricsEndpoint(Integer.parseInt(port.trim()), executionSettings);
+    }
+
+    void start() {
+        httpServer.start();
+        logger.info("metrics served on port " + httpServer.getAddress().getPort());
+    }
+
+    void stop() {
+        httpServer.stop(0);
+    }
+
+    String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        OperatorMetrics.render(out);
+
+        __cache(out, "geometry_spatial_reference_cache", SpatialReferenceCache.stats(), SpatialReferenceCache.size());
+        __cache(out, "geometry_projection_cache", ProjectionTransformationCache.stats(), ProjectionTransformationCache.size());
+        __cache(out, "geometry_prepared_geometry_cache", PreparedGeometryCache.stats(), PreparedGeometryCache.size());
+
+        AdmissionController admission = executionSettings.admission;
+        out.append("# TYPE geometry_admission_rejected_total counter\n");
+        OperatorMetrics.sample(out, "geometry_admission_rejected_total", "", admission.rejectedCount());
+        out.append("# TYPE geometry_admission_cpu_slots_in_use gauge\n");
+        OperatorMetrics.sample(out, "geometry_admission_cpu_slots_in_use", "", admission.cpuSlotsInUse());
+        out.append("# TYPE geometry_admission_memory_bytes_in_use gauge\n");
+        OperatorMetrics.sample(out, "geometry_admission_memory_bytes_in_use", "", admission.memoryInUse());
+
+        out.append("# TYPE geometry_registry_bags gauge\n");
+        OperatorMetrics.sample(out, "geometry_registry_bags", "", executionSettings.registry.size());
+        out.append("# TYPE geometry_registry_memory_bytes gauge\n");
+        OperatorMetrics.sample(out, "geometry_registry_memory_bytes", "", executionSettings.registry.usedBytes());
+
+        out.append("# TYPE geometry_worker_pool_active_threads gauge\n");
+        OperatorMetrics.sample(out, "geometry_worker_pool_active_threads", "", executionSettings.workerPool.getActiveThreadCount());
+        out.append("# TYPE geometry_worker_pool_queued_tasks gauge\n");
+        OperatorMetrics.sample(out, "geometry_worker_pool_queued_tasks", "", executionSettings.workerPool.getQueuedSubmissionCount());
+        return out.toString();
+    }
+
+    private static void __cache(StringBuilder out, String name, CacheStats stats, long size) {
+        out.append("# TYPE ").append(name).append("_hits_total counter\n");
+        OperatorMetrics.sample(out, name + "_hits_total", "", stats.hitCount());
+        out.append("# TYPE ").append(name).append("_misses_total counter\n");
+        OperatorMetrics.sample(out, name + "_misses_total", "", stats.missCount());
+        out.append("# TYPE ").append(name).append("_size gauge\n");
+        OperatorMetrics.sample(out, name + "_size", "", size);
+    }
+}
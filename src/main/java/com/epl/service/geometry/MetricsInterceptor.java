@@ -0,0 +1,89 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records latency, status, in flight calls and message bytes in and out for every call, see {@link OperatorMetrics}.
+ */
+class MetricsInterceptor implements ServerInterceptor {
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        MethodDescriptor<ReqT, RespT> methodDescriptor = call.getMethodDescriptor();
+        String fullMethodName = methodDescriptor.getFullMethodName();
+        String method = fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+        boolean streaming = methodDescriptor.getType() != MethodDescriptor.MethodType.UNARY;
+        String labels = "method=\"" + method + "\"";
+        LongAdder receivedBytes = OperatorMetrics.counter("geometry_rpc_received_bytes_total", labels);
+        LongAdder sentBytes = OperatorMetrics.counter("geometry_rpc_sent_bytes_total", labels);
+
+        long start = System.nanoTime();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        OperatorMetrics.addInFlight(method, streaming, 1);
+
+        ServerCall<ReqT, RespT> measuredCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                if (message instanceof MessageLite) {
+                    sentBytes.add(((MessageLite) message).getSerializedSize());
+                }
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                __finish(method, streaming, start, status.getCode(), finished);
+                super.close(status, trailers);
+            }
+        };
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(measuredCall, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                if (message instanceof MessageLite) {
+                    receivedBytes.add(((MessageLite) message).getSerializedSize());
+                }
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                // a cancelled call may never be closed by the service
+                __finish(method, streaming, start, Status.Code.CANCELLED, finished);
+                super.onCancel();
+            }
+        };
+    }
+
+    private static void __finish(String method, boolean streaming, long start, Status.Code code, AtomicBoolean finished) {
+        if (finished.compareAndSet(false, true)) {
+            OperatorMetrics.addInFlight(method, streaming, -1);
+            OperatorMetrics.observeCall(method, code, System.nanoTime() - start);
+        }
+    }
+}
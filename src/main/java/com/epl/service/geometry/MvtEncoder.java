@@ -0,0 +1,344 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes the features of one tile as a single layer Mapbox Vector Tile (version 2 of the specification). Geometries
+ * come in map units and are quantised to the tile's extent, with the y axis pointing down from the tile's top edge.
+ * Consecutive points that quantise to the same position are dropped, as are lines and rings that collapse, and rings
+ * are wound the way the specification asks: exterior rings with a positive area in tile coordinates, holes negative.
+ * <p>
+ * The messages are small and fixed, so they are written with a {@link CodedOutputStream} rather than generated from
+ * the specification's proto file.
+ */
+class MvtEncoder {
+    // Tile
+    private static final int TILE_LAYERS = 3;
+    // Tile.Layer
+    private static final int LAYER_NAME = 1;
+    private static final int LAYER_FEATURES = 2;
+    private static final int LAYER_EXTENT = 5;
+    private static final int LAYER_VERSION = 15;
+    // Tile.Feature
+    private static final int FEATURE_ID = 1;
+    private static final int FEATURE_TYPE = 3;
+    private static final int FEATURE_GEOMETRY = 4;
+    // Tile.GeomType
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    // geometry commands
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+    private static final int CLOSE_PATH = 7;
+
+    private final int extent;
+    private final double xmin;
+    private final double ymax;
+    // tile units per map unit
+    private final double scale;
+
+    private final ByteString.Output features = ByteString.newOutput();
+    private final CodedOutputStream featuresOutput = CodedOutputStream.newInstance(features);
+    private int featureCount = 0;
+
+    // the command integers of the feature being written
+    private int[] commands = new int[64];
+    private int commandCount = 0;
+    // the cursor, commands are relative to the previous position within a feature
+    private int cursorX;
+    private int cursorY;
+    // the quantised points of the path being written
+    private int[] pathX = new int[64];
+    private int[] pathY = new int[64];
+
+    /**
+     * @param extent     tile units along each side of the tile
+     * @param tileBounds the tile in map units
+     */
+    MvtEncoder(int extent, Envelope2D tileBounds) {
+        this.extent = extent;
+        this.xmin = tileBounds.xmin;
+        this.ymax = tileBounds.ymax;
+        this.scale = extent / tileBounds.getWidth();
+    }
+
+    /**
+     * Add geometry, in map units, as a feature.
+     *
+     * @return false if nothing was left of geometry once quantised
+     */
+    boolean add(long id, Geometry geometry) {
+        if (geometry == null || geometry.isEmpty()) {
+            return false;
+        }
+
+        commandCount = 0;
+        cursorX = 0;
+        cursorY = 0;
+        int type;
+        switch (geometry.getType()) {
+            case Point:
+                type = POINT;
+                __points(new Point[]{(Point) geometry});
+                break;
+            case MultiPoint:
+                type = POINT;
+                MultiPoint multiPoint = (MultiPoint) geometry;
+                Point[] points = new Point[multiPoint.getPointCount()];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = multiPoint.getPoint(i);
+                }
+                __points(points);
+                break;
+            case Line:
+            case Polyline:
+                type = LINESTRING;
+                __lines(__multiPath(geometry));
+                break;
+            case Envelope:
+            case Polygon:
+                type = POLYGON;
+                __rings((Polygon) __multiPath(geometry));
+                break;
+            default:
+                return false;
+        }
+        if (commandCount == 0) {
+            return false;
+        }
+
+        try {
+            int geometrySize = 0;
+            for (int i = 0; i < commandCount; i++) {
+                geometrySize += CodedOutputStream.computeUInt32SizeNoTag(commands[i]);
+            }
+            int featureSize = CodedOutputStream.computeUInt64Size(FEATURE_ID, id) +
+                    CodedOutputStream.computeUInt32Size(FEATURE_TYPE, type) +
+                    CodedOutputStream.computeTagSize(FEATURE_GEOMETRY) +
+                    CodedOutputStream.computeUInt32SizeNoTag(geometrySize) +
+                    geometrySize;
+
+            featuresOutput.writeTag(LAYER_FEATURES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            featuresOutput.writeUInt32NoTag(featureSize);
+            featuresOutput.writeUInt64(FEATURE_ID, id);
+            featuresOutput.writeUInt32(FEATURE_TYPE, type);
+            featuresOutput.writeTag(FEATURE_GEOMETRY, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            featuresOutput.writeUInt32NoTag(geometrySize);
+            for (int i = 0; i < commandCount; i++) {
+                featuresOutput.writeUInt32NoTag(commands[i]);
+            }
+        } catch (IOException e) {
+            // a ByteString.Output doesn't throw
+            throw new IllegalStateException(e);
+        }
+        featureCount++;
+        return true;
+    }
+
+    int featureCount() {
+        return featureCount;
+    }
+
+    /**
+     * The tile, a single layer named layerName with every feature added so far.
+     */
+    ByteString encode(String layerName) {
+        ByteString.Output tile = ByteString.newOutput();
+        CodedOutputStream tileOutput = CodedOutputStream.newInstance(tile);
+        try {
+            featuresOutput.flush();
+            ByteString featureBytes = features.toByteString();
+            int layerSize = CodedOutputStream.computeUInt32Size(LAYER_VERSION, 2) +
+                    CodedOutputStream.computeStringSize(LAYER_NAME, layerName) +
+                    featureBytes.size() +
+                    CodedOutputStream.computeUInt32Size(LAYER_EXTENT, extent);
+
+            tileOutput.writeTag(TILE_LAYERS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            tileOutput.writeUInt32NoTag(layerSize);
+            tileOutput.writeUInt32(LAYER_VERSION, 2);
+            tileOutput.writeString(LAYER_NAME, layerName);
+            tileOutput.writeRawBytes(featureBytes);
+            tileOutput.writeUInt32(LAYER_EXTENT, extent);
+            tileOutput.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return tile.toByteString();
+    }
+
+    private void __points(Point[] points) {
+        __command(MOVE_TO, points.length);
+        for (Point point : points) {
+            __moveCursor(__x(point.getX()), __y(point.getY()));
+        }
+    }
+
+    private void __lines(MultiPath multiPath) {
+        for (int path = 0; path < multiPath.getPathCount(); path++) {
+            int count = __quantisePath(multiPath, path, false);
+            if (count < 2) {
+                continue;
+            }
+            __command(MOVE_TO, 1);
+            __moveCursor(pathX[0], pathY[0]);
+            __command(LINE_TO, count - 1);
+            for (int i = 1; i < count; i++) {
+                __moveCursor(pathX[i], pathY[i]);
+            }
+        }
+    }
+
+    private void __rings(Polygon polygon) {
+        boolean exteriorDropped = false;
+        for (int path = 0; path < polygon.getPathCount(); path++) {
+            boolean exterior = polygon.isExteriorRing(path);
+            if (!exterior && exteriorDropped) {
+                // the holes of a ring that collapsed
+                continue;
+            }
+
+            int count = __quantisePath(polygon, path, true);
+            long area = count < 3 ? 0 : __doubleArea(count);
+            if (area == 0) {
+                exteriorDropped |= exterior;
+                continue;
+            }
+            if (exterior) {
+                exteriorDropped = false;
+            }
+            if ((area > 0) != exterior) {
+                __reverse(count);
+            }
+
+            __command(MOVE_TO, 1);
+            __moveCursor(pathX[0], pathY[0]);
+            __command(LINE_TO, count - 1);
+            for (int i = 1; i < count; i++) {
+                __moveCursor(pathX[i], pathY[i]);
+            }
+            __command(CLOSE_PATH, 1);
+        }
+    }
+
+    // quantise the points of path into pathX and pathY without repeats, returns how many are left
+    private int __quantisePath(MultiPath multiPath, int path, boolean ring) {
+        int start = multiPath.getPathStart(path);
+        int end = multiPath.getPathEnd(path);
+        if (end - start > pathX.length) {
+            pathX = new int[end - start];
+            pathY = new int[end - start];
+        }
+
+        Point2D point = new Point2D();
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            multiPath.getXY(i, point);
+            int x = __x(point.x);
+            int y = __y(point.y);
+            if (count > 0 && pathX[count - 1] == x && pathY[count - 1] == y) {
+                continue;
+            }
+            pathX[count] = x;
+            pathY[count] = y;
+            count++;
+        }
+        // a ring is closed by its command, not by repeating the first point
+        while (ring && count > 1 && pathX[count - 1] == pathX[0] && pathY[count - 1] == pathY[0]) {
+            count--;
+        }
+        return count;
+    }
+
+    // twice the area of the first count points of the path by the specification's surveyor's formula
+    private long __doubleArea(int count) {
+        long area = 0;
+        for (int i = 0; i < count; i++) {
+            int next = i + 1 < count ? i + 1 : 0;
+            area += (long) pathX[i] * pathY[next] - (long) pathX[next] * pathY[i];
+        }
+        return area;
+    }
+
+    private void __reverse(int count) {
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            int x = pathX[i];
+            pathX[i] = pathX[j];
+            pathX[j] = x;
+            int y = pathY[i];
+            pathY[i] = pathY[j];
+            pathY[j] = y;
+        }
+    }
+
+    private void __command(int id, int count) {
+        __append((id & 0x7) | (count << 3));
+    }
+
+    private void __moveCursor(int x, int y) {
+        __append(__zigZag(x - cursorX));
+        __append(__zigZag(y - cursorY));
+        cursorX = x;
+        cursorY = y;
+    }
+
+    private void __append(int value) {
+        if (commandCount == commands.length) {
+            commands = Arrays.copyOf(commands, commandCount * 2);
+        }
+        commands[commandCount++] = value;
+    }
+
+    private int __x(double x) {
+        return (int) Math.round((x - xmin) * scale);
+    }
+
+    private int __y(double y) {
+        return (int) Math.round((ymax - y) * scale);
+    }
+
+    private static int __zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static MultiPath __multiPath(Geometry geometry) {
+        if (geometry instanceof MultiPath) {
+            return (MultiPath) geometry;
+        }
+        if (geometry.getType() == Geometry.Type.Envelope) {
+            Polygon polygon = new Polygon();
+            polygon.addEnvelope((Envelope) geometry, false);
+            return polygon;
+        }
+        // a Line segment
+        Polyline polyline = new Polyline();
+        polyline.addSegment((Segment) geometry, true);
+        return polyline;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Best first k nearest neighbour search over a {@link PackedRTree}. Nodes are visited in the order of a lower bound of
+ * their distance to the query and a candidate's exact distance is only computed once its own envelope is the closest
+ * thing left, so the search stops after touching little more than the k nearest candidates and the nodes around them.
+ */
+class NearestNeighbors {
+    // WGS84
+    private static final double SEMI_MINOR_AXIS = 6356752.314245;
+    private static final double ECCENTRICITY_SQUARED = 0.00669437999014;
+
+    /**
+     * Distances from one query geometry.
+     */
+    interface Metric {
+        /**
+         * @return a distance no greater than the distance to anything inside the box of node
+         */
+        double bound(PackedRTree index, int node);
+
+        double distance(Geometry candidate);
+    }
+
+    static class Neighbor {
+        final int item;
+        final double distance;
+
+        Neighbor(int item, double distance) {
+            this.item = item;
+            this.distance = distance;
+        }
+    }
+
+    private static class Entry {
+        final int node;
+        final double distance;
+        // distance is the exact distance to the node's item rather than a bound
+        final boolean exact;
+
+        Entry(int node, double distance, boolean exact) {
+            this.node = node;
+            this.distance = distance;
+            this.exact = exact;
+        }
+    }
+
+    /**
+     * @param candidates  the geometries index was built from
+     * @param maxDistance candidates farther than this are left out, 0 for no limit
+     * @return up to k candidates, closest first
+     */
+    static List<Neighbor> search(PackedRTree index,
+                                 List<Geometry> candidates,
+                                 Metric metric,
+                                 int k,
+                                 double maxDistance,
+                                 ProgressTracker progressTracker) {
+        List<Neighbor> neighbors = new ArrayList<>(Math.min(k, index.size()));
+        if (index.size() == 0 || k < 1) {
+            return neighbors;
+        }
+        double limit = maxDistance > 0 ? maxDistance : Double.POSITIVE_INFINITY;
+
+        PriorityQueue<Entry> queue = new PriorityQueue<>((a, b) -> {
+            int compare = Double.compare(a.distance, b.distance);
+            return compare != 0 ? compare : Integer.compare(a.node, b.node);
+        });
+        __push(queue, index.root(), metric.bound(index, index.root()), limit);
+        while (!queue.isEmpty()) {
+            Entry entry = queue.poll();
+            if (entry.distance > limit) {
+                // everything left in the queue is at least as far
+                break;
+            }
+            if (entry.exact) {
+                neighbors.add(new Neighbor(index.item(entry.node), entry.distance));
+                if (neighbors.size() == k) {
+                    break;
+                }
+                continue;
+            }
+
+            if (index.isLeaf(entry.node)) {
+                ProgressTracker.checkAndThrow(progressTracker);
+                // goes back in the queue, anything closer still gets out first
+                queue.add(new Entry(entry.node, metric.distance(candidates.get(index.item(entry.node))), true));
+                continue;
+            }
+            int end = index.childEnd(entry.node);
+            for (int child = index.childStart(entry.node); child < end; child++) {
+                __push(queue, child, metric.bound(index, child), limit);
+            }
+        }
+        return neighbors;
+    }
+
+    private static void __push(PriorityQueue<Entry> queue, int node, double bound, double limit) {
+        // the boxes of empty geometries are infinitely far from everything
+        if (bound <= limit && bound != Double.POSITIVE_INFINITY) {
+            queue.add(new Entry(node, bound, false));
+        }
+    }
+
+    /**
+     * Planar distance in the units of the geometries' spatial reference.
+     */
+    static Metric planar(Geometry query, ProgressTracker progressTracker) {
+        Envelope2D envelope = new Envelope2D();
+        query.queryEnvelope2D(envelope);
+        return new Metric() {
+            @Override
+            public double bound(PackedRTree index, int node) {
+                double dx = Math.max(0, Math.max(index.xmin(node) - envelope.xmax, envelope.xmin - index.xmax(node)));
+                double dy = Math.max(0, Math.max(index.ymin(node) - envelope.ymax, envelope.ymin - index.ymax(node)));
+                return Math.sqrt(dx * dx + dy * dy);
+            }
+
+            @Override
+            public double distance(Geometry candidate) {
+                return OperatorDistance.local().execute(query, candidate, progressTracker);
+            }
+        };
+    }
+
+    /**
+     * Distance in meters on the WGS84 ellipsoid from a query point to geometries in longitude and latitude. The
+     * distance to a line or polygon is measured to its planar nearest coordinate, which is exact for points and close
+     * for anything whose segments are short compared to their distance from the query.
+     */
+    static Metric geodesic(Point query) {
+        double queryLatitude = __geocentricLatitude(query.getY());
+        double queryCos = Math.cos(queryLatitude);
+        return new Metric() {
+            @Override
+            public double bound(PackedRTree index, int node) {
+                if (index.xmin(node) > index.xmax(node)) {
+                    // the inverted box of an empty geometry
+                    return Double.POSITIVE_INFINITY;
+                }
+
+                // haversine on the sphere inscribed in the ellipsoid, which is never longer than the geodesic. every
+                // term is at its smallest over the box, so the sum is a lower bound for any point in it
+                double minLatitude = __geocentricLatitude(index.ymin(node));
+                double maxLatitude = __geocentricLatitude(index.ymax(node));
+                double dLatitude = Math.max(0, Math.max(minLatitude - queryLatitude, queryLatitude - maxLatitude));
+                double dLongitude = Math.toRadians(__longitudeGap(query.getX(), index.xmin(node), index.xmax(node)));
+                double boxCos = Math.min(Math.cos(minLatitude), Math.cos(maxLatitude));
+                double sinLatitude = Math.sin(dLatitude / 2);
+                double sinLongitude = Math.sin(dLongitude / 2);
+                double haversine = sinLatitude * sinLatitude + queryCos * boxCos * sinLongitude * sinLongitude;
+                return 2 * SEMI_MINOR_AXIS * Math.asin(Math.min(1, Math.sqrt(haversine)));
+            }
+
+            @Override
+            public double distance(Geometry candidate) {
+                if (candidate.isEmpty()) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                if (candidate.getType() == Geometry.Type.Point) {
+                    return GeometryEngine.geodesicDistanceOnWGS84(query, (Point) candidate);
+                }
+                Proximity2DResult nearest = OperatorProximity2D.local().getNearestCoordinate(candidate, query, true);
+                if (nearest.getDistance() == 0) {
+                    return 0;
+                }
+                return GeometryEngine.geodesicDistanceOnWGS84(query, nearest.getCoordinate());
+            }
+        };
+    }
+
+    // latitude on the inscribed sphere of the point at latitude degrees on the ellipsoid, in radians
+    private static double __geocentricLatitude(double latitude) {
+        double clamped = Math.max(-90, Math.min(90, latitude));
+        return Math.atan((1 - ECCENTRICITY_SQUARED) * Math.tan(Math.toRadians(clamped)));
+    }
+
+    // degrees of longitude between longitude and the closest edge of [xmin, xmax], either way round the antimeridian
+    private static double __longitudeGap(double longitude, double xmin, double xmax) {
+        if (xmax - xmin >= 360 || (longitude >= xmin && longitude <= xmax)) {
+            return 0;
+        }
+        double east = ((xmin - longitude) % 360 + 360) % 360;
+        double west = ((longitude - xmax) % 360 + 360) % 360;
+        return Math.min(180, Math.min(east, west));
+    }
+}
@@ -0,0 +1,349 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryCursor;
+import com.esri.core.geometry.MultiVertexGeometry;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide counters and latency histograms, rendered in the Prometheus text format by {@link #render(StringBuilder)}.
+ * <p>
+ * Operator requests are broken down by {@link Stage}. The geometry pipeline is a chain of lazy cursors, so a stage
+ * doesn't run in one block: decoding a geometry happens inside the operator's call to next() on its input, and so
+ * on. Each stage is timed with {@link Recorder#time(GeometryCursor, OperatorRequest, Stage)}, which only counts
+ * the time spent in the stage itself and not in the stages it pulls from.
+ */
+class OperatorMetrics {
+    enum Stage {
+        decode,
+        project,
+        operate,
+        encode
+    }
+
+    // seconds, from 100 microseconds for point requests up to bulk requests
+    private static final double[] BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+    };
+    // the le labels of BUCKETS as plain decimals, Double.toString would write 1.0E-4
+    private static final String[] BUCKET_LABELS = Arrays.stream(BUCKETS)
+            .mapToObj(bucket -> BigDecimal.valueOf(bucket).toPlainString())
+            .toArray(String[]::new);
+
+    static class Histogram {
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            count.increment();
+            sumNanos.addAndGet(nanos);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        void render(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts[i].sum();
+                sample(out, name + "_bucket", labels + ",le=\"" + BUCKET_LABELS[i] + "\"", cumulative);
+            }
+            cumulative += counts[BUCKETS.length].sum();
+            sample(out, name + "_bucket", labels + ",le=\"+Inf\"", cumulative);
+            sample(out, name + "_sum", labels, sumNanos.get() / 1e9);
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+
+    // keyed by the rendered label set
+    private static final ConcurrentMap<String, Histogram> stageSeconds = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> callSeconds = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AtomicLong> inFlight = new ConcurrentHashMap<>();
+
+    static void observeStage(ServiceOperatorType operatorType, Stage stage, long nanos) {
+        __histogram(stageSeconds, "operator=\"" + operatorType + "\",stage=\"" + stage + "\"").observeNanos(nanos);
+    }
+
+    static void observeCall(String method, io.grpc.Status.Code code, long nanos) {
+        __histogram(callSeconds, "method=\"" + method + "\"").observeNanos(nanos);
+        increment("geometry_rpc_calls_total", "method=\"" + method + "\",code=\"" + code + "\"", 1);
+    }
+
+    static void increment(String name, String labels, long amount) {
+        counter(name, labels).add(amount);
+    }
+
+    static LongAdder counter(String name, String labels) {
+        String key = name + "{" + labels + "}";
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        return counter;
+    }
+
+    static void addInFlight(String method, boolean streaming, int delta) {
+        String key = "method=\"" + method + "\",streaming=\"" + streaming + "\"";
+        inFlight.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    static Histogram stageHistogram(ServiceOperatorType operatorType, Stage stage) {
+        return stageSeconds.get("operator=\"" + operatorType + "\",stage=\"" + stage + "\"");
+    }
+
+    static void render(StringBuilder out) {
+        out.append("# HELP geometry_operator_stage_seconds Time an operator request spent in each stage.\n");
+        out.append("# TYPE geometry_operator_stage_seconds histogram\n");
+        stageSeconds.forEach((labels, histogram) -> histogram.render(out, "geometry_operator_stage_seconds", labels));
+
+        out.append("# HELP geometry_rpc_seconds Latency of completed calls.\n");
+        out.append("# TYPE geometry_rpc_seconds histogram\n");
+        callSeconds.forEach((labels, histogram) -> histogram.render(out, "geometry_rpc_seconds", labels));
+
+        out.append("# HELP geometry_rpc_in_flight Calls that have started and not yet finished.\n");
+        out.append("# TYPE geometry_rpc_in_flight gauge\n");
+        inFlight.forEach((labels, value) -> sample(out, "geometry_rpc_in_flight", labels, value.get()));
+
+        // counters are registered on first use, group the samples by metric name for the TYPE lines
+        Map<String, StringBuilder> byName = new java.util.TreeMap<>();
+        counters.forEach((key, value) -> {
+            String name = key.substring(0, key.indexOf('{'));
+            String labels = key.substring(name.length() + 1, key.length() - 1);
+            sample(byName.computeIfAbsent(name, n -> new StringBuilder()), name, labels, value.sum());
+        });
+        byName.forEach((name, samples) -> {
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(samples);
+        });
+    }
+
+    static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static Histogram __histogram(ConcurrentMap<String, Histogram> histograms, String labels) {
+        Histogram histogram = histograms.get(labels);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(labels, key -> new Histogram());
+        }
+        return histogram;
+    }
+
+    /**
+     * Collects the stage times and geometry counts of one operator request on the thread that runs it, and adds them
+     * to the server metrics when the request is finished. One observation is made per stage and operator type, so a
+     * stream of small requests isn't weighed differently from one large request.
+     * <p>
+     * When the call asked for a {@link RequestTrace}, the same timings, plus thread CPU time, are also kept for each
+     * node of the request tree.
+     * <p>
+     * A recorder isn't thread safe. A timed cursor that another thread pulls, like a worker of a parallel operator,
+     * only adds to the shared geometry and vertex counters; the work it does there is timed by that thread's own
+     * recorder, if it has one.
+     */
+    static class Recorder {
+        private static final ThreadLocal<Recorder> current = new ThreadLocal<>();
+
+        private final Thread owner = Thread.currentThread();
+        private final Recorder previous;
+        private final Map<ServiceOperatorType, long[]> stageNanos = new EnumMap<>(ServiceOperatorType.class);
+        // time spent in nested stages while the innermost running stage was active
+        private long childNanos = 0;
+
+        // null unless the call is traced
+        private final RequestTrace requestTrace;
+        private final Map<OperatorRequest, RequestTrace.Node> traceNodes;
+        private long childCpuNanos = 0;
+        // saved childCpuNanos and cpu start time of each running stage, innermost last
+        private long[] cpuStack;
+        private int cpuStackSize = 0;
+
+        private Recorder(Recorder previous, OperatorRequest operatorRequest) {
+            this.previous = previous;
+            this.requestTrace = RequestTrace.current();
+            if (requestTrace != null) {
+                traceNodes = RequestTrace.nodes(operatorRequest);
+                cpuStack = new long[16];
+            } else {
+                traceNodes = null;
+            }
+        }
+
+        /**
+         * Start recording operatorRequest, run by the current thread, until {@link #finish()}.
+         */
+        static Recorder begin(OperatorRequest operatorRequest) {
+            Recorder recorder = new Recorder(current.get(), operatorRequest);
+            current.set(recorder);
+            return recorder;
+        }
+
+        /**
+         * @return the recorder of the request the current thread is running, or null if it isn't recording
+         */
+        static Recorder current() {
+            return current.get();
+        }
+
+        void finish() {
+            current.set(previous);
+            stageNanos.forEach((operatorType, nanos) -> {
+                for (Stage stage : Stage.values()) {
+                    if (nanos[stage.ordinal()] > 0) {
+                        observeStage(operatorType, stage, nanos[stage.ordinal()]);
+                    }
+                }
+            });
+            if (requestTrace != null) {
+                requestTrace.merge(traceNodes.values());
+            }
+        }
+
+        /**
+         * Time the next() calls of geometryCursor as stage of operatorRequest. Decoded inputs and operator results
+         * are also counted. Only the calls made on the thread that began this recorder are timed.
+         */
+        GeometryCursor time(GeometryCursor geometryCursor, OperatorRequest operatorRequest, Stage stage) {
+            if (geometryCursor == null) {
+                return null;
+            }
+            ServiceOperatorType operatorType = operatorRequest.getOperatorType();
+            long[] nanos = stageNanos.computeIfAbsent(operatorType, key -> new long[Stage.values().length]);
+            RequestTrace.Node node = traceNodes == null ? null : traceNodes.get(operatorRequest);
+            String direction = stage == Stage.decode ? "in" : stage == Stage.operate ? "out" : null;
+            String labels = "operator=\"" + operatorType + "\",direction=\"" + direction + "\"";
+            LongAdder geometries = direction == null ? null : counter("geometry_operator_geometries_total", labels);
+            LongAdder vertices = direction == null ? null : counter("geometry_operator_vertices_total", labels);
+            return new ForwardingGeometryCursor(geometryCursor) {
+                @Override
+                public Geometry next() {
+                    if (Thread.currentThread() != owner) {
+                        Geometry geometry = super.next();
+                        if (geometry != null && geometries != null) {
+                            geometries.increment();
+                            vertices.add(__vertexCount(geometry));
+                        }
+                        return geometry;
+                    }
+                    long saved = enter();
+                    long start = System.nanoTime();
+                    Geometry geometry;
+                    try {
+                        geometry = super.next();
+                    } finally {
+                        exit(nanos, node, stage, start, saved);
+                    }
+                    if (geometry != null && geometries != null) {
+                        long vertexCount = __vertexCount(geometry);
+                        geometries.increment();
+                        vertices.add(vertexCount);
+                        if (node != null) {
+                            node.count(stage == Stage.decode, vertexCount);
+                        }
+                    }
+                    return geometry;
+                }
+            };
+        }
+
+        /**
+         * Start timing a stage that isn't a cursor. Pass the returned value to {@link #stop}.
+         */
+        long enter() {
+            if (cpuStack != null) {
+                if (cpuStackSize + 2 > cpuStack.length) {
+                    cpuStack = Arrays.copyOf(cpuStack, cpuStack.length * 2);
+                }
+                cpuStack[cpuStackSize++] = childCpuNanos;
+                cpuStack[cpuStackSize++] = RequestTrace.threadCpuNanos();
+                childCpuNanos = 0;
+            }
+            long saved = childNanos;
+            childNanos = 0;
+            return saved;
+        }
+
+        void stop(OperatorRequest operatorRequest, Stage stage, long start, long saved) {
+            exit(stageNanos.computeIfAbsent(operatorRequest.getOperatorType(), key -> new long[Stage.values().length]),
+                    traceNodes == null ? null : traceNodes.get(operatorRequest),
+                    stage,
+                    start,
+                    saved);
+        }
+
+        private void exit(long[] nanos, RequestTrace.Node node, Stage stage, long start, long saved) {
+            long elapsed = System.nanoTime() - start;
+            nanos[stage.ordinal()] += elapsed - childNanos;
+            if (cpuStack != null) {
+                long cpuElapsed = RequestTrace.threadCpuNanos() - cpuStack[--cpuStackSize];
+                long savedCpu = cpuStack[--cpuStackSize];
+                if (node != null) {
+                    node.add(elapsed - childNanos, cpuElapsed - childCpuNanos);
+                }
+                childCpuNanos = savedCpu + cpuElapsed;
+            }
+            // the stage that is running this one sees all of it as time spent in a child
+            childNanos = saved + elapsed;
+        }
+
+        private static long __vertexCount(Geometry geometry) {
+            if (geometry instanceof MultiVertexGeometry) {
+                return ((MultiVertexGeometry) geometry).getPointCount();
+            }
+            return geometry.isEmpty() ? 0 : 1;
+        }
+    }
+}
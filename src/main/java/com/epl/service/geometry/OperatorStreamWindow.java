@@ -0,0 +1,281 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Runs the messages of a bidirectional stream on a worker pool while keeping a bounded window of them in flight.
+ * An ordered window hands results to the response observer in the order the requests arrived, an unordered one sends
+ * each result as soon as it is finished.
+ * <p>
+ * The window pulls messages from the client with manual flow control. A message counts against the window from the
+ * moment it is requested until its result is sent, and nothing more is requested while the response transport is not
+ * ready, so neither side of the call buffers without bound.
+ * <p>
+ * When the requests are produced on the server instead, like records decoded from a file upload, the producer hands
+ * them over with {@link #put(OperatorRequest)}, which blocks while the window is full, and the caller owns the
+ * inbound flow control of the call.
+ */
+class OperatorStreamWindow implements StreamObserver<OperatorRequest> {
+    private static final Logger logger = Logger.getLogger(OperatorStreamWindow.class.getName());
+
+    interface Operation {
+        OperatorResult execute(OperatorRequest operatorRequest) throws IOException;
+    }
+
+    private static class Slot {
+        final OperatorRequest request;
+        OperatorResult result;
+        Throwable error;
+        boolean done;
+
+        Slot(OperatorRequest request) {
+            this.request = request;
+        }
+    }
+
+    private final ServerCallStreamObserver<OperatorResult> responseObserver;
+    private final Executor executor;
+    private final Operation operation;
+    private final int windowSize;
+    private final int parallelism;
+    private final boolean ordered;
+    private final boolean pullFromCall;
+
+    // all of the below are guarded by this
+    // received and not yet answered, in arrival order
+    private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+    // received and not yet handed to the executor
+    private final ArrayDeque<Slot> pending = new ArrayDeque<>();
+    private int running = 0;
+    private int requested = 0;
+    private boolean halfClosed = false;
+    private boolean finished = false;
+
+    OperatorStreamWindow(StreamObserver<OperatorResult> responseObserver,
+                         ExecutionSettings settings,
+                         boolean ordered,
+                         Operation operation) {
+        this(responseObserver, settings, ordered, true, operation);
+    }
+
+    OperatorStreamWindow(StreamObserver<OperatorResult> responseObserver,
+                         ExecutionSettings settings,
+                         boolean ordered,
+                         boolean pullFromCall,
+                         Operation operation) {
+        this.responseObserver = (ServerCallStreamObserver<OperatorResult>) responseObserver;
+        this.executor = settings.workerPool;
+        this.windowSize = settings.streamWindow;
+        this.parallelism = settings.streamParallelism;
+        this.ordered = ordered;
+        this.pullFromCall = pullFromCall;
+        this.operation = operation;
+
+        if (pullFromCall) {
+            // Set up manual flow control for the request stream. It feels backwards to configure the request
+            // stream's flow control using the response stream's observer, but this is the way it is.
+            this.responseObserver.disableAutoInboundFlowControl();
+        }
+        // the first onReady primes the message pump, later ones top the window back up when the transport drains
+        this.responseObserver.setOnReadyHandler(this::__pull);
+        this.responseObserver.setOnCancelHandler(() -> {
+            synchronized (OperatorStreamWindow.this) {
+                finished = true;
+                pending.clear();
+                slots.clear();
+                notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Add a request produced on the server, waiting while the window is full or the response transport is not ready.
+     *
+     * @return false if the call is already finished and the request was dropped
+     */
+    synchronized boolean put(OperatorRequest value) throws InterruptedException {
+        while (!finished && (slots.size() >= windowSize || !responseObserver.isReady())) {
+            wait();
+        }
+        if (finished) {
+            return false;
+        }
+
+        __add(value);
+        return true;
+    }
+
+    /**
+     * End the call with an error, dropping any results still in the window.
+     */
+    synchronized void fail(Throwable t) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        pending.clear();
+        slots.clear();
+        notifyAll();
+        responseObserver.onError(Status.fromThrowable(t).withCause(t).asException());
+    }
+
+    @Override
+    public synchronized void onNext(OperatorRequest value) {
+        requested--;
+        if (finished) {
+            return;
+        }
+
+        __add(value);
+    }
+
+    // must hold the lock
+    private void __add(OperatorRequest value) {
+        Slot slot = new Slot(value);
+        slots.add(slot);
+        pending.add(slot);
+        __dispatch();
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        // End the response stream if the client presents an error.
+        t.printStackTrace();
+        pending.clear();
+        slots.clear();
+        if (!finished) {
+            finished = true;
+            responseObserver.onCompleted();
+        }
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        // results still in the window are sent before the response stream is closed
+        halfClosed = true;
+        __drain();
+    }
+
+    private void __run(Slot slot) {
+        OperatorResult result = null;
+        Throwable error = null;
+        try {
+            result = operation.execute(slot.request);
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        synchronized (this) {
+            running--;
+            slot.result = result;
+            slot.error = error;
+            slot.done = true;
+            __drain();
+            __dispatch();
+        }
+        __pull();
+    }
+
+    // must hold the lock
+    private void __dispatch() {
+        while (!finished && running < parallelism && !pending.isEmpty()) {
+            Slot slot = pending.poll();
+            running++;
+            // carry the call context (deadline, cancellation, call settings) onto the worker thread
+            executor.execute(Context.current().wrap(() -> __run(slot)));
+        }
+    }
+
+    // must hold the lock
+    private void __drain() {
+        Iterator<Slot> iterator = slots.iterator();
+        while (!finished && iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (!slot.done) {
+                if (ordered) {
+                    // everything behind an unfinished slot has to wait for it
+                    break;
+                }
+                continue;
+            }
+
+            iterator.remove();
+            if (slot.error != null) {
+                slot.error.printStackTrace();
+                finished = true;
+                pending.clear();
+                slots.clear();
+                notifyAll();
+                // keep statuses raised on purpose, like RESOURCE_EXHAUSTED from admission control
+                Status status = Status.fromThrowable(slot.error);
+                if (status.getCode() == Status.Code.UNKNOWN) {
+                    status = Status.UNKNOWN.withDescription("Error handling request");
+                }
+                responseObserver.onError(status.withCause(slot.error).asException());
+                return;
+            }
+            responseObserver.onNext(slot.result);
+        }
+
+        if (!finished && halfClosed && slots.isEmpty()) {
+            // Signal the end of work when the client ends the request stream.
+            logger.info("COMPLETED");
+            finished = true;
+            responseObserver.onCompleted();
+        }
+    }
+
+    /**
+     * Ask the client for as many messages as fit in the window. Only called while the response transport is ready,
+     * otherwise results would pile up in the transport buffer faster than the client reads them.
+     */
+    private void __pull() {
+        int count;
+        synchronized (this) {
+            if (!pullFromCall) {
+                // wake the producer instead
+                notifyAll();
+                return;
+            }
+            if (finished || halfClosed || !responseObserver.isReady()) {
+                return;
+            }
+            count = windowSize - slots.size() - requested;
+            if (count <= 0) {
+                return;
+            }
+            requested += count;
+        }
+        // request is safe to call from any thread, and is done outside the lock as it may deliver messages inline
+        responseObserver.request(count);
+    }
+}
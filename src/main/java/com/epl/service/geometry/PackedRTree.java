@@ -0,0 +1,247 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A static R-tree over the envelopes of a fixed set of items, bulk loaded with Sort-Tile-Recursive packing. Every
+ * node is full except the last one of each level, and the whole tree is a handful of flat arrays, so it is cheap to
+ * build, compact and safe to search from any number of threads once built.
+ * <p>
+ * Nodes are numbered level by level from the leaves up: positions [0, size) are the items in packed order, the root is
+ * the last position. {@link #isLeaf(int)}, {@link #childStart(int)}, {@link #childEnd(int)} and the box accessors
+ * expose the tree for searches that need their own traversal order, like nearest neighbour.
+ */
+class PackedRTree {
+    static final int NODE_SIZE = 16;
+
+    private final int size;
+    // xmin, ymin, xmax, ymax of every node
+    private final double[] boxes;
+    // the item of a leaf, the first child of an inner node
+    private final int[] indices;
+    // the end position of each level, leaves first
+    private final int[] levelEnds;
+
+    /**
+     * @param envelopes the envelope of each item, items are identified by their position in this array. Empty
+     *                  envelopes are never found by a search.
+     */
+    PackedRTree(Envelope2D[] envelopes) {
+        size = envelopes.length;
+
+        // count the nodes of each level
+        int levelCount = 1;
+        int total = size;
+        int levelSize = size;
+        while (levelSize > 1) {
+            levelSize = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+            total += levelSize;
+            levelCount++;
+        }
+        boxes = new double[total * 4];
+        indices = new int[total];
+        levelEnds = new int[levelCount];
+
+        Integer[] order = __strOrder(envelopes);
+        for (int position = 0; position < size; position++) {
+            int item = order[position];
+            Envelope2D envelope = envelopes[item];
+            if (envelope.isEmpty()) {
+                // an inverted box that intersects nothing and doesn't grow its parent
+                __setBox(position, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+            } else {
+                __setBox(position, envelope.xmin, envelope.ymin, envelope.xmax, envelope.ymax);
+            }
+            indices[position] = item;
+        }
+
+        // each parent covers the next NODE_SIZE nodes of the level below
+        int levelStart = 0;
+        int levelEnd = size;
+        int position = size;
+        levelEnds[0] = size;
+        for (int level = 1; level < levelCount; level++) {
+            for (int child = levelStart; child < levelEnd; child += NODE_SIZE) {
+                int childEnd = Math.min(child + NODE_SIZE, levelEnd);
+                double xmin = Double.POSITIVE_INFINITY;
+                double ymin = Double.POSITIVE_INFINITY;
+                double xmax = Double.NEGATIVE_INFINITY;
+                double ymax = Double.NEGATIVE_INFINITY;
+                for (int i = child; i < childEnd; i++) {
+                    xmin = Math.min(xmin, boxes[i * 4]);
+                    ymin = Math.min(ymin, boxes[i * 4 + 1]);
+                    xmax = Math.max(xmax, boxes[i * 4 + 2]);
+                    ymax = Math.max(ymax, boxes[i * 4 + 3]);
+                }
+                __setBox(position, xmin, ymin, xmax, ymax);
+                indices[position] = child;
+                position++;
+            }
+            levelStart = levelEnd;
+            levelEnd = position;
+            levelEnds[level] = levelEnd;
+        }
+    }
+
+    /**
+     * A tree over the envelopes of geometries, items are identified by their position in the list.
+     */
+    static PackedRTree fromGeometries(List<Geometry> geometries) {
+        Envelope2D[] envelopes = new Envelope2D[geometries.size()];
+        for (int i = 0; i < envelopes.length; i++) {
+            envelopes[i] = new Envelope2D();
+            geometries.get(i).queryEnvelope2D(envelopes[i]);
+        }
+        return new PackedRTree(envelopes);
+    }
+
+    /**
+     * Sort-Tile-Recursive: sort by x into vertical slices that each fill a whole number of leaf nodes, then sort each
+     * slice by y, so every node covers a compact tile.
+     */
+    private static Integer[] __strOrder(Envelope2D[] envelopes) {
+        int size = envelopes.length;
+        Integer[] order = new Integer[size];
+        double[] centerX = new double[size];
+        double[] centerY = new double[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            Envelope2D envelope = envelopes[i];
+            centerX[i] = envelope.isEmpty() ? Double.MAX_VALUE : (envelope.xmin + envelope.xmax) / 2;
+            centerY[i] = envelope.isEmpty() ? Double.MAX_VALUE : (envelope.ymin + envelope.ymax) / 2;
+        }
+
+        Arrays.sort(order, (a, b) -> Double.compare(centerX[a], centerX[b]));
+        int leafCount = (size + NODE_SIZE - 1) / NODE_SIZE;
+        int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+        int sliceSize = NODE_SIZE * ((leafCount + sliceCount - 1) / Math.max(1, sliceCount));
+        for (int start = 0; start < size; start += Math.max(1, sliceSize)) {
+            Arrays.sort(order, start, Math.min(start + sliceSize, size), (a, b) -> Double.compare(centerY[a], centerY[b]));
+        }
+        return order;
+    }
+
+    private void __setBox(int position, double xmin, double ymin, double xmax, double ymax) {
+        boxes[position * 4] = xmin;
+        boxes[position * 4 + 1] = ymin;
+        boxes[position * 4 + 2] = xmax;
+        boxes[position * 4 + 3] = ymax;
+    }
+
+    /**
+     * Calls visitor with every item whose envelope intersects envelope, in no particular order.
+     */
+    void search(Envelope2D envelope, IntConsumer visitor) {
+        if (size == 0 || envelope.isEmpty()) {
+            return;
+        }
+
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root();
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (!__intersects(node, envelope)) {
+                continue;
+            }
+            if (isLeaf(node)) {
+                visitor.accept(indices[node]);
+                continue;
+            }
+            int end = childEnd(node);
+            for (int child = childStart(node); child < end; child++) {
+                if (stackSize == stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[stackSize++] = child;
+            }
+        }
+    }
+
+    private boolean __intersects(int node, Envelope2D envelope) {
+        return boxes[node * 4] <= envelope.xmax &&
+                boxes[node * 4 + 1] <= envelope.ymax &&
+                boxes[node * 4 + 2] >= envelope.xmin &&
+                boxes[node * 4 + 3] >= envelope.ymin;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int root() {
+        return indices.length - 1;
+    }
+
+    boolean isLeaf(int node) {
+        return node < size;
+    }
+
+    /**
+     * @return the item at a leaf node
+     */
+    int item(int node) {
+        return indices[node];
+    }
+
+    int childStart(int node) {
+        return indices[node];
+    }
+
+    int childEnd(int node) {
+        // the children are in the level below the node's own
+        int level = 0;
+        while (node >= levelEnds[level]) {
+            level++;
+        }
+        return Math.min(indices[node] + NODE_SIZE, levelEnds[level - 1]);
+    }
+
+    double xmin(int node) {
+        return boxes[node * 4];
+    }
+
+    double ymin(int node) {
+        return boxes[node * 4 + 1];
+    }
+
+    double xmax(int node) {
+        return boxes[node * 4 + 2];
+    }
+
+    double ymax(int node) {
+        return boxes[node * 4 + 3];
+    }
+
+    /**
+     * @return bytes held by the tree
+     */
+    long memoryBytes() {
+        return boxes.length * 8L + indices.length * 4L;
+    }
+}
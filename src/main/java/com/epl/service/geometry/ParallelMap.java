@@ -0,0 +1,225 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import io.grpc.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs a request whose operators each work one geometry at a time, like a buffer of a projection of a bag, as chunks
+ * of its input bag on the worker pool. Every chunk goes through the whole pipeline on its own: decode, project,
+ * operate and encode. The encoded chunks are concatenated in input order, geometry_ids included, so the result is the
+ * same as running the request on one thread.
+ * <p>
+ * Each chunk is run, and observed by the metrics, as a request of its own.
+ */
+class ParallelMap {
+    // geometries per chunk
+    static final int CHUNK_SIZE = 1024;
+
+    /**
+     * @return true if operatorRequest is made only of per geometry operators over a single bag of more than one chunk,
+     * and no level asks for arrow results, which are a single stream that chunks can't be appended to
+     */
+    static boolean splits(OperatorRequest operatorRequest, ForkJoinPool workerPool) {
+        if (workerPool.getParallelism() < 2) {
+            return false;
+        }
+
+        OperatorRequest level = operatorRequest;
+        while (true) {
+            if (!__perGeometry(level) || level.getResultsEncodingType() == GeometryEncodingType.arrow) {
+                return false;
+            }
+            if (level.hasLeftGeometryBag()) {
+                return __splits(level.getLeftGeometryBag());
+            } else if (level.hasGeometryBag()) {
+                return __splits(level.getGeometryBag());
+            } else if (!level.getLeftGeometryHandle().isEmpty()) {
+                // registered bags are already decoded
+                return false;
+            } else if (level.hasLeftGeometryRequest()) {
+                level = level.getLeftGeometryRequest();
+            } else if (level.hasGeometryRequest()) {
+                level = level.getGeometryRequest();
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Run operatorRequest, which {@link #splits}, as chunks on workerPool.
+     */
+    static OperatorResult execute(OperatorRequest operatorRequest, ForkJoinPool workerPool) {
+        OperatorRequest.Builder chunkBuilder = operatorRequest.toBuilder();
+        OperatorRequest.Builder leafBuilder = __leafBuilder(chunkBuilder);
+        boolean left = leafBuilder.hasLeftGeometryBag();
+        GeometryBagData geometryBag = left ? leafBuilder.getLeftGeometryBag() : leafBuilder.getGeometryBag();
+        int count = GeometryOperatorsUtil.__geometryCount(geometryBag);
+        if (geometryBag.hasColumns()) {
+            // checked once here rather than by each chunk's slice
+            GeometryColumnsCodec.validate(geometryBag.getColumns());
+        }
+
+        List<ForkJoinTask<OperatorResult>> chunks = new ArrayList<>();
+        for (int start = 0; start < count; start += CHUNK_SIZE) {
+            // the chunk goes where the bag was, result geometry ids depend on which field that is
+            GeometryBagData slice = __slice(geometryBag, start, Math.min(count, start + CHUNK_SIZE));
+            if (left) {
+                leafBuilder.setLeftGeometryBag(slice);
+            } else {
+                leafBuilder.setGeometryBag(slice);
+            }
+            OperatorRequest chunkRequest = chunkBuilder.build();
+            // carry the call context (deadline, cancellation, call settings) onto the worker thread
+            chunks.add(workerPool.submit(Context.current().wrap(() -> GeometryOperatorsUtil.initExecuteOperatorEx(chunkRequest))));
+        }
+
+        // repeated fields are appended in chunk order, the rest are the same for every chunk. Columns are appended with
+        // their offsets moved past the previous chunks'
+        OperatorResult.Builder operatorResultBuilder = OperatorResult.newBuilder();
+        GeometryColumns.Builder columnsBuilder = null;
+        try {
+            for (ForkJoinTask<OperatorResult> chunk : chunks) {
+                OperatorResult chunkResult = chunk.join();
+                if (chunkResult.getGeometryBag().hasColumns()) {
+                    if (columnsBuilder == null) {
+                        columnsBuilder = GeometryColumns.newBuilder();
+                    }
+                    GeometryColumnsCodec.append(columnsBuilder, chunkResult.getGeometryBag().getColumns());
+                    OperatorResult.Builder chunkResultBuilder = chunkResult.toBuilder();
+                    chunkResultBuilder.getGeometryBagBuilder().clearColumns();
+                    chunkResult = chunkResultBuilder.build();
+                }
+                operatorResultBuilder.mergeFrom(chunkResult);
+            }
+        } catch (RuntimeException e) {
+            // the request has failed, chunks that haven't started yet needn't
+            for (ForkJoinTask<OperatorResult> chunk : chunks) {
+                chunk.cancel(false);
+            }
+            throw e;
+        }
+        if (columnsBuilder != null) {
+            operatorResultBuilder.getGeometryBagBuilder().setColumns(columnsBuilder);
+        }
+        return operatorResultBuilder.build();
+    }
+
+    private static boolean __perGeometry(OperatorRequest operatorRequest) {
+        if (operatorRequest.hasRightGeometryBag() ||
+                operatorRequest.hasRightGeometryRequest() ||
+                !operatorRequest.getRightGeometryHandle().isEmpty()) {
+            return false;
+        }
+
+        switch (operatorRequest.getOperatorType()) {
+            case Buffer:
+            case GeodesicBuffer:
+                // more than one distance is applied by position in the bag
+                BufferParams bufferParams = operatorRequest.getBufferParams();
+                return !bufferParams.getUnionResult() && bufferParams.getDistancesCount() <= 1;
+            case ConvexHull:
+                return !operatorRequest.getConvexParams().getMerge();
+            case Project:
+            case Offset:
+            case Generalize:
+            case GeneralizeByArea:
+            case DensifyByLength:
+            case GeodeticDensifyByLength:
+            case Simplify:
+            case SimplifyOGC:
+            case Boundary:
+            case Clip:
+            case ExportToWkb:
+            case ExportToWkt:
+            case ExportToGeoJson:
+            case ExportToJson:
+            case ExportToESRIShape:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // the innermost left request, the one with the bag, found the same way splits walks the request
+    private static OperatorRequest.Builder __leafBuilder(OperatorRequest.Builder operatorRequestBuilder) {
+        OperatorRequest.Builder leafBuilder = operatorRequestBuilder;
+        while (!leafBuilder.hasLeftGeometryBag() && !leafBuilder.hasGeometryBag()) {
+            if (leafBuilder.hasLeftGeometryRequest()) {
+                leafBuilder = leafBuilder.getLeftGeometryRequestBuilder();
+            } else {
+                leafBuilder = leafBuilder.getGeometryRequestBuilder();
+            }
+        }
+        return leafBuilder;
+    }
+
+    // more than one chunk of a single encoding, with an id for every geometry or none at all
+    private static boolean __splits(GeometryBagData geometryBag) {
+        int count = GeometryOperatorsUtil.__geometryCount(geometryBag);
+        int largest = Math.max(Math.max(geometryBag.getWktCount(), geometryBag.getWkbCount()),
+                Math.max(Math.max(geometryBag.getGeojsonCount(), geometryBag.getEsriShapeCount()),
+                        Math.max(Math.max(geometryBag.getEsriJsonCount(), geometryBag.getTwkbCount()),
+                                GeometryColumnsCodec.geometryCount(geometryBag.getColumns()))));
+        return count > CHUNK_SIZE &&
+                largest == count &&
+                (geometryBag.getGeometryIdsCount() == 0 || geometryBag.getGeometryIdsCount() == count);
+    }
+
+    // geometries [start, end) of geometryBag and their ids
+    private static GeometryBagData __slice(GeometryBagData geometryBag, int start, int end) {
+        GeometryBagData.Builder sliceBuilder = geometryBag.toBuilder()
+                .clearWkt()
+                .clearWkb()
+                .clearGeojson()
+                .clearEsriShape()
+                .clearEsriJson()
+                .clearTwkb()
+                .clearColumns()
+                .clearGeometryIds();
+        // a bag holds a single encoding
+        if (geometryBag.getWktCount() > 0) {
+            sliceBuilder.addAllWkt(geometryBag.getWktList().subList(start, end));
+        } else if (geometryBag.getWkbCount() > 0) {
+            sliceBuilder.addAllWkb(geometryBag.getWkbList().subList(start, end));
+        } else if (geometryBag.getGeojsonCount() > 0) {
+            sliceBuilder.addAllGeojson(geometryBag.getGeojsonList().subList(start, end));
+        } else if (geometryBag.getEsriShapeCount() > 0) {
+            sliceBuilder.addAllEsriShape(geometryBag.getEsriShapeList().subList(start, end));
+        } else if (geometryBag.getEsriJsonCount() > 0) {
+            sliceBuilder.addAllEsriJson(geometryBag.getEsriJsonList().subList(start, end));
+        } else if (geometryBag.getTwkbCount() > 0) {
+            sliceBuilder.addAllTwkb(geometryBag.getTwkbList().subList(start, end));
+        } else {
+            sliceBuilder.setColumns(GeometryColumnsCodec.slice(geometryBag.getColumns(), start, end));
+        }
+        if (geometryBag.getGeometryIdsCount() > 0) {
+            sliceBuilder.addAllGeometryIds(geometryBag.getGeometryIdsList().subList(start, end));
+        }
+        return sliceBuilder.build();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Union of a whole cursor on the worker pool. The geometries are sorted along a Hilbert curve through their envelope
+ * centers, runs of {@link #LEAF_SIZE} neighbours are unioned on their own, and the partial results are merged pairwise
+ * in a fork/join tree. Neighbours along the curve are close in space, so each partial union dissolves most of its
+ * shared boundaries and the merges higher up the tree stay small.
+ * <p>
+ * Inputs that are too small to split, or that mix dimensions, go to {@link OperatorUnion} unchanged.
+ */
+class ParallelUnion {
+    // geometries unioned by a single task
+    static final int LEAF_SIZE = 256;
+
+    // cells per side of the Hilbert grid, 2^15 so a curve index stays positive in the upper half of a long key
+    private static final int HILBERT_ORDER = 15;
+
+    /**
+     * A cursor with the union of geometryCursor, computed on workerPool when the cursor is first read.
+     */
+    static GeometryCursor execute(GeometryCursor geometryCursor,
+                                  SpatialReference spatialReference,
+                                  ForkJoinPool workerPool,
+                                  ProgressTracker progressTracker) {
+        return new GeometryCursor() {
+            private GeometryCursor result = null;
+
+            @Override
+            public Geometry next() {
+                if (result == null) {
+                    result = __union(geometryCursor, spatialReference, workerPool, progressTracker);
+                }
+                return result.next();
+            }
+
+            @Override
+            public int getGeometryID() {
+                return result == null ? -1 : result.getGeometryID();
+            }
+
+            public boolean hasNext() {
+                return result == null || result.hasNext();
+            }
+        };
+    }
+
+    private static GeometryCursor __union(GeometryCursor geometryCursor,
+                                          SpatialReference spatialReference,
+                                          ForkJoinPool workerPool,
+                                          ProgressTracker progressTracker) {
+        List<Geometry> geometries = new ArrayList<>();
+        // empty geometries add nothing to a union, they are only kept for OperatorUnion
+        List<Geometry> nonEmpty = new ArrayList<>();
+        boolean mixedDimensions = false;
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            geometries.add(geometry);
+            if (!geometry.isEmpty()) {
+                mixedDimensions |= !nonEmpty.isEmpty() && nonEmpty.get(0).getDimension() != geometry.getDimension();
+                nonEmpty.add(geometry);
+            }
+        }
+        if (nonEmpty.size() <= LEAF_SIZE || mixedDimensions) {
+            return OperatorUnion.local().execute(new SimpleGeometryCursor(geometries), spatialReference, progressTracker);
+        }
+
+        Geometry[] ordered = __hilbertOrder(nonEmpty);
+        Geometry union = workerPool.invoke(new UnionTask(ordered, 0, ordered.length, spatialReference, progressTracker));
+        return new SimpleGeometryCursor(union);
+    }
+
+    private static class UnionTask extends RecursiveTask<Geometry> {
+        private final Geometry[] geometries;
+        private final int start;
+        private final int end;
+        private final SpatialReference spatialReference;
+        private final ProgressTracker progressTracker;
+
+        UnionTask(Geometry[] geometries, int start, int end, SpatialReference spatialReference, ProgressTracker progressTracker) {
+            this.geometries = geometries;
+            this.start = start;
+            this.end = end;
+            this.spatialReference = spatialReference;
+            this.progressTracker = progressTracker;
+        }
+
+        @Override
+        protected Geometry compute() {
+            ProgressTracker.checkAndThrow(progressTracker);
+            if (end - start <= LEAF_SIZE) {
+                List<Geometry> leaf = Arrays.asList(geometries).subList(start, end);
+                return OperatorUnion.local().execute(new SimpleGeometryCursor(leaf), spatialReference, progressTracker).next();
+            }
+
+            int middle = (start + end) >>> 1;
+            UnionTask left = new UnionTask(geometries, start, middle, spatialReference, progressTracker);
+            left.fork();
+            Geometry right = new UnionTask(geometries, middle, end, spatialReference, progressTracker).compute();
+            return OperatorUnion.local().execute(left.join(), right, spatialReference, progressTracker);
+        }
+    }
+
+    // geometries sorted by the Hilbert index of their envelope centers within the extent of them all
+    private static Geometry[] __hilbertOrder(List<Geometry> geometries) {
+        int count = geometries.size();
+        double[] centers = new double[count * 2];
+        Envelope2D extent = new Envelope2D();
+        extent.setEmpty();
+        Envelope2D envelope = new Envelope2D();
+        for (int i = 0; i < count; i++) {
+            geometries.get(i).queryEnvelope2D(envelope);
+            centers[i * 2] = (envelope.xmin + envelope.xmax) / 2;
+            centers[i * 2 + 1] = (envelope.ymin + envelope.ymax) / 2;
+            extent.merge(envelope);
+        }
+
+        int cells = 1 << HILBERT_ORDER;
+        double xScale = extent.getWidth() > 0 ? (cells - 1) / extent.getWidth() : 0;
+        double yScale = extent.getHeight() > 0 ? (cells - 1) / extent.getHeight() : 0;
+        // the Hilbert index in the upper half, the position in the lower half, so sorting the keys sorts the positions
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int x = (int) ((centers[i * 2] - extent.xmin) * xScale);
+            int y = (int) ((centers[i * 2 + 1] - extent.ymin) * yScale);
+            keys[i] = (__hilbertIndex(x, y, cells) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        Geometry[] ordered = new Geometry[count];
+        for (int i = 0; i < count; i++) {
+            ordered[i] = geometries.get((int) keys[i]);
+        }
+        return ordered;
+    }
+
+    // distance along the Hilbert curve of the cell x, y of a cells by cells grid
+    private static long __hilbertIndex(int x, int y, int cells) {
+        long index = 0;
+        for (int s = cells / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so the curve inside it starts and ends next to its neighbours
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = cells - 1 - x;
+                    y = cells - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryCursor;
+import com.esri.core.geometry.MultiVertexGeometry;
+import com.esri.core.geometry.OperatorContains;
+import com.esri.core.geometry.SpatialReference;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Accelerated left hand geometries of the relational operators, keyed by a hash of the geometry bag they were
+ * decoded from. Testing a polygon against many points one request at a time otherwise decodes the polygon and
+ * rebuilds its edge index and rasterization for every request.
+ * <p>
+ * The cache is bounded by an estimate of the accelerated geometries' memory, set with GEOMETRY_PREPARED_CACHE_MB, and
+ * evicts the least recently used geometries. Cached geometries are shared between threads, which the relational
+ * operators allow for as they don't modify their inputs.
+ */
+class PreparedGeometryCache {
+    // the rasterization built for enumMedium acceleration, on top of the per vertex index
+    private static final int RASTER_BYTES = 64 * 1024;
+    private static final int BYTES_PER_VERTEX = 80;
+
+    private static final long MAXIMUM_WEIGHT = __maximumWeight();
+
+    private static final Cache<Key, Geometry> cache = CacheBuilder
+            .newBuilder()
+            .maximumWeight(MAXIMUM_WEIGHT)
+            .weigher((Key key, Geometry geometry) -> __weight(geometry))
+            .recordStats()
+            .build();
+
+    private static final class Key {
+        private final HashCode contentHash;
+        private final SpatialReference inputSR;
+        private final SpatialReference operatorSR;
+
+        Key(HashCode contentHash, SpatialReference inputSR, SpatialReference operatorSR) {
+            this.contentHash = contentHash;
+            this.inputSR = inputSR;
+            this.operatorSR = operatorSR;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return contentHash.equals(other.contentHash) &&
+                    Objects.equals(inputSR, other.inputSR) &&
+                    Objects.equals(operatorSR, other.operatorSR);
+        }
+
+        @Override
+        public int hashCode() {
+            return contentHash.asInt();
+        }
+    }
+
+    /**
+     * The single geometry in geometryBag, accelerated for relational operations in operatorSR.
+     *
+     * @param geometryCursor decodes (and projects) geometryBag, only read on a cache miss
+     * @param inputSR        the spatial reference geometryBag is in
+     * @param operatorSR     the spatial reference geometryCursor produces
+     */
+    static Geometry get(GeometryBagData geometryBag,
+                        GeometryCursor geometryCursor,
+                        SpatialReference inputSR,
+                        SpatialReference operatorSR) {
+        // 128 bits, a collision between two different fences isn't a practical concern
+        Key key = new Key(__contentHash(geometryBag), inputSR, operatorSR);
+        Geometry geometry = cache.getIfPresent(key);
+        if (geometry != null) {
+            return geometry;
+        }
+
+        geometry = geometryCursor.next();
+        // points and multipoints can't be accelerated and are cheap to decode, so they aren't kept
+        if (geometry != null && OperatorContains.local().canAccelerateGeometry(geometry) &&
+                OperatorContains.local().accelerateGeometry(geometry, operatorSR, Geometry.GeometryAccelerationDegree.enumMedium)) {
+            // two threads may race to accelerate the same geometry, either copy will do
+            cache.put(key, geometry);
+        }
+        return geometry;
+    }
+
+    static CacheStats stats() {
+        return cache.stats();
+    }
+
+    static long size() {
+        return cache.size();
+    }
+
+    static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    // the bag's geometries, hashed from the byte strings the request already holds rather than a serialized copy
+    private static HashCode __contentHash(GeometryBagData geometryBag) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        OutputStream hasherStream = Funnels.asOutputStream(hasher);
+        try {
+            hasher.putInt(geometryBag.getGeometryEncodingTypeValue());
+            for (int i = 0; i < geometryBag.getWktCount(); i++) {
+                __putElement(hasher, hasherStream, GeometryBagData.WKT_FIELD_NUMBER, geometryBag.getWktBytes(i));
+            }
+            for (int i = 0; i < geometryBag.getGeojsonCount(); i++) {
+                __putElement(hasher, hasherStream, GeometryBagData.GEOJSON_FIELD_NUMBER, geometryBag.getGeojsonBytes(i));
+            }
+            for (ByteString wkb : geometryBag.getWkbList()) {
+                __putElement(hasher, hasherStream, GeometryBagData.WKB_FIELD_NUMBER, wkb);
+            }
+            for (ByteString esriShape : geometryBag.getEsriShapeList()) {
+                __putElement(hasher, hasherStream, GeometryBagData.ESRI_SHAPE_FIELD_NUMBER, esriShape);
+            }
+            for (int i = 0; i < geometryBag.getEsriJsonCount(); i++) {
+                __putElement(hasher, hasherStream, GeometryBagData.ESRI_JSON_FIELD_NUMBER, geometryBag.getEsriJsonBytes(i));
+            }
+            for (ByteString twkb : geometryBag.getTwkbList()) {
+                __putElement(hasher, hasherStream, GeometryBagData.TWKB_FIELD_NUMBER, twkb);
+            }
+            if (geometryBag.hasColumns()) {
+                hasher.putInt(GeometryBagData.COLUMNS_FIELD_NUMBER);
+                CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(hasherStream);
+                geometryBag.getColumns().writeTo(codedOutputStream);
+                codedOutputStream.flush();
+            }
+            __putElement(hasher, hasherStream, GeometryBagData.ARROW_FIELD_NUMBER, geometryBag.getArrow());
+        } catch (IOException e) {
+            throw new AssertionError("a hasher's stream doesn't throw", e);
+        }
+        return hasher.hash();
+    }
+
+    // field and length first, so that the same bytes in another field or split differently hash differently
+    private static void __putElement(Hasher hasher, OutputStream hasherStream, int field, ByteString element) throws IOException {
+        hasher.putInt(field).putInt(element.size());
+        element.writeTo(hasherStream);
+    }
+
+    private static int __weight(Geometry geometry) {
+        long vertices = geometry instanceof MultiVertexGeometry ? ((MultiVertexGeometry) geometry).getPointCount() : 1;
+        return (int) Math.min(Integer.MAX_VALUE, RASTER_BYTES + vertices * BYTES_PER_VERTEX);
+    }
+
+    private static long __maximumWeight() {
+        String value = System.getenv("GEOMETRY_PREPARED_CACHE_MB");
+        long megabytes = 64;
+        if (value != null) {
+            try {
+                megabytes = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return Math.max(0, megabytes) * 1024 * 1024;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.ProjectionTransformation;
+import com.esri.core.geometry.SpatialReference;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@link ProjectionTransformation}s keyed by (source, target) spatial reference. Building a transformation goes
+ * through the native projection setup, and a workload usually projects between the same few pairs over and over.
+ * A transformation isn't safe to use from several threads at once, so each thread gets its own for a pair. The least
+ * recently used pairs are evicted once the cache is full.
+ */
+class ProjectionTransformationCache {
+    private static final int MAXIMUM_SIZE = 256;
+
+    private static final Cache<Key, ThreadLocal<ProjectionTransformation>> cache = CacheBuilder
+            .newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .recordStats()
+            .build();
+
+    private static final class Key {
+        private final SpatialReference from;
+        private final SpatialReference to;
+
+        Key(SpatialReference from, SpatialReference to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return from.equals(other.from) && to.equals(other.to);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * from.hashCode() + to.hashCode();
+        }
+    }
+
+    static ProjectionTransformation get(SpatialReference from, SpatialReference to) {
+        try {
+            return cache.get(new Key(from, to), () -> {
+                ThreadLocal<ProjectionTransformation> transformations = ThreadLocal.withInitial(() -> new ProjectionTransformation(from, to));
+                // build the loading thread's one now, so a pair that can't be projected isn't cached
+                transformations.get();
+                return transformations;
+            }).get();
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // surface the same exception building the transformation directly would have thrown
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause());
+        }
+    }
+
+    static CacheStats stats() {
+        return cache.stats();
+    }
+
+    static long size() {
+        return cache.size();
+    }
+}
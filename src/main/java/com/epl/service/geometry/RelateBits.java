@@ -0,0 +1,100 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * The compact encodings of {@link OperatorResult#getRelateBits()}, one result per right geometry in input order.
+ * <p>
+ * bitset is {@link BitSet#toByteArray()}: the result of geometry i is bit i % 8 of byte i / 8, least significant bit
+ * first, with trailing zero bytes dropped. run_length is a sequence of varints that alternate between runs of false
+ * and true results, starting with false, so a run of true at the start is preceded by a 0. Runs are the smaller of the
+ * two for a predicate that holds for clustered geometries, like points sorted along a space filling curve tested
+ * against a polygon.
+ */
+public class RelateBits {
+    private RelateBits() {
+    }
+
+    static ByteString encode(BitSet bits, int count, RelateResultEncoding encoding) {
+        if (encoding == RelateResultEncoding.run_length) {
+            return __runLengths(bits, count);
+        }
+        return ByteString.copyFrom(bits.toByteArray());
+    }
+
+    /**
+     * The relate results of operatorResult, bit i for the i-th right geometry.
+     *
+     * @param encoding the result_encoding of the request's relate_params
+     */
+    public static BitSet decode(OperatorResult operatorResult, RelateResultEncoding encoding) throws IOException {
+        ByteString relateBits = operatorResult.getRelateBits();
+        if (encoding != RelateResultEncoding.run_length) {
+            return BitSet.valueOf(relateBits.asReadOnlyByteBuffer());
+        }
+
+        BitSet bits = new BitSet();
+        CodedInputStream input = relateBits.newCodedInput();
+        int position = 0;
+        boolean value = false;
+        while (!input.isAtEnd()) {
+            int run = (int) input.readUInt64();
+            if (value) {
+                bits.set(position, position + run);
+            }
+            position += run;
+            value = !value;
+        }
+        return bits;
+    }
+
+    private static ByteString __runLengths(BitSet bits, int count) {
+        ByteString.Output output = ByteString.newOutput();
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        try {
+            int position = 0;
+            while (position < count) {
+                int trueStart = bits.nextSetBit(position);
+                if (trueStart < 0 || trueStart >= count) {
+                    trueStart = count;
+                }
+                int trueEnd = trueStart == count ? count : Math.min(bits.nextClearBit(trueStart), count);
+                codedOutput.writeUInt64NoTag(trueStart - position);
+                if (trueEnd > trueStart) {
+                    codedOutput.writeUInt64NoTag(trueEnd - trueStart);
+                }
+                position = trueEnd;
+            }
+            codedOutput.flush();
+        } catch (IOException e) {
+            // a ByteString.Output doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return output.toByteString();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.grpc.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per node timings of the {@link OperatorRequest} trees run by one call, returned to the client in the
+ * {@link #TRAILER_KEY} trailer when the call sets the {@link #ENABLE_KEY} header to true.
+ * <p>
+ * A node is named by its path of request fields from the root, like root.left_geometry_request.geometry_request.
+ * Wall and CPU time only count the node's own work (decoding its bags, its operator, projecting its results and, for
+ * the root, encoding), not the time spent in the nodes it pulls geometries from, so the node that dominates a chain
+ * stands out. On a stream the nodes of every message are summed by path.
+ */
+class RequestTrace {
+    private static final Logger logger = Logger.getLogger(RequestTrace.class.getName());
+
+    static final Metadata.Key<String> ENABLE_KEY =
+            Metadata.Key.of("geometry-trace", Metadata.ASCII_STRING_MARSHALLER);
+    static final Metadata.Key<String> TRAILER_KEY =
+            Metadata.Key.of("geometry-trace", Metadata.ASCII_STRING_MARSHALLER);
+
+    static final Context.Key<RequestTrace> CONTEXT_KEY = Context.key("geometry-request-trace");
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * Timings of one node of a request tree.
+     */
+    static class Node {
+        final String path;
+        final ServiceOperatorType operatorType;
+        long calls = 0;
+        long wallNanos = 0;
+        long cpuNanos = 0;
+        long geometriesIn = 0;
+        long geometriesOut = 0;
+        long verticesIn = 0;
+        long verticesOut = 0;
+
+        Node(String path, ServiceOperatorType operatorType) {
+            this.path = path;
+            this.operatorType = operatorType;
+        }
+
+        void add(long wallNanos, long cpuNanos) {
+            this.wallNanos += wallNanos;
+            this.cpuNanos += cpuNanos;
+        }
+
+        void count(boolean decoded, long vertices) {
+            if (decoded) {
+                geometriesIn++;
+                verticesIn += vertices;
+            } else {
+                geometriesOut++;
+                verticesOut += vertices;
+            }
+        }
+    }
+
+    // by path, guarded by this
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+
+    /**
+     * @return the trace of the current call, or null if the call isn't traced
+     */
+    static RequestTrace current() {
+        return CONTEXT_KEY.get();
+    }
+
+    static long threadCpuNanos() {
+        return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Fresh nodes for every request in the tree under operatorRequest, keyed by the request instance.
+     */
+    static Map<OperatorRequest, Node> nodes(OperatorRequest operatorRequest) {
+        Map<OperatorRequest, Node> nodes = new IdentityHashMap<>();
+        __addNodes(operatorRequest, "root", nodes);
+        return nodes;
+    }
+
+    private static void __addNodes(OperatorRequest operatorRequest, String path, Map<OperatorRequest, Node> nodes) {
+        nodes.put(operatorRequest, new Node(path, operatorRequest.getOperatorType()));
+        if (operatorRequest.hasGeometryRequest()) {
+            __addNodes(operatorRequest.getGeometryRequest(), path + ".geometry_request", nodes);
+        }
+        if (operatorRequest.hasLeftGeometryRequest()) {
+            __addNodes(operatorRequest.getLeftGeometryRequest(), path + ".left_geometry_request", nodes);
+        }
+        if (operatorRequest.hasRightGeometryRequest()) {
+            __addNodes(operatorRequest.getRightGeometryRequest(), path + ".right_geometry_request", nodes);
+        }
+    }
+
+    /**
+     * Add the nodes of a finished request.
+     */
+    synchronized void merge(Collection<Node> requestNodes) {
+        for (Node requestNode : requestNodes) {
+            Node node = nodes.computeIfAbsent(requestNode.path, path -> new Node(path, requestNode.operatorType));
+            node.calls++;
+            node.wallNanos += requestNode.wallNanos;
+            node.cpuNanos += requestNode.cpuNanos;
+            node.geometriesIn += requestNode.geometriesIn;
+            node.geometriesOut += requestNode.geometriesOut;
+            node.verticesIn += requestNode.verticesIn;
+            node.verticesOut += requestNode.verticesOut;
+        }
+    }
+
+    /**
+     * @return the nodes as a json array, times in microseconds
+     */
+    synchronized String toJson() {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+            generator.writeStartArray();
+            for (Node node : nodes.values()) {
+                generator.writeStartObject();
+                generator.writeStringField("path", node.path);
+                generator.writeStringField("operator", node.operatorType.toString());
+                generator.writeNumberField("calls", node.calls);
+                generator.writeNumberField("wall_us", node.wallNanos / 1000);
+                generator.writeNumberField("cpu_us", node.cpuNanos / 1000);
+                generator.writeNumberField("geometries_in", node.geometriesIn);
+                generator.writeNumberField("vertices_in", node.verticesIn);
+                generator.writeNumberField("geometries_out", node.geometriesOut);
+                generator.writeNumberField("vertices_out", node.verticesOut);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        } catch (IOException e) {
+            // a StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Starts a trace for calls that ask for one and adds it to the trailers when the call closes.
+     */
+    static class Interceptor implements ServerInterceptor {
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                     Metadata headers,
+                                                                     ServerCallHandler<ReqT, RespT> next) {
+            String enable = headers.get(ENABLE_KEY);
+            if (enable == null || !(enable.equalsIgnoreCase("true") || enable.equals("1"))) {
+                return next.startCall(call, headers);
+            }
+
+            RequestTrace requestTrace = new RequestTrace();
+            ServerCall<ReqT, RespT> tracedCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                @Override
+                public void close(Status status, Metadata trailers) {
+                    try {
+                        trailers.put(TRAILER_KEY, requestTrace.toJson());
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "could not add request trace", e);
+                    }
+                    super.close(status, trailers);
+                }
+            };
+            return Contexts.interceptCall(Context.current().withValue(CONTEXT_KEY, requestTrace), tracedCall, headers, next);
+        }
+    }
+}
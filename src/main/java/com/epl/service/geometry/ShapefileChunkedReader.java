@@ -3,32 +3,41 @@ package com.epl.service.geometry;
 import com.esri.core.geometry.Envelope2D;
 import com.esri.core.geometry.Geometry;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Stream;
 
+/**
+ * Reads shapefile records from a file that arrives as a sequence of chunks. The first chunk must hold the 100 byte
+ * header, after that records may span any number of chunks. Chunks are dropped as soon as they have been read, so
+ * only the chunks that have not been consumed are held in memory.
+ * <p>
+ * One thread adds chunks with {@link #addStream(InputStream, int)} while another reads records; {@link #hasNext()}
+ * blocks until the next record has fully arrived or the reader is closed.
+ */
 public class ShapefileChunkedReader {
     private final List<MixedEndianDataInputStream> inputStreamList;
     private long fileLengthBytes;
     private final Envelope2D envelope2D;
-    private int position; //keeps track of where inputstream is
+    private long position; //keeps track of where inputstream is
     private int recordNumber;
-    private int recordRemainingBytes;
+    private int nextRecordNumber;
+    private int recordRemainingBytes = -1; // content length of the next record, -1 until its header is read
+    private boolean closed = false;
     private final Geometry.Type geomType;
 
     ShapefileChunkedReader(InputStream in, int chunk_size) throws IOException {
-        if (chunk_size < 108) {
-            throw new IllegalArgumentException("An InputStream must have more than 100 bytes to initialize ShapefileChunkedReader");
+        if (chunk_size < 100) {
+            throw new IllegalArgumentException("An InputStream must have at least 100 bytes to initialize ShapefileChunkedReader");
         }
 
         position = 0;
         inputStreamList = Collections.synchronizedList(new ArrayList<MixedEndianDataInputStream>());
         synchronized (inputStreamList) {
             MixedEndianDataInputStream mixedEndianDataInputStream = new MixedEndianDataInputStream(in, chunk_size);
-            inputStreamList.add(mixedEndianDataInputStream);
 
             /*
                 Byte 0 File Code 9994 Integer Big
@@ -47,7 +56,7 @@ public class ShapefileChunkedReader {
              */
             mixedEndianDataInputStream.skipBytes(20);
 
-            fileLengthBytes = mixedEndianDataInputStream.readInt() * 2;
+            fileLengthBytes = mixedEndianDataInputStream.readInt() * 2L;
 
             int v = mixedEndianDataInputStream.readLittleEndianInt();
 
@@ -86,50 +95,79 @@ public class ShapefileChunkedReader {
             position = 2 * 50; //header is always 50 words long
             mixedEndianDataInputStream.updateSize(2 * 50);
 
-            recordNumber = mixedEndianDataInputStream.readInt();//1 based
-            recordRemainingBytes = mixedEndianDataInputStream.readInt();
-            position += 8;
-            mixedEndianDataInputStream.updateSize(8);
-
-            inputStreamList.notify();
+            // whatever is left of the first chunk is record data
+            if (mixedEndianDataInputStream.getSize() > 0) {
+                inputStreamList.add(mixedEndianDataInputStream);
+            }
+            __readRecordHeader();
+            inputStreamList.notifyAll();
         }
     }
 
-    public byte[] next() throws InterruptedException {
+    /**
+     * @return the content of the next record, in esri shape format, or null if there are no more records
+     * @throws EOFException         if the reader was closed before the record arrived
+     * @throws InterruptedException if the thread was interrupted while waiting for the record
+     */
+    public byte[] next() throws InterruptedException, IOException {
         if (!hasNext()) {
             return null;
         }
-        try {
-
-            synchronized (inputStreamList) {
-                MixedEndianDataInputStream inputStream = inputStreamList.get(0);
-
-                int recordSizeBytes = (recordRemainingBytes * 2);
-                byte[] bytes = new byte[recordSizeBytes];
-                int read = inputStream.read(bytes);
-                position += read;
-                inputStream.updateSize(read);
 
-                recordNumber = inputStream.readInt();//1 based
-                recordRemainingBytes = inputStream.readInt();
-                position += 8;
-                inputStream.updateSize(8);
+        synchronized (inputStreamList) {
+            byte[] bytes = new byte[recordRemainingBytes];
+            __readFully(bytes);
+            position += bytes.length;
+            recordNumber = nextRecordNumber;
+            recordRemainingBytes = -1;
+            __readRecordHeader();
+            return bytes;
+        }
+    }
 
-                inputStreamList.notify();
-                return bytes;
+    public void addStream(InputStream in, int chunk_size) throws IOException {
+        synchronized (inputStreamList) {
+            if (chunk_size > 0) {
+                MixedEndianDataInputStream mixedEndianDataInputStream = new MixedEndianDataInputStream(in, chunk_size);
+                inputStreamList.add(mixedEndianDataInputStream);
+                __readRecordHeader();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            inputStreamList.notifyAll();
         }
+    }
 
-        return null;
+    /**
+     * Signal that no more chunks are coming. A reader blocked in {@link #hasNext()} wakes up and fails if the file
+     * was cut short.
+     */
+    public void close() {
+        synchronized (inputStreamList) {
+            closed = true;
+            inputStreamList.notifyAll();
+        }
     }
 
-    public void addStream(InputStream in, int chunk_size) {
+    /**
+     * @return the number of chunks that have arrived and not been completely read
+     */
+    public int getChunkCount() {
         synchronized (inputStreamList) {
-            MixedEndianDataInputStream mixedEndianDataInputStream = new MixedEndianDataInputStream(in, chunk_size);
-            inputStreamList.add(mixedEndianDataInputStream);
-            inputStreamList.notify();
+            return inputStreamList.size();
+        }
+    }
+
+    /**
+     * @return the number of bytes the next record, or its header if that hasn't arrived yet, still needs beyond the
+     * chunks that have arrived. A record can be larger than any number of chunks, so this and not the chunk count
+     * tells whether the reader is waiting for more
+     */
+    public long getMissingBytes() {
+        synchronized (inputStreamList) {
+            if (position >= fileLengthBytes) {
+                return 0;
+            }
+            long required = recordRemainingBytes < 0 ? 8 : recordRemainingBytes;
+            return Math.max(0, required - __available());
         }
     }
 
@@ -171,6 +209,9 @@ public class ShapefileChunkedReader {
         }
     }
 
+    /**
+     * @return the record number (1 based) of the record last returned by {@link #next()}
+     */
     public int getGeometryID() {
         return recordNumber;
     }
@@ -181,36 +222,78 @@ public class ShapefileChunkedReader {
 
     public Geometry.Type getGeometryType() { return geomType; }
 
-    public boolean hasNext() throws InterruptedException {
+    public boolean hasNext() throws InterruptedException, IOException {
         synchronized (inputStreamList) {
-            int count = 0;
-
-            long value = inputStreamList.stream().mapToInt(i -> i.getSize()).sum();
-            while (count++ < 5 && position < fileLengthBytes && value < recordRemainingBytes) {
-                inputStreamList.wait(1000);
-                value = inputStreamList.stream().mapToInt(i -> i.getSize()).sum();
+            if (position >= fileLengthBytes) {
+                return false;
             }
 
-            if (position < fileLengthBytes && value < recordRemainingBytes) {
-                throw new InterruptedException("failed to collected enough bytes to proceed");
+            if (recordRemainingBytes < 0) {
+                __awaitBytes(8);
+                __readRecordHeader();
             }
 
-            // plus 8 is
-            long bytesRequired = recordRemainingBytes + 8;
-            if (recordRemainingBytes == fileLengthBytes - position) {
-                bytesRequired = recordRemainingBytes;
-            }
+            __awaitBytes(recordRemainingBytes);
+            return true;
+        }
+    }
 
-            while (bytesRequired > inputStreamList.get(0).getSize()) {
-                MixedEndianDataInputStream input1 = inputStreamList.remove(0);
-                MixedEndianDataInputStream input2 = inputStreamList.remove(0);
-                InputStream merged = new java.io.SequenceInputStream(input1, input2);
-                MixedEndianDataInputStream mixedEndianDataInputStream = new MixedEndianDataInputStream(merged, input1.getSize() + input2.getSize());
-                inputStreamList.set(0, mixedEndianDataInputStream);
+    // must hold the lock. Read as soon as it has arrived, so that getMissingBytes knows the size of the next record
+    private void __readRecordHeader() throws IOException {
+        if (recordRemainingBytes >= 0 || position >= fileLengthBytes || __available() < 8) {
+            return;
+        }
+        /*
+            Byte 0 Record Number Integer Big
+            Byte 4 Content Length Integer Big (in 16 bit words)
+         */
+        byte[] header = new byte[8];
+        __readFully(header);
+        nextRecordNumber = __bigEndianInt(header, 0);
+        recordRemainingBytes = __bigEndianInt(header, 4) * 2;
+        position += 8;
+    }
+
+    // must hold the lock
+    private void __awaitBytes(long required) throws InterruptedException, EOFException {
+        while (__available() < required) {
+            if (closed) {
+                throw new EOFException("shapefile ended at byte " + position + " of " + fileLengthBytes);
             }
+            inputStreamList.wait();
+        }
+    }
 
-            return position < fileLengthBytes;
+    // must hold the lock
+    private long __available() {
+        long available = 0;
+        for (MixedEndianDataInputStream mixedEndianDataInputStream : inputStreamList) {
+            available += mixedEndianDataInputStream.getSize();
         }
+        return available;
     }
 
+    // must hold the lock, and there must be enough bytes available
+    private void __readFully(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            MixedEndianDataInputStream inputStream = inputStreamList.get(0);
+            int count = Math.min(bytes.length - offset, inputStream.getSize());
+            inputStream.readFully(bytes, offset, count);
+            inputStream.updateSize(count);
+            offset += count;
+
+            if (inputStream.getSize() == 0) {
+                // let go of chunks as soon as they are read
+                inputStreamList.remove(0);
+            }
+        }
+    }
+
+    private static int __bigEndianInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) |
+                ((bytes[offset + 1] & 0xff) << 16) |
+                ((bytes[offset + 2] & 0xff) << 8) |
+                (bytes[offset + 3] & 0xff);
+    }
 }
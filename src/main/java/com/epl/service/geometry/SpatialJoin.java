@@ -0,0 +1,397 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Streams the pairs of left and right geometries for which a relational operator holds. The geometries of one side
+ * are indexed with a {@link PackedRTree} and the other side is cut into batches that are tested against the index on
+ * the worker pool. Each geometry of a batch searches the index for candidates within tolerance of its envelope, and
+ * only those candidates go through the operator. The pairs of a batch are sent as one {@link SpatialJoinResult}, in
+ * batch order.
+ * <p>
+ * Like {@link OperatorStreamWindow}, at most the call's stream parallelism of batches are in flight and no batch is
+ * started while the response transport is not ready, so a slow client holds the join back rather than the server
+ * buffering its results.
+ */
+class SpatialJoin {
+    static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private static class Side {
+        final List<Geometry> geometries;
+        final List<Long> geometryIds;
+        PackedRTree index;
+
+        Side(List<Geometry> geometries, List<Long> geometryIds, PackedRTree index) {
+            this.geometries = geometries;
+            this.geometryIds = geometryIds;
+            this.index = index;
+        }
+
+        long id(int position) {
+            // ids only line up with the geometries of a bag, the results of a nested request are identified by position
+            return geometryIds.size() == geometries.size() ? geometryIds.get(position) : position;
+        }
+    }
+
+    private static class Batch {
+        final int start;
+        final int end;
+        SpatialJoinResult result;
+        Throwable error;
+        boolean done;
+
+        Batch(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final ServerCallStreamObserver<SpatialJoinResult> responseObserver;
+    private final Context context;
+    private final Executor executor;
+    private final int parallelism;
+    private final AdmissionController.Permit permit;
+
+    private final OperatorRequest operatorRequest;
+    private final Operator.Type operatorType;
+    private final SpatialReferenceGroup srGroup;
+    private final ProgressTracker progressTracker;
+    private final int batchSize;
+    private final double tolerance;
+
+    private final Side left;
+    private final Side right;
+    // the index is searched with each geometry of the probe side
+    private final Side indexed;
+    private final Side probe;
+    private final boolean leftIndexed;
+
+    // all of the below are guarded by this
+    // started and not yet sent, in probe order
+    private final ArrayDeque<Batch> batches = new ArrayDeque<>();
+    private int nextStart = 0;
+    private boolean finished = false;
+
+    /**
+     * Load and index the inputs of operatorRequest, then test them on the worker pool and send the results to
+     * responseObserver from there.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the operator can't be used for a join
+     */
+    static void start(OperatorRequest operatorRequest,
+                      ExecutionSettings settings,
+                      StreamObserver<SpatialJoinResult> responseObserver) throws IOException {
+        Operator.Type operatorType = __joinOperatorType(operatorRequest);
+
+        // held until the last batch is sent or the call ends
+        AdmissionController.Permit permit = settings.admission.admit(operatorRequest);
+        SpatialJoin spatialJoin;
+        try {
+            spatialJoin = new SpatialJoin(operatorRequest, operatorType, settings, permit, responseObserver);
+        } catch (Throwable t) {
+            permit.close();
+            throw t;
+        }
+        spatialJoin.__dispatch();
+    }
+
+    private SpatialJoin(OperatorRequest operatorRequest,
+                        Operator.Type operatorType,
+                        ExecutionSettings settings,
+                        AdmissionController.Permit permit,
+                        StreamObserver<SpatialJoinResult> responseObserver) throws IOException {
+        this.responseObserver = (ServerCallStreamObserver<SpatialJoinResult>) responseObserver;
+        this.context = Context.current();
+        this.executor = settings.workerPool;
+        this.parallelism = settings.streamParallelism;
+        this.permit = permit;
+        this.operatorRequest = operatorRequest;
+        this.operatorType = operatorType;
+        this.progressTracker = ContextProgressTracker.current();
+
+        int batchSize = operatorRequest.getSpatialJoinParams().getBatchSize();
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+
+        srGroup = new SpatialReferenceGroup(operatorRequest);
+        // pairs that only touch within tolerance have envelopes that don't quite intersect
+        tolerance = srGroup.operatorSR == null ? 0 : srGroup.operatorSR.getTolerance();
+
+        left = __leftSide();
+        right = __rightSide();
+
+        // the index is built on this thread and the probes run in parallel, so unless a registered bag comes with an
+        // index the smaller side is indexed
+        if (left.index != null) {
+            leftIndexed = true;
+        } else if (right.index != null) {
+            leftIndexed = false;
+        } else {
+            leftIndexed = left.geometries.size() <= right.geometries.size();
+        }
+        indexed = leftIndexed ? left : right;
+        probe = leftIndexed ? right : left;
+        if (indexed.index == null) {
+            // each indexed geometry is tested against every probe geometry near it
+            __accelerate(indexed.geometries);
+            indexed.index = PackedRTree.fromGeometries(indexed.geometries);
+        }
+
+        this.responseObserver.setOnReadyHandler(this::__dispatch);
+        this.responseObserver.setOnCancelHandler(() -> {
+            synchronized (SpatialJoin.this) {
+                __finish();
+            }
+        });
+    }
+
+    private static Operator.Type __joinOperatorType(OperatorRequest operatorRequest) {
+        switch (operatorRequest.getOperatorType()) {
+            case Equals:
+            case Intersects:
+            case Within:
+            case Contains:
+            case Crosses:
+            case Touches:
+            case Overlaps:
+                return Operator.Type.valueOf(operatorRequest.getOperatorType().toString());
+            case Relate:
+                if (!__requiresIntersection(operatorRequest.getRelateParams().getDe9Im())) {
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("spatial join de_9im pattern must require the interiors or boundaries to intersect")
+                            .asRuntimeException();
+                }
+                return Operator.Type.Relate;
+            default:
+                // Disjoint as well, its pairs are exactly the ones the index filters out
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("spatial join doesn't support " + operatorRequest.getOperatorType())
+                        .asRuntimeException();
+        }
+    }
+
+    /**
+     * Geometries that only match the pattern where they intersect are never farther apart than their envelopes.
+     */
+    private static boolean __requiresIntersection(String de9im) {
+        if (de9im.length() != 9) {
+            return false;
+        }
+        // interior/interior, interior/boundary, boundary/interior and boundary/boundary
+        for (int i : new int[]{0, 1, 3, 4}) {
+            if ("T012".indexOf(de9im.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Side __leftSide() throws IOException {
+        GeometryRegistry.Entry entry = __registered(operatorRequest.getLeftGeometryHandle(), srGroup.leftSR);
+        if (entry != null) {
+            return new Side(entry.geometries, entry.geometryIds, entry.index);
+        }
+
+        GeometryCursor geometryCursor = GeometryOperatorsUtil.__getLeftGeometryRequestFromRequest(operatorRequest, null, srGroup, progressTracker);
+        return new Side(__collect(geometryCursor), GeometryOperatorsUtil.__inputGeometryIds(operatorRequest), null);
+    }
+
+    private Side __rightSide() throws IOException {
+        GeometryRegistry.Entry entry = __registered(operatorRequest.getRightGeometryHandle(), srGroup.rightSR);
+        if (entry != null) {
+            return new Side(entry.geometries, entry.geometryIds, entry.index);
+        }
+
+        // the right side is only read when there is a left cursor, which is already drained here
+        GeometryCursor geometryCursor = GeometryOperatorsUtil.__getRightGeometryRequestFromRequest(
+                operatorRequest, new SimpleGeometryCursor(left.geometries), null, srGroup, progressTracker);
+        if (geometryCursor == null) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("spatial join needs a right geometry bag, request or handle")
+                    .asRuntimeException();
+        }
+
+        return new Side(__collect(geometryCursor), GeometryOperatorsUtil.__inputRightGeometryIds(operatorRequest), null);
+    }
+
+    /**
+     * The registered bag behind handle, if its geometries can be used as they are.
+     */
+    private GeometryRegistry.Entry __registered(String handle, SpatialReference inputSR) {
+        if (handle.isEmpty() || (srGroup.operatorSR != null && !srGroup.operatorSR.equals(inputSR))) {
+            // projected geometries no longer match the registered index
+            return null;
+        }
+        return GeometryOperatorsUtil.__registeredGeometries(handle);
+    }
+
+    private List<Geometry> __collect(GeometryCursor geometryCursor) {
+        List<Geometry> geometries = new ArrayList<>();
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            ProgressTracker.checkAndThrow(progressTracker);
+            geometries.add(geometry);
+        }
+        return geometries;
+    }
+
+    private void __accelerate(List<Geometry> geometries) {
+        Operator operator = OperatorFactoryLocal.getInstance().getOperator(operatorType);
+        for (Geometry geometry : geometries) {
+            if (operator.canAccelerateGeometry(geometry)) {
+                operator.accelerateGeometry(geometry, srGroup.operatorSR, Geometry.GeometryAccelerationDegree.enumMild);
+            }
+        }
+    }
+
+    /**
+     * Start batches while there is room in the window and the transport is ready, and send the finished ones.
+     */
+    private synchronized void __dispatch() {
+        int probeCount = probe.geometries.size();
+        while (!finished && batches.size() < parallelism && nextStart < probeCount && responseObserver.isReady()) {
+            Batch batch = new Batch(nextStart, Math.min(nextStart + batchSize, probeCount));
+            nextStart = batch.end;
+            batches.add(batch);
+            // carry the call context (deadline, cancellation, call settings) onto the worker thread
+            executor.execute(context.wrap(() -> __run(batch)));
+        }
+        __drain();
+    }
+
+    private void __run(Batch batch) {
+        SpatialJoinResult result = null;
+        Throwable error = null;
+        try {
+            result = __join(batch.start, batch.end);
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        synchronized (this) {
+            batch.result = result;
+            batch.error = error;
+            batch.done = true;
+        }
+        __dispatch();
+    }
+
+    // must hold the lock
+    private void __drain() {
+        while (!finished && !batches.isEmpty() && batches.peek().done) {
+            Batch batch = batches.poll();
+            if (batch.error != null) {
+                __finish();
+                Status status = ContextProgressTracker.cancelledStatus(context);
+                if (status == null) {
+                    // keep statuses raised on purpose, like NOT_FOUND for an expired handle
+                    status = Status.fromThrowable(batch.error);
+                    if (status.getCode() == Status.Code.UNKNOWN) {
+                        status = Status.UNKNOWN.withDescription("spatialJoin error : ".concat(batch.error.toString()));
+                    }
+                }
+                responseObserver.onError(status.withCause(batch.error).asException());
+                return;
+            }
+            if (batch.result.getLeftIdsCount() > 0) {
+                responseObserver.onNext(batch.result);
+            }
+        }
+
+        if (!finished && batches.isEmpty() && nextStart >= probe.geometries.size()) {
+            __finish();
+            responseObserver.onCompleted();
+        }
+    }
+
+    // must hold the lock
+    private void __finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        batches.clear();
+        permit.close();
+    }
+
+    private SpatialJoinResult __join(int start, int end) {
+        SpatialJoinResult.Builder spatialJoinResultBuilder = SpatialJoinResult.newBuilder();
+        List<Geometry> intersections = operatorRequest.getSpatialJoinParams().getReturnIntersection() ? new ArrayList<>() : null;
+        OperatorSimpleRelation simpleRelation = operatorType == Operator.Type.Relate ? null :
+                (OperatorSimpleRelation) OperatorFactoryLocal.getInstance().getOperator(operatorType);
+        String de9im = operatorRequest.getRelateParams().getDe9Im();
+
+        Envelope2D envelope = new Envelope2D();
+        List<Integer> candidates = new ArrayList<>();
+        for (int position = start; position < end; position++) {
+            ProgressTracker.checkAndThrow(progressTracker);
+            Geometry probeGeometry = probe.geometries.get(position);
+            probeGeometry.queryEnvelope2D(envelope);
+            if (envelope.isEmpty()) {
+                continue;
+            }
+            envelope.inflate(tolerance, tolerance);
+
+            candidates.clear();
+            indexed.index.search(envelope, candidates::add);
+            // pairs come out in the order of the indexed side's input, whatever order the index visits them in
+            Collections.sort(candidates);
+            for (int candidate : candidates) {
+                Geometry leftGeometry = leftIndexed ? indexed.geometries.get(candidate) : probeGeometry;
+                Geometry rightGeometry = leftIndexed ? probeGeometry : indexed.geometries.get(candidate);
+                boolean matched = simpleRelation == null ?
+                        OperatorRelate.local().execute(leftGeometry, rightGeometry, srGroup.operatorSR, de9im, progressTracker) :
+                        simpleRelation.execute(leftGeometry, rightGeometry, srGroup.operatorSR, progressTracker);
+                if (!matched) {
+                    continue;
+                }
+
+                spatialJoinResultBuilder
+                        .addLeftIds(left.id(leftIndexed ? candidate : position))
+                        .addRightIds(right.id(leftIndexed ? position : candidate));
+                if (intersections != null) {
+                    intersections.add(OperatorIntersection.local().execute(leftGeometry, rightGeometry, srGroup.operatorSR, progressTracker));
+                }
+            }
+        }
+
+        if (intersections != null && !intersections.isEmpty()) {
+            GeometryCursor resultCursor = new SimpleGeometryCursor(intersections);
+            if (srGroup.resultSR != null && !srGroup.resultSR.equals(srGroup.operatorSR)) {
+                ProjectionTransformation projectionTransformation = ProjectionTransformationCache.get(srGroup.operatorSR, srGroup.resultSR);
+                resultCursor = OperatorProject.local().execute(resultCursor, projectionTransformation, progressTracker);
+            }
+            spatialJoinResultBuilder.setIntersections(GeometryOperatorsUtil.__encodeGeometry(resultCursor, operatorRequest, GeometryEncodingType.unknown, progressTracker));
+        }
+        return spatialJoinResultBuilder.build();
+    }
+}
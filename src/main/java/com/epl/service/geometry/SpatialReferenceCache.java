@@ -0,0 +1,115 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.SpatialReference;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Shared {@link SpatialReference} instances keyed by wkid, esri wkt or proj4 string. Parsing a spatial reference is a
+ * noticeable part of handling a small request, and a stream of requests usually repeats the same one or two.
+ */
+class SpatialReferenceCache {
+    private static final int MAXIMUM_SIZE = 512;
+
+    private static final Cache<Object, SpatialReference> cache = CacheBuilder
+            .newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .recordStats()
+            .build();
+
+    /**
+     * wkt and proj4 keys are kept apart so that a proj4 string can never be mistaken for a wkt.
+     */
+    private static final class TextKey {
+        private final boolean proj4;
+        private final String text;
+
+        TextKey(boolean proj4, String text) {
+            this.proj4 = proj4;
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TextKey)) {
+                return false;
+            }
+            TextKey other = (TextKey) o;
+            return proj4 == other.proj4 && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            // String caches its own hash, so large wkt strings are only hashed once
+            return 31 * text.hashCode() + (proj4 ? 1 : 0);
+        }
+    }
+
+    /**
+     * @return the spatial reference described by spatialReferenceData, or null if it describes none. wkid takes
+     * precedence over esri_wkt, which takes precedence over proj4.
+     */
+    static SpatialReference get(SpatialReferenceData spatialReferenceData) {
+        // TODO there seems to be a bug where hasWkid() is not getting generated. check back later
+        if (spatialReferenceData.getWkid() != 0) {
+            int wkid = spatialReferenceData.getWkid();
+            return __get(wkid, () -> SpatialReference.create(wkid));
+        } else if (spatialReferenceData.getEsriWkt().length() > 0) {
+            String esriWkt = spatialReferenceData.getEsriWkt();
+            return __get(new TextKey(false, esriWkt), () -> SpatialReference.create(esriWkt));
+        } else if (spatialReferenceData.getProj4().length() > 0) {
+            String proj4 = spatialReferenceData.getProj4();
+            return __get(new TextKey(true, proj4), () -> SpatialReference.createFromProj4(proj4));
+        }
+
+        return null;
+    }
+
+    static CacheStats stats() {
+        return cache.stats();
+    }
+
+    static long size() {
+        return cache.size();
+    }
+
+    private static SpatialReference __get(Object key, Callable<SpatialReference> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // surface the same exception an uncached SpatialReference.create would have thrown
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the left geometries of every message of a client stream into one result, sent when the client completes
+ * the stream. Each message is folded into a running partial result as it arrives, so the server holds the size of the
+ * output rather than the size of the input, and the transport doesn't deliver the next message until the last one has
+ * been folded in.
+ * <p>
+ * Union keeps the running union. ConvexHull keeps the running hull, as if convex_params.merge were set. EnclosingCircle
+ * keeps the running hull too, as the smallest circle around the hull is the smallest circle around everything in it,
+ * and only computes the circle at the end. Every message must have the same operator_type and operation spatial
+ * reference; the results_encoding_type and result_spatial_reference of the first one apply to the result.
+ */
+class StreamAggregate implements StreamObserver<OperatorRequest> {
+    private static final Logger logger = Logger.getLogger(StreamAggregate.class.getName());
+
+    private final StreamObserver<OperatorResult> responseObserver;
+    private final ExecutionSettings settings;
+
+    private OperatorRequest first = null;
+    private SpatialReferenceGroup firstSRGroup = null;
+    // the aggregate of every message so far, in the operation spatial reference
+    private List<Geometry> partial = new ArrayList<>();
+    private boolean finished = false;
+
+    StreamAggregate(StreamObserver<OperatorResult> responseObserver, ExecutionSettings settings) {
+        this.responseObserver = responseObserver;
+        this.settings = settings;
+    }
+
+    @Override
+    public void onNext(OperatorRequest operatorRequest) {
+        if (finished) {
+            return;
+        }
+
+        try (AdmissionController.Permit permit = settings.admission.admit(operatorRequest)) {
+            ProgressTracker progressTracker = ContextProgressTracker.current();
+            SpatialReferenceGroup srGroup = new SpatialReferenceGroup(operatorRequest);
+            __checkMessage(operatorRequest, srGroup);
+
+            GeometryCursor leftCursor = GeometryOperatorsUtil.__getLeftGeometryRequestFromRequest(operatorRequest, null, srGroup, progressTracker);
+            List<Geometry> inputs = new ArrayList<>(partial);
+            for (Geometry geometry = leftCursor.next(); geometry != null; geometry = leftCursor.next()) {
+                inputs.add(geometry);
+            }
+            partial = __collect(__reduce(new SimpleGeometryCursor(inputs), srGroup.operatorSR, progressTracker));
+        } catch (Throwable t) {
+            __fail(t);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // the client gave up, there is nobody to send the aggregate to
+        logger.log(Level.INFO, "aggregateOperations cancelled : ".concat(t.toString()));
+        finished = true;
+        partial = null;
+    }
+
+    @Override
+    public void onCompleted() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (first == null) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("aggregateOperations needs at least one request")
+                    .asRuntimeException());
+            return;
+        }
+
+        try {
+            ProgressTracker progressTracker = ContextProgressTracker.current();
+            GeometryCursor resultCursor = new SimpleGeometryCursor(partial);
+            if (first.getOperatorType() == ServiceOperatorType.EnclosingCircle) {
+                resultCursor = new OperatorEnclosingCircleCursor(resultCursor, firstSRGroup.operatorSR, progressTracker);
+            }
+            if (firstSRGroup.resultSR != null && !firstSRGroup.resultSR.equals(firstSRGroup.operatorSR)) {
+                ProjectionTransformation projectionTransformation = ProjectionTransformationCache.get(firstSRGroup.operatorSR, firstSRGroup.resultSR);
+                resultCursor = OperatorProject.local().execute(resultCursor, projectionTransformation, progressTracker);
+            }
+
+            // the result is made from every input, so it doesn't carry the input geometry ids
+            OperatorRequest.Builder resultRequestBuilder = OperatorRequest.newBuilder()
+                    .setResultsEncodingType(first.getResultsEncodingType())
+                    .setResultSpatialReference(first.getResultSpatialReference());
+            if (first.hasTwkbParams()) {
+                resultRequestBuilder.setTwkbParams(first.getTwkbParams());
+            }
+            if (first.hasTextParams()) {
+                resultRequestBuilder.setTextParams(first.getTextParams());
+            }
+            OperatorRequest resultRequest = resultRequestBuilder.build();
+            responseObserver.onNext(OperatorResult.newBuilder()
+                    .setGeometryBag(GeometryOperatorsUtil.__encodeGeometry(resultCursor, resultRequest, null, progressTracker))
+                    .build());
+            responseObserver.onCompleted();
+        } catch (Throwable t) {
+            __fail(t);
+        } finally {
+            partial = null;
+        }
+    }
+
+    private void __checkMessage(OperatorRequest operatorRequest, SpatialReferenceGroup srGroup) {
+        if (first == null) {
+            switch (operatorRequest.getOperatorType()) {
+                case Union:
+                case ConvexHull:
+                case EnclosingCircle:
+                    break;
+                default:
+                    throw Status.INVALID_ARGUMENT
+                            .withDescription("aggregateOperations supports Union, ConvexHull and EnclosingCircle, not " + operatorRequest.getOperatorType())
+                            .asRuntimeException();
+            }
+            first = operatorRequest;
+            firstSRGroup = srGroup;
+            return;
+        }
+
+        if (operatorRequest.getOperatorType() != first.getOperatorType()) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("every request of an aggregate must be a " + first.getOperatorType())
+                    .asRuntimeException();
+        }
+        boolean sameSR = srGroup.operatorSR == null ? firstSRGroup.operatorSR == null : srGroup.operatorSR.equals(firstSRGroup.operatorSR);
+        if (!sameSR) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("every request of an aggregate must have the same operation spatial reference")
+                    .asRuntimeException();
+        }
+    }
+
+    private GeometryCursor __reduce(GeometryCursor geometryCursor, SpatialReference operatorSR, ProgressTracker progressTracker) {
+        if (first.getOperatorType() == ServiceOperatorType.Union) {
+            return ParallelUnion.execute(geometryCursor, operatorSR, settings.workerPool, progressTracker);
+        }
+        // the enclosing circle is taken from the hull once every message is in
+        return OperatorConvexHull.local().execute(geometryCursor, true, progressTracker);
+    }
+
+    private static List<Geometry> __collect(GeometryCursor geometryCursor) {
+        List<Geometry> geometries = new ArrayList<>();
+        for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+            geometries.add(geometry);
+        }
+        return geometries;
+    }
+
+    private void __fail(Throwable t) {
+        finished = true;
+        partial = null;
+
+        Status cancelled = ContextProgressTracker.cancelledStatus(Context.current());
+        if (cancelled != null) {
+            logger.log(Level.INFO, "aggregateOperations stopped : ".concat(cancelled.getCode().toString()));
+            responseObserver.onError(cancelled.asRuntimeException());
+            return;
+        }
+        logger.log(Level.WARNING, "aggregateOperations error : ".concat(t.toString()));
+        // keep statuses raised on purpose, like RESOURCE_EXHAUSTED from admission control
+        Status status = Status.fromThrowable(t);
+        if (status.getCode() == Status.Code.UNKNOWN) {
+            status = status.withDescription("aggregateOperations error : ".concat(t.toString()));
+        }
+        responseObserver.onError(status.asRuntimeException());
+    }
+}
@@ -0,0 +1,442 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tiny Well-Known Binary, 2D. Coordinates are rounded to a number of decimal digits and written as zig-zag varints,
+ * each the difference from the previous coordinate of the geometry, so a vertex usually takes 2 to 6 bytes instead of
+ * the 16 of WKB. The optional bounding box lets a reader skip geometries without decoding them.
+ * <p>
+ * Rings are written closed, exterior ring first, as in WKB. On the way in exterior rings and holes are wound the way
+ * a {@link Polygon} expects, whatever order the writer used.
+ */
+class Twkb {
+    // precision used when the request has no twkb_params, about a centimeter in degrees
+    static final int DEFAULT_PRECISION = 7;
+    // the precision is a 4 bit zig-zag number
+    static final int MIN_PRECISION = -8;
+    static final int MAX_PRECISION = 7;
+
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    private static final int MULTIPOINT = 4;
+    private static final int MULTILINESTRING = 5;
+    private static final int MULTIPOLYGON = 6;
+
+    private static final int BBOX_FLAG = 0x01;
+    private static final int SIZE_FLAG = 0x02;
+    private static final int ID_LIST_FLAG = 0x04;
+    private static final int EXTENDED_DIMENSIONS_FLAG = 0x08;
+    private static final int EMPTY_FLAG = 0x10;
+
+    private Twkb() {
+    }
+
+    /**
+     * The geometries of a bag's twkb list, decoded as the cursor is read.
+     */
+    static GeometryCursor importCursor(List<ByteString> twkbList) {
+        ArrayDeque<ByteString> twkbDeque = new ArrayDeque<>(twkbList);
+        return new GeometryCursor() {
+            private int geometryId = -1;
+
+            @Override
+            public Geometry next() {
+                ByteString twkb = twkbDeque.poll();
+                if (twkb == null) {
+                    return null;
+                }
+                geometryId++;
+                return decode(twkb);
+            }
+
+            @Override
+            public int getGeometryID() {
+                return geometryId;
+            }
+
+            public boolean hasNext() {
+                return !twkbDeque.isEmpty();
+            }
+        };
+    }
+
+    /**
+     * The geometries of geometryCursor, encoded as they are iterated.
+     */
+    static Iterable<ByteString> exportIterable(GeometryCursor geometryCursor,
+                                               int precision,
+                                               boolean includeBbox,
+                                               ProgressTracker progressTracker) {
+        return () -> new Iterator<ByteString>() {
+            private Geometry nextGeometry = geometryCursor.next();
+
+            @Override
+            public boolean hasNext() {
+                return nextGeometry != null;
+            }
+
+            @Override
+            public ByteString next() {
+                ProgressTracker.checkAndThrow(progressTracker);
+                ByteString twkb = encode(nextGeometry, precision, includeBbox);
+                nextGeometry = geometryCursor.next();
+                return twkb;
+            }
+        };
+    }
+
+    static ByteString encode(Geometry geometry, int precision, boolean includeBbox) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("twkb precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION)
+                    .asRuntimeException();
+        }
+
+        Geometry.Type geometryType = geometry.getType();
+        if (geometryType == Geometry.Type.Envelope) {
+            Polygon polygon = new Polygon();
+            polygon.addEnvelope((Envelope) geometry, false);
+            geometry = polygon;
+        } else if (geometryType == Geometry.Type.Line) {
+            Polyline polyline = new Polyline();
+            polyline.addSegment((Segment) geometry, true);
+            geometry = polyline;
+        }
+
+        Writer writer = new Writer(Math.pow(10, precision));
+        int type = __type(geometry);
+        boolean empty = geometry.isEmpty();
+        try {
+            writer.output.write((byte) (type | (__zigZag4(precision) << 4)));
+            writer.output.write((byte) ((includeBbox && !empty ? BBOX_FLAG : 0) | (empty ? EMPTY_FLAG : 0)));
+            if (empty) {
+                writer.output.flush();
+                return writer.bytes.toByteString();
+            }
+
+            if (includeBbox) {
+                Envelope2D envelope = new Envelope2D();
+                geometry.queryEnvelope2D(envelope);
+                long xmin = writer.quantise(envelope.xmin);
+                long ymin = writer.quantise(envelope.ymin);
+                writer.output.writeSInt64NoTag(xmin);
+                writer.output.writeSInt64NoTag(writer.quantise(envelope.xmax) - xmin);
+                writer.output.writeSInt64NoTag(ymin);
+                writer.output.writeSInt64NoTag(writer.quantise(envelope.ymax) - ymin);
+            }
+
+            switch (type) {
+                case POINT:
+                    Point point = (Point) geometry;
+                    writer.point(point.getX(), point.getY());
+                    break;
+                case MULTIPOINT:
+                    MultiPoint multiPoint = (MultiPoint) geometry;
+                    writer.output.writeUInt32NoTag(multiPoint.getPointCount());
+                    Point2D xy = new Point2D();
+                    for (int i = 0; i < multiPoint.getPointCount(); i++) {
+                        multiPoint.getXY(i, xy);
+                        writer.point(xy.x, xy.y);
+                    }
+                    break;
+                case LINESTRING:
+                    writer.path((MultiPath) geometry, 0, false);
+                    break;
+                case MULTILINESTRING:
+                    MultiPath multiPath = (MultiPath) geometry;
+                    writer.output.writeUInt32NoTag(multiPath.getPathCount());
+                    for (int path = 0; path < multiPath.getPathCount(); path++) {
+                        writer.path(multiPath, path, false);
+                    }
+                    break;
+                case POLYGON:
+                    writer.polygon((Polygon) geometry, 0, ((Polygon) geometry).getPathCount());
+                    break;
+                default:
+                    // MULTIPOLYGON, each exterior ring and the holes that follow it
+                    Polygon polygon = (Polygon) geometry;
+                    writer.output.writeUInt32NoTag(polygon.getExteriorRingCount());
+                    int start = 0;
+                    for (int path = 1; path <= polygon.getPathCount(); path++) {
+                        if (path == polygon.getPathCount() || polygon.isExteriorRing(path)) {
+                            writer.polygon(polygon, start, path);
+                            start = path;
+                        }
+                    }
+                    break;
+            }
+            writer.output.flush();
+        } catch (IOException e) {
+            // a ByteString.Output doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return writer.bytes.toByteString();
+    }
+
+    static Geometry decode(ByteString twkb) {
+        try {
+            CodedInputStream input = twkb.newCodedInput();
+            int header = input.readRawByte() & 0xff;
+            int metadata = input.readRawByte() & 0xff;
+            int type = header & 0x0f;
+            int precisionBits = header >>> 4;
+            int precision = (precisionBits >>> 1) ^ -(precisionBits & 1);
+            if ((metadata & EXTENDED_DIMENSIONS_FLAG) != 0) {
+                // z and m aren't kept, but their precision byte is there
+                int dimensions = input.readRawByte();
+                if ((dimensions & 0x03) != 0) {
+                    throw Status.INVALID_ARGUMENT.withDescription("twkb with z or m values is not supported").asRuntimeException();
+                }
+            }
+            if ((metadata & SIZE_FLAG) != 0) {
+                input.readUInt32();
+            }
+
+            Geometry geometry;
+            switch (type) {
+                case POINT:
+                    geometry = new Point();
+                    break;
+                case MULTIPOINT:
+                    geometry = new MultiPoint();
+                    break;
+                case LINESTRING:
+                case MULTILINESTRING:
+                    geometry = new Polyline();
+                    break;
+                case POLYGON:
+                case MULTIPOLYGON:
+                    geometry = new Polygon();
+                    break;
+                default:
+                    throw Status.INVALID_ARGUMENT.withDescription("twkb geometry type " + type + " is not supported").asRuntimeException();
+            }
+            if ((metadata & EMPTY_FLAG) != 0) {
+                return geometry;
+            }
+            if ((metadata & BBOX_FLAG) != 0) {
+                for (int i = 0; i < 4; i++) {
+                    input.readSInt64();
+                }
+            }
+
+            Reader reader = new Reader(input, precision);
+            switch (type) {
+                case POINT:
+                    ((Point) geometry).setXY(reader.x(), reader.y());
+                    break;
+                case MULTIPOINT:
+                    int pointCount = input.readUInt32();
+                    if ((metadata & ID_LIST_FLAG) != 0) {
+                        reader.skipIds(pointCount);
+                    }
+                    for (int i = 0; i < pointCount; i++) {
+                        ((MultiPoint) geometry).add(reader.x(), reader.y());
+                    }
+                    break;
+                case LINESTRING:
+                    reader.path((MultiPath) geometry, false, false);
+                    break;
+                case MULTILINESTRING:
+                    int lineCount = input.readUInt32();
+                    if ((metadata & ID_LIST_FLAG) != 0) {
+                        reader.skipIds(lineCount);
+                    }
+                    for (int i = 0; i < lineCount; i++) {
+                        reader.path((MultiPath) geometry, false, false);
+                    }
+                    break;
+                case POLYGON:
+                    reader.polygon((Polygon) geometry);
+                    break;
+                default:
+                    int polygonCount = input.readUInt32();
+                    if ((metadata & ID_LIST_FLAG) != 0) {
+                        reader.skipIds(polygonCount);
+                    }
+                    for (int i = 0; i < polygonCount; i++) {
+                        reader.polygon((Polygon) geometry);
+                    }
+                    break;
+            }
+            return geometry;
+        } catch (IOException e) {
+            throw Status.INVALID_ARGUMENT.withDescription("malformed twkb : ".concat(e.toString())).asRuntimeException();
+        }
+    }
+
+    private static int __type(Geometry geometry) {
+        switch (geometry.getType()) {
+            case Point:
+                return POINT;
+            case MultiPoint:
+                return MULTIPOINT;
+            case Polyline:
+                return ((MultiPath) geometry).getPathCount() <= 1 ? LINESTRING : MULTILINESTRING;
+            case Polygon:
+                return ((Polygon) geometry).getExteriorRingCount() <= 1 ? POLYGON : MULTIPOLYGON;
+            default:
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("twkb can't encode a " + geometry.getType())
+                        .asRuntimeException();
+        }
+    }
+
+    private static int __zigZag4(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0x0f;
+    }
+
+    private static class Writer {
+        final ByteString.Output bytes = ByteString.newOutput();
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        final double scale;
+        // the previous point, every point is written as the difference from it
+        long lastX = 0;
+        long lastY = 0;
+
+        Writer(double scale) {
+            this.scale = scale;
+        }
+
+        long quantise(double value) {
+            return Math.round(value * scale);
+        }
+
+        void point(double x, double y) throws IOException {
+            long qx = quantise(x);
+            long qy = quantise(y);
+            output.writeSInt64NoTag(qx - lastX);
+            output.writeSInt64NoTag(qy - lastY);
+            lastX = qx;
+            lastY = qy;
+        }
+
+        void path(MultiPath multiPath, int path, boolean ring) throws IOException {
+            int start = multiPath.getPathStart(path);
+            int end = multiPath.getPathEnd(path);
+            output.writeUInt32NoTag(end - start + (ring ? 1 : 0));
+            Point2D xy = new Point2D();
+            for (int i = start; i < end; i++) {
+                multiPath.getXY(i, xy);
+                point(xy.x, xy.y);
+            }
+            if (ring) {
+                multiPath.getXY(start, xy);
+                point(xy.x, xy.y);
+            }
+        }
+
+        // rings [start, end) of polygon, an exterior ring and its holes
+        void polygon(Polygon polygon, int start, int end) throws IOException {
+            output.writeUInt32NoTag(end - start);
+            for (int path = start; path < end; path++) {
+                path(polygon, path, true);
+            }
+        }
+    }
+
+    private static class Reader {
+        final CodedInputStream input;
+        // dividing by a power of ten, rather than multiplying by its inverse, gives back the nearest double to the
+        // decimal that was written
+        final int precision;
+        final double factor;
+        long lastX = 0;
+        long lastY = 0;
+
+        Reader(CodedInputStream input, int precision) {
+            this.input = input;
+            this.precision = precision;
+            this.factor = Math.pow(10, Math.abs(precision));
+        }
+
+        double unquantise(long value) {
+            return precision >= 0 ? value / factor : value * factor;
+        }
+
+        double x() throws IOException {
+            lastX += input.readSInt64();
+            return unquantise(lastX);
+        }
+
+        // only ever called right after x()
+        double y() throws IOException {
+            lastY += input.readSInt64();
+            return unquantise(lastY);
+        }
+
+        void skipIds(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                input.readSInt64();
+            }
+        }
+
+        void path(MultiPath multiPath, boolean ring, boolean exterior) throws IOException {
+            int pointCount = input.readUInt32();
+            if (pointCount == 0) {
+                return;
+            }
+            double[] xs = new double[pointCount];
+            double[] ys = new double[pointCount];
+            for (int i = 0; i < pointCount; i++) {
+                xs[i] = x();
+                ys[i] = y();
+            }
+            if (ring && pointCount > 1 && xs[0] == xs[pointCount - 1] && ys[0] == ys[pointCount - 1]) {
+                // a polygon closes its rings itself
+                pointCount--;
+            }
+
+            multiPath.startPath(xs[0], ys[0]);
+            for (int i = 1; i < pointCount; i++) {
+                multiPath.lineTo(xs[i], ys[i]);
+            }
+            if (ring) {
+                int path = multiPath.getPathCount() - 1;
+                // exterior rings have a positive area in a Polygon, holes a negative one
+                double area = ((Polygon) multiPath).calculateRingArea2D(path);
+                if ((area < 0) == exterior) {
+                    multiPath.reversePath(path);
+                }
+            }
+        }
+
+        void polygon(Polygon polygon) throws IOException {
+            int ringCount = input.readUInt32();
+            for (int ring = 0; ring < ringCount; ring++) {
+                path(polygon, true, ring == 0);
+            }
+        }
+    }
+}
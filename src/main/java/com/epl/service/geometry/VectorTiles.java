@@ -0,0 +1,370 @@
+/*
+Copyright 2017 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.service.geometry;
+
+import com.esri.core.geometry.*;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Streams the Mapbox Vector Tiles of a request's left geometries over its tile_params tile ranges. The geometries are
+ * projected to web mercator once and indexed with a {@link PackedRTree}. Each tile searches the index for the
+ * geometries in its buffered bounds, skips itself if there are none, and clips, simplifies and quantises the rest
+ * with an {@link MvtEncoder}.
+ * <p>
+ * The ranges are first narrowed to the tiles that overlap the geometries at all. Tiles are made in batches on the
+ * worker pool and sent in range order, with the same flow control as {@link SpatialJoin}: at most the call's stream
+ * parallelism of batches are in flight and no batch is started while the response transport is not ready.
+ */
+class VectorTiles {
+    static final int MAX_ZOOM = 24;
+    // tiles a single request may cover, after narrowing the ranges to the extent of the geometries
+    static final long MAX_TILES = 1 << 22;
+    static final int DEFAULT_EXTENT = 4096;
+    static final String DEFAULT_LAYER_NAME = "geometries";
+
+    private static final int BATCH_SIZE = 16;
+    private static final int WEB_MERCATOR = 3857;
+    // half the width of the web mercator square in meters
+    private static final double ORIGIN_SHIFT = 20037508.342789244;
+
+    private static class Batch {
+        final List<int[]> tiles;
+        List<VectorTile> results;
+        Throwable error;
+        boolean done;
+
+        Batch(List<int[]> tiles) {
+            this.tiles = tiles;
+        }
+    }
+
+    private final ServerCallStreamObserver<VectorTile> responseObserver;
+    private final Context context;
+    private final Executor executor;
+    private final int parallelism;
+    private final AdmissionController.Permit permit;
+    private final ProgressTracker progressTracker;
+
+    private final SpatialReference webMercator;
+    private final List<Geometry> geometries;
+    private final List<Long> geometryIds;
+    private final PackedRTree index;
+    private final List<TileRange> tileRanges;
+    private final String layerName;
+    private final int extent;
+    private final int buffer;
+    private final double simplifyTolerance;
+
+    // all of the below are guarded by this
+    // started and not yet sent, in tile order
+    private final ArrayDeque<Batch> batches = new ArrayDeque<>();
+    // the next tile to batch, the position in tileRanges and x, y within the range
+    private int nextRange = 0;
+    private int nextX;
+    private int nextY;
+    private boolean finished = false;
+
+    /**
+     * Load, project and index the left geometries of operatorRequest, then make the tiles on the worker pool and send
+     * them to responseObserver from there.
+     *
+     * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the tile params are out of range
+     */
+    static void start(OperatorRequest operatorRequest,
+                      ExecutionSettings settings,
+                      StreamObserver<VectorTile> responseObserver) throws IOException {
+        TileParams tileParams = operatorRequest.getTileParams();
+        if (tileParams.getExtent() < 0 || tileParams.getBuffer() < 0 || tileParams.getSimplifyTolerance() < 0) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("tile extent, buffer and simplify_tolerance can't be negative")
+                    .asRuntimeException();
+        }
+        for (TileRange tileRange : tileParams.getTileRangesList()) {
+            if (tileRange.getZoom() < 0 || tileRange.getZoom() > MAX_ZOOM) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("tile zoom must be between 0 and " + MAX_ZOOM)
+                        .asRuntimeException();
+            }
+        }
+
+        // held until the last tile is sent or the call ends
+        AdmissionController.Permit permit = settings.admission.admit(operatorRequest);
+        VectorTiles vectorTiles;
+        try {
+            vectorTiles = new VectorTiles(operatorRequest, settings, permit, responseObserver);
+        } catch (Throwable t) {
+            permit.close();
+            throw t;
+        }
+        vectorTiles.__dispatch();
+    }
+
+    private VectorTiles(OperatorRequest operatorRequest,
+                        ExecutionSettings settings,
+                        AdmissionController.Permit permit,
+                        StreamObserver<VectorTile> responseObserver) throws IOException {
+        this.responseObserver = (ServerCallStreamObserver<VectorTile>) responseObserver;
+        this.context = Context.current();
+        this.executor = settings.workerPool;
+        this.parallelism = settings.streamParallelism;
+        this.permit = permit;
+        this.progressTracker = ContextProgressTracker.current();
+
+        TileParams tileParams = operatorRequest.getTileParams();
+        layerName = tileParams.getLayerName().isEmpty() ? DEFAULT_LAYER_NAME : tileParams.getLayerName();
+        extent = tileParams.getExtent() > 0 ? tileParams.getExtent() : DEFAULT_EXTENT;
+        buffer = tileParams.getBuffer();
+        simplifyTolerance = tileParams.getSimplifyTolerance();
+
+        SpatialReferenceData webMercatorData = SpatialReferenceData.newBuilder().setWkid(WEB_MERCATOR).build();
+        webMercator = GeometryOperatorsUtil.__extractSpatialReference(webMercatorData);
+        OperatorRequest projectedRequest = operatorRequest.toBuilder().setOperationSpatialReference(webMercatorData).build();
+        SpatialReferenceGroup srGroup = new SpatialReferenceGroup(projectedRequest);
+
+        String handle = operatorRequest.getLeftGeometryHandle();
+        GeometryRegistry.Entry entry = handle.isEmpty() ? null : GeometryOperatorsUtil.__registeredGeometries(handle);
+        if (entry != null && webMercator.equals(entry.spatialReference)) {
+            // registered in web mercator, the registry's index is the one to search
+            geometries = entry.geometries;
+            geometryIds = entry.geometryIds;
+            index = entry.index;
+        } else {
+            geometries = new ArrayList<>();
+            GeometryCursor geometryCursor = GeometryOperatorsUtil.__getLeftGeometryRequestFromRequest(projectedRequest, null, srGroup, progressTracker);
+            for (Geometry geometry = geometryCursor.next(); geometry != null; geometry = geometryCursor.next()) {
+                ProgressTracker.checkAndThrow(progressTracker);
+                geometries.add(geometry);
+            }
+            geometryIds = GeometryOperatorsUtil.__inputGeometryIds(operatorRequest);
+            index = PackedRTree.fromGeometries(geometries);
+        }
+
+        tileRanges = __narrow(tileParams.getTileRangesList());
+
+        this.responseObserver.setOnReadyHandler(this::__dispatch);
+        this.responseObserver.setOnCancelHandler(() -> {
+            synchronized (VectorTiles.this) {
+                __finish();
+            }
+        });
+    }
+
+    /**
+     * The ranges cut down to the tiles that overlap the geometries, without the ones that are left empty.
+     */
+    private List<TileRange> __narrow(List<TileRange> requested) {
+        if (index.size() == 0) {
+            return Collections.emptyList();
+        }
+        int root = index.root();
+        List<TileRange> narrowed = new ArrayList<>();
+        long tileCount = 0;
+        for (TileRange tileRange : requested) {
+            int zoom = tileRange.getZoom();
+            int last = (1 << zoom) - 1;
+            double size = __tileSize(zoom);
+            // the tiles the geometries' extent reaches into, buffer included
+            double margin = size * buffer / extent;
+            int minX = Math.max(Math.max(0, tileRange.getMinX()), __tile(index.xmin(root) - margin + ORIGIN_SHIFT, size, last));
+            int maxX = Math.min(Math.min(last, tileRange.getMaxX()), __tile(index.xmax(root) + margin + ORIGIN_SHIFT, size, last));
+            int minY = Math.max(Math.max(0, tileRange.getMinY()), __tile(ORIGIN_SHIFT - index.ymax(root) - margin, size, last));
+            int maxY = Math.min(Math.min(last, tileRange.getMaxY()), __tile(ORIGIN_SHIFT - index.ymin(root) + margin, size, last));
+            if (minX > maxX || minY > maxY) {
+                continue;
+            }
+
+            tileCount += (long) (maxX - minX + 1) * (maxY - minY + 1);
+            if (tileCount > MAX_TILES) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("tile ranges cover more than " + MAX_TILES + " tiles with geometries in them")
+                        .asRuntimeException();
+            }
+            narrowed.add(TileRange.newBuilder()
+                    .setZoom(zoom)
+                    .setMinX(minX)
+                    .setMinY(minY)
+                    .setMaxX(maxX)
+                    .setMaxY(maxY)
+                    .build());
+        }
+        if (!narrowed.isEmpty()) {
+            nextX = narrowed.get(0).getMinX();
+            nextY = narrowed.get(0).getMinY();
+        }
+        return narrowed;
+    }
+
+    private static double __tileSize(int zoom) {
+        return 2 * ORIGIN_SHIFT / (1 << zoom);
+    }
+
+    // the tile at distance from the west or north edge, clamped to the tiles of the zoom
+    private static int __tile(double distance, double size, int last) {
+        return (int) Math.max(0, Math.min(last, Math.floor(distance / size)));
+    }
+
+    /**
+     * Start batches while there is room in the window and the transport is ready, and send the finished ones.
+     */
+    private synchronized void __dispatch() {
+        while (!finished && batches.size() < parallelism && nextRange < tileRanges.size() && responseObserver.isReady()) {
+            Batch batch = new Batch(__nextTiles());
+            batches.add(batch);
+            // carry the call context (deadline, cancellation, call settings) onto the worker thread
+            executor.execute(context.wrap(() -> __run(batch)));
+        }
+        __drain();
+    }
+
+    // must hold the lock
+    private List<int[]> __nextTiles() {
+        List<int[]> tiles = new ArrayList<>(BATCH_SIZE);
+        while (tiles.size() < BATCH_SIZE && nextRange < tileRanges.size()) {
+            TileRange tileRange = tileRanges.get(nextRange);
+            tiles.add(new int[]{tileRange.getZoom(), nextX, nextY});
+            if (nextY < tileRange.getMaxY()) {
+                nextY++;
+            } else if (nextX < tileRange.getMaxX()) {
+                nextX++;
+                nextY = tileRange.getMinY();
+            } else if (++nextRange < tileRanges.size()) {
+                nextX = tileRanges.get(nextRange).getMinX();
+                nextY = tileRanges.get(nextRange).getMinY();
+            }
+        }
+        return tiles;
+    }
+
+    private void __run(Batch batch) {
+        List<VectorTile> results = null;
+        Throwable error = null;
+        try {
+            results = new ArrayList<>();
+            for (int[] tile : batch.tiles) {
+                VectorTile vectorTile = __tile(tile[0], tile[1], tile[2]);
+                if (vectorTile != null) {
+                    results.add(vectorTile);
+                }
+            }
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        synchronized (this) {
+            batch.results = results;
+            batch.error = error;
+            batch.done = true;
+        }
+        __dispatch();
+    }
+
+    // must hold the lock
+    private void __drain() {
+        while (!finished && !batches.isEmpty() && batches.peek().done) {
+            Batch batch = batches.poll();
+            if (batch.error != null) {
+                __finish();
+                Status status = ContextProgressTracker.cancelledStatus(context);
+                if (status == null) {
+                    // keep statuses raised on purpose, like NOT_FOUND for an expired handle
+                    status = Status.fromThrowable(batch.error);
+                    if (status.getCode() == Status.Code.UNKNOWN) {
+                        status = Status.UNKNOWN.withDescription("vectorTiles error : ".concat(batch.error.toString()));
+                    }
+                }
+                responseObserver.onError(status.withCause(batch.error).asException());
+                return;
+            }
+            for (VectorTile vectorTile : batch.results) {
+                responseObserver.onNext(vectorTile);
+            }
+        }
+
+        if (!finished && batches.isEmpty() && nextRange >= tileRanges.size()) {
+            __finish();
+            responseObserver.onCompleted();
+        }
+    }
+
+    // must hold the lock
+    private void __finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        batches.clear();
+        permit.close();
+    }
+
+    /**
+     * @return the tile, or null if no geometry is left in it
+     */
+    private VectorTile __tile(int zoom, int x, int y) {
+        ProgressTracker.checkAndThrow(progressTracker);
+        double size = __tileSize(zoom);
+        double xmin = x * size - ORIGIN_SHIFT;
+        double ymax = ORIGIN_SHIFT - y * size;
+        Envelope2D tileBounds = Envelope2D.construct(xmin, ymax - size, xmin + size, ymax);
+        Envelope2D clipBounds = new Envelope2D();
+        clipBounds.setCoords(tileBounds);
+        double margin = size * buffer / extent;
+        clipBounds.inflate(margin, margin);
+
+        List<Integer> candidates = new ArrayList<>();
+        index.search(clipBounds, candidates::add);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        // features in input order, whatever order the index visits them in
+        Collections.sort(candidates);
+
+        MvtEncoder mvtEncoder = new MvtEncoder(extent, tileBounds);
+        double maxDeviation = simplifyTolerance * size / extent;
+        for (int candidate : candidates) {
+            Geometry geometry = OperatorClip.local().execute(geometries.get(candidate), clipBounds, webMercator, progressTracker);
+            if (maxDeviation > 0 && geometry instanceof MultiPath && !geometry.isEmpty()) {
+                geometry = OperatorGeneralize.local().execute(geometry, maxDeviation, true, progressTracker);
+            }
+            mvtEncoder.add(geometryIds.size() == geometries.size() ? geometryIds.get(candidate) : candidate, geometry);
+        }
+        if (mvtEncoder.featureCount() == 0) {
+            return null;
+        }
+
+        return VectorTile.newBuilder()
+                .setZoom(zoom)
+                .setX(x)
+                .setY(y)
+                .setMvt(mvtEncoder.encode(layerName))
+                .setFeatureCount(mvtEncoder.featureCount())
+                .build();
+    }
+}
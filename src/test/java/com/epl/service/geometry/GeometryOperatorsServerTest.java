@@ -22,10 +22,15 @@ package com.epl.service.geometry;
 
 import com.esri.core.geometry.*;
 import com.google.protobuf.ByteString;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
 import junit.framework.TestCase;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -38,6 +43,12 @@ import java.io.FileReader;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import static junit.framework.TestCase.assertNull;
@@ -582,4 +593,1375 @@ public class GeometryOperatorsServerTest {
         }
         assertTrue(bFoundEmpty);
     }
+
+    @Test
+    public void testStreamOperationsOrder() throws InterruptedException {
+        int size = 200;
+        CollectingObserver observer = new CollectingObserver();
+
+        // a small window and parallelism for this call so the window has to refill many times
+        Metadata headers = new Metadata();
+        headers.put(ExecutionSettings.STREAM_WINDOW_KEY, "8");
+        headers.put(ExecutionSettings.STREAM_PARALLELISM_KEY, "4");
+        GeometryOperatorsGrpc.GeometryOperatorsStub stub = MetadataUtils.attachHeaders(
+                GeometryOperatorsGrpc.newStub(inProcessChannel), headers);
+
+        StreamObserver<OperatorRequest> requestObserver = stub.streamOperations(observer);
+
+        for (int i = 0; i < size; i++) {
+            // the early requests are the most expensive, so later ones tend to finish first
+            GeometryBagData geometryBag = GeometryBagData.newBuilder()
+                    .addWkt(String.format("Point(%d %d)", i, i))
+                    .addGeometryIds(i)
+                    .build();
+            OperatorRequest serviceBufferOp = OperatorRequest.newBuilder()
+                    .setGeometryBag(geometryBag)
+                    .setOperatorType(ServiceOperatorType.Buffer)
+                    .setBufferParams(BufferParams.newBuilder()
+                            .addDistances(1)
+                            .setMaxVerticesInFullCircle(Math.max(16, 4096 - i * 20)))
+                    .build();
+            requestObserver.onNext(serviceBufferOp);
+        }
+        requestObserver.onCompleted();
+
+        List<OperatorResult> results = observer.awaitCompleted();
+        assertEquals(size, results.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(i, results.get(i).getGeometryBag().getGeometryIds(0));
+        }
+    }
+
+    @Test
+    public void testStreamOperationsExIds() throws InterruptedException {
+        int size = 200;
+        CollectingObserver observer = new CollectingObserver();
+
+        GeometryOperatorsGrpc.GeometryOperatorsStub stub = GeometryOperatorsGrpc.newStub(inProcessChannel);
+        StreamObserver<OperatorRequest> requestObserver = stub.streamOperationsEx(observer);
+
+        for (int i = 0; i < size; i++) {
+            // left geometry bag ids are not carried through by the operator itself, only by the stream tagging
+            GeometryBagData geometryBag = GeometryBagData.newBuilder()
+                    .addWkt(String.format("Point(%d %d)", i, i))
+                    .addGeometryIds(i)
+                    .build();
+            OperatorRequest serviceBufferOp = OperatorRequest.newBuilder()
+                    .setLeftGeometryBag(geometryBag)
+                    .setOperatorType(ServiceOperatorType.Buffer)
+                    .setBufferParams(BufferParams.newBuilder().addDistances(1))
+                    .build();
+            requestObserver.onNext(serviceBufferOp);
+        }
+        requestObserver.onCompleted();
+
+        Set<Long> resultIds = new HashSet<>();
+        for (OperatorResult operatorResult : observer.awaitCompleted()) {
+            assertEquals(1, operatorResult.getGeometryBag().getWkbCount());
+            resultIds.add(operatorResult.getGeometryBag().getGeometryIds(0));
+        }
+        assertEquals(size, resultIds.size());
+        for (long i = 0; i < size; i++) {
+            assertTrue(resultIds.contains(i));
+        }
+    }
+
+    @Test
+    public void testStreamOperationsExUnionIds() throws InterruptedException {
+        CollectingObserver observer = new CollectingObserver();
+
+        GeometryOperatorsGrpc.GeometryOperatorsStub stub = GeometryOperatorsGrpc.newStub(inProcessChannel);
+        StreamObserver<OperatorRequest> requestObserver = stub.streamOperationsEx(observer);
+
+        // three ids in, one geometry out, the ids don't belong to it
+        GeometryBagData geometryBag = GeometryBagData.newBuilder()
+                .addWkt("POLYGON ((0 0, 0 2, 2 2, 2 0, 0 0))")
+                .addWkt("POLYGON ((1 1, 1 3, 3 3, 3 1, 1 1))")
+                .addWkt("POLYGON ((2 2, 2 4, 4 4, 4 2, 2 2))")
+                .addAllGeometryIds(Arrays.asList(10L, 11L, 12L))
+                .build();
+        requestObserver.onNext(OperatorRequest.newBuilder()
+                .setLeftGeometryBag(geometryBag)
+                .setOperatorType(ServiceOperatorType.Union)
+                .build());
+        requestObserver.onCompleted();
+
+        List<OperatorResult> results = observer.awaitCompleted();
+        assertEquals(1, results.size());
+        assertEquals(1, results.get(0).getGeometryBag().getWkbCount());
+        assertEquals(0, results.get(0).getGeometryBag().getGeometryIdsCount());
+    }
+
+    static byte[] pointShapefile(List<Point> points) {
+        return shapefile(points, 1);
+    }
+
+    static byte[] shapefile(List<? extends Geometry> geometries, int shapeType) {
+        List<byte[]> records = geometries.stream()
+                .map(geometry -> ByteString.copyFrom(OperatorExportToESRIShape.local().execute(0, geometry)).toByteArray())
+                .collect(Collectors.toList());
+        int fileLength = 100 + records.stream().mapToInt(record -> 8 + record.length).sum();
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(fileLength);
+        byteBuffer.order(java.nio.ByteOrder.BIG_ENDIAN).putInt(9994).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0).putInt(fileLength / 2);
+        byteBuffer.order(java.nio.ByteOrder.LITTLE_ENDIAN).putInt(1000).putInt(shapeType);
+        for (int i = 0; i < 8; i++) {
+            byteBuffer.putDouble(0);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            byteBuffer.order(java.nio.ByteOrder.BIG_ENDIAN).putInt(i + 1).putInt(records.get(i).length / 2);
+            byteBuffer.put(records.get(i));
+        }
+        return byteBuffer.array();
+    }
+
+    @Test
+    public void testStreamFileOperations() throws InterruptedException {
+        int size = 100;
+        List<Point> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(new Point(i, -i));
+        }
+        byte[] shapefile = pointShapefile(points);
+
+        CollectingObserver observer = new CollectingObserver();
+        GeometryOperatorsGrpc.GeometryOperatorsStub stub = GeometryOperatorsGrpc.newStub(inProcessChannel);
+        StreamObserver<FileChunk> requestObserver = stub.streamFileOperations(observer);
+
+        OperatorRequest nestedRequest = OperatorRequest.newBuilder()
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(.5))
+                .build();
+
+        // odd chunk size so that records straddle chunks
+        int chunkSize = 137;
+        for (int offset = 0; offset < shapefile.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, shapefile.length - offset);
+            FileChunk.Builder fileChunkBuilder = FileChunk.newBuilder()
+                    .setData(ByteString.copyFrom(shapefile, offset, length))
+                    .setOffset(offset)
+                    .setIsLastChunk(offset + length == shapefile.length);
+            if (offset == 0) {
+                fileChunkBuilder.setFileName("points.shp").setNestedRequest(nestedRequest);
+            }
+            requestObserver.onNext(fileChunkBuilder.build());
+        }
+        requestObserver.onCompleted();
+
+        List<OperatorResult> results = observer.awaitCompleted();
+        assertEquals(size, results.size());
+        for (int i = 0; i < size; i++) {
+            OperatorResult operatorResult = results.get(i);
+            assertEquals(i + 1, operatorResult.getGeometryBag().getGeometryIds(0));
+            Geometry result = OperatorImportFromWkb.local().execute(0, Geometry.Type.Unknown, operatorResult.getGeometryBag().getWkb(0).asReadOnlyByteBuffer(), null);
+            assertTrue(OperatorContains.local().execute(result, points.get(i), null, null));
+        }
+    }
+
+    @Test
+    public void testStreamFileOperationsLargeRecord() throws InterruptedException {
+        // a polygon record many times MAX_BUFFERED_CHUNKS chunks long, between two small ones
+        List<Polygon> polygons = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int vertexCount = i == 1 ? 500 : 4;
+            Polygon polygon = new Polygon();
+            for (int v = 0; v < vertexCount; v++) {
+                // clockwise, an outer ring
+                double angle = -2 * Math.PI * v / vertexCount;
+                if (v == 0) {
+                    polygon.startPath(i * 10 + Math.cos(angle), Math.sin(angle));
+                } else {
+                    polygon.lineTo(i * 10 + Math.cos(angle), Math.sin(angle));
+                }
+            }
+            polygons.add(polygon);
+        }
+        byte[] shapefile = shapefile(polygons, 5);
+
+        CollectingObserver observer = new CollectingObserver();
+        GeometryOperatorsGrpc.GeometryOperatorsStub stub = GeometryOperatorsGrpc.newStub(inProcessChannel);
+        StreamObserver<FileChunk> requestObserver = stub.streamFileOperations(observer);
+
+        OperatorRequest nestedRequest = OperatorRequest.newBuilder()
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(.5))
+                .build();
+
+        int chunkSize = 137;
+        assertTrue(shapefile.length > 100 + FileChunkStreamObserver.MAX_BUFFERED_CHUNKS * chunkSize * 4);
+        for (int offset = 0; offset < shapefile.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, shapefile.length - offset);
+            FileChunk.Builder fileChunkBuilder = FileChunk.newBuilder()
+                    .setData(ByteString.copyFrom(shapefile, offset, length))
+                    .setOffset(offset)
+                    .setIsLastChunk(offset + length == shapefile.length);
+            if (offset == 0) {
+                fileChunkBuilder.setFileName("polygons.shp").setNestedRequest(nestedRequest);
+            }
+            requestObserver.onNext(fileChunkBuilder.build());
+        }
+        requestObserver.onCompleted();
+
+        List<OperatorResult> results = observer.awaitCompleted();
+        assertEquals(polygons.size(), results.size());
+        for (int i = 0; i < polygons.size(); i++) {
+            OperatorResult operatorResult = results.get(i);
+            assertEquals(i + 1, operatorResult.getGeometryBag().getGeometryIds(0));
+            Geometry result = OperatorImportFromWkb.local().execute(0, Geometry.Type.Unknown, operatorResult.getGeometryBag().getWkb(0).asReadOnlyByteBuffer(), null);
+            assertTrue(OperatorContains.local().execute(result, polygons.get(i), null, null));
+        }
+    }
+
+    @Test
+    public void testSpatialReferenceCache() {
+        SpatialReferenceData spatialReferenceWGS = SpatialReferenceData.newBuilder().setWkid(4326).build();
+        SpatialReferenceData spatialReferenceWkt = SpatialReferenceData.newBuilder()
+                .setEsriWkt(SpatialReference.create(3857).getText())
+                .build();
+
+        long hits = SpatialReferenceCache.stats().hitCount();
+        SpatialReference first = SpatialReferenceCache.get(spatialReferenceWGS);
+        SpatialReference second = SpatialReferenceCache.get(SpatialReferenceData.newBuilder().setWkid(4326).build());
+        assertTrue(first == second);
+        assertEquals(4326, first.getID());
+
+        assertTrue(SpatialReferenceCache.get(spatialReferenceWkt) == SpatialReferenceCache.get(spatialReferenceWkt));
+        assertTrue(SpatialReferenceCache.stats().hitCount() >= hits + 2);
+
+        assertNull(SpatialReferenceCache.get(SpatialReferenceData.getDefaultInstance()));
+    }
+
+    @Test
+    public void testProjectionTransformationCache() throws Exception {
+        SpatialReference wgs84 = SpatialReference.create(4326);
+        SpatialReference mercator = SpatialReference.create(3857);
+
+        ProjectionTransformation forward = ProjectionTransformationCache.get(wgs84, mercator);
+        assertTrue(forward == ProjectionTransformationCache.get(SpatialReference.create(4326), SpatialReference.create(3857)));
+        assertTrue(forward != ProjectionTransformationCache.get(mercator, wgs84));
+
+        // every thread projects with a transformation of its own
+        ForkJoinPool workerPool = new ForkJoinPool(1);
+        try {
+            ProjectionTransformation other = workerPool.submit(() -> ProjectionTransformationCache.get(wgs84, mercator)).get();
+            assertTrue(other != forward);
+            assertTrue(other == workerPool.submit(() -> ProjectionTransformationCache.get(wgs84, mercator)).get());
+        } finally {
+            workerPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelledContextStopsOperator() throws Exception {
+        Polyline polyline = new Polyline();
+        polyline.startPath(0, 0);
+        polyline.lineTo(2, 3);
+        polyline.lineTo(3, 3);
+
+        OperatorRequest serviceOp = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt(GeometryEngine.geometryToWkt(polyline, 0)))
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(1))
+                .build();
+
+        Context.CancellableContext cancellableContext = Context.current().withCancellation();
+        cancellableContext.cancel(null);
+        Context previous = cancellableContext.attach();
+        boolean stopped = false;
+        try {
+            GeometryOperatorsUtil.initExecuteOperatorEx(serviceOp);
+        } catch (RuntimeException e) {
+            stopped = true;
+        } finally {
+            cancellableContext.detach(previous);
+        }
+        assertTrue(stopped);
+
+        // outside of the cancelled call the same request runs to completion
+        OperatorResult operatorResult = GeometryOperatorsUtil.initExecuteOperatorEx(serviceOp);
+        assertEquals(1, operatorResult.getGeometryBag().getWktCount());
+    }
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        GeometryBagData.Builder geometryBagBuilder = GeometryBagData.newBuilder().setGeometryEncodingType(GeometryEncodingType.wkt);
+        for (int i = 0; i < 100; i++) {
+            geometryBagBuilder.addWkt("POINT (" + i + " " + i + ")");
+        }
+        OperatorRequest small = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder().setGeometryEncodingType(GeometryEncodingType.wkt).addWkt("POINT (1 1)"))
+                .setOperatorType(ServiceOperatorType.ConvexHull)
+                .build();
+        OperatorRequest bulk = OperatorRequest.newBuilder()
+                .setGeometryRequest(OperatorRequest.newBuilder()
+                        .setLeftGeometryBag(geometryBagBuilder)
+                        .setOperatorType(ServiceOperatorType.Buffer)
+                        .setBufferParams(BufferParams.newBuilder().addDistances(1)))
+                .setOperatorType(ServiceOperatorType.Union)
+                .build();
+
+        AdmissionController.Cost smallCost = AdmissionController.estimate(small);
+        AdmissionController.Cost bulkCost = AdmissionController.estimate(bulk);
+        assertEquals(1, smallCost.geometries);
+        assertEquals(100, bulkCost.geometries);
+        assertEquals(2, bulkCost.depth);
+        assertTrue(bulkCost.cpu > smallCost.cpu);
+
+        // one bulk slot, room in memory for the bulk request and not much more, no waiting
+        AdmissionController admission = new AdmissionController(1, bulkCost.memory + smallCost.memory, bulkCost.cpu, 0);
+        try (AdmissionController.Permit permit = admission.admit(bulk)) {
+            assertEquals(1, admission.cpuSlotsInUse());
+            // small requests get past a running bulk request
+            admission.admit(small).close();
+
+            boolean rejected = false;
+            try {
+                admission.admit(bulk);
+            } catch (io.grpc.StatusRuntimeException e) {
+                assertEquals(io.grpc.Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+                rejected = true;
+            }
+            assertTrue(rejected);
+        }
+        assertEquals(0, admission.cpuSlotsInUse());
+        assertEquals(0, admission.memoryInUse());
+        assertEquals(1, admission.rejectedCount());
+        admission.admit(bulk).close();
+
+        // a worker waiting for admission doesn't keep the pool from running other tasks
+        AdmissionController waiting = new AdmissionController(1, bulkCost.memory * 2, bulkCost.cpu, 10000);
+        ForkJoinPool workerPool = new ForkJoinPool(1);
+        try {
+            AdmissionController.Permit held = waiting.admit(bulk);
+            java.util.concurrent.ForkJoinTask<?> waiter = workerPool.submit(() -> waiting.admit(bulk).close());
+            // let the waiter take the only worker
+            Thread.sleep(100);
+            assertEquals(Integer.valueOf(1), workerPool.submit(() -> 1).get(5, TimeUnit.SECONDS));
+            held.close();
+            waiter.get(5, TimeUnit.SECONDS);
+        } finally {
+            workerPool.shutdown();
+        }
+        assertEquals(0, waiting.cpuSlotsInUse());
+    }
+
+    @Test
+    public void testOperatorMetrics() throws Exception {
+        Polyline polyline = new Polyline();
+        polyline.startPath(0, 0);
+        polyline.lineTo(2, 3);
+        polyline.lineTo(3, 3);
+
+        OperatorRequest serviceOp = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt(GeometryEngine.geometryToWkt(polyline, 0)))
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(1))
+                .build();
+
+        OperatorMetrics.Histogram operate = OperatorMetrics.stageHistogram(ServiceOperatorType.Buffer, OperatorMetrics.Stage.operate);
+        long operateCount = operate == null ? 0 : operate.count();
+
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        stub.executeOperation(serviceOp);
+
+        assertEquals(operateCount + 1, OperatorMetrics.stageHistogram(ServiceOperatorType.Buffer, OperatorMetrics.Stage.operate).count());
+        assertTrue(OperatorMetrics.stageHistogram(ServiceOperatorType.Buffer, OperatorMetrics.Stage.decode).count() > 0);
+        assertTrue(OperatorMetrics.stageHistogram(ServiceOperatorType.Buffer, OperatorMetrics.Stage.encode).count() > 0);
+
+        MetricsEndpoint metricsEndpoint = new MetricsEndpoint(0, ExecutionSettings.current());
+        String scrape = metricsEndpoint.scrape();
+        assertTrue(scrape.contains("geometry_rpc_calls_total{method=\"ExecuteOperation\",code=\"OK\"}"));
+        assertTrue(scrape.contains("geometry_operator_vertices_total{operator=\"Buffer\",direction=\"in\"}"));
+        assertTrue(scrape.contains("geometry_operator_stage_seconds_bucket{operator=\"Buffer\",stage=\"operate\",le=\"+Inf\"}"));
+        assertTrue(scrape.contains("geometry_operator_stage_seconds_bucket{operator=\"Buffer\",stage=\"operate\",le=\"0.0001\"}"));
+        assertTrue(!scrape.matches("(?s).*le=\"[^\"]*E[^\"]*\".*"));
+        metricsEndpoint.stop();
+    }
+
+    @Test
+    public void testOperatorMetricsOnWorkers() throws Exception {
+        List<Geometry> points = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            points.add(new Point(i, i));
+        }
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder().setOperatorType(ServiceOperatorType.Buffer).build();
+        LongAdder decoded = OperatorMetrics.counter("geometry_operator_geometries_total", "operator=\"Buffer\",direction=\"in\"");
+        long decodedCount = decoded.sum();
+        OperatorMetrics.Histogram decode = OperatorMetrics.stageHistogram(ServiceOperatorType.Buffer, OperatorMetrics.Stage.decode);
+        long decodeCount = decode == null ? 0 : decode.count();
+
+        // the recorder's thread pulls the first geometry, the workers the rest
+        OperatorMetrics.Recorder recorder = OperatorMetrics.Recorder.begin(operatorRequest);
+        GeometryCursor timed = recorder.time(new SimpleGeometryCursor(points), operatorRequest, OperatorMetrics.Stage.decode);
+        int pulled = timed.next() == null ? 0 : 1;
+        ForkJoinPool workerPool = new ForkJoinPool(4);
+        try {
+            List<ForkJoinTask<Integer>> workers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                workers.add(workerPool.submit(() -> {
+                    int count = 0;
+                    while (true) {
+                        // the cursor itself isn't thread safe, only the recording is
+                        synchronized (timed) {
+                            if (timed.next() == null) {
+                                return count;
+                            }
+                        }
+                        count++;
+                    }
+                }));
+            }
+            for (ForkJoinTask<Integer> worker : workers) {
+                pulled += worker.get();
+            }
+        } finally {
+            recorder.finish();
+            workerPool.shutdown();
+        }
+
+        assertEquals(1000, pulled);
+        assertEquals(decodedCount + 1000, decoded.sum());
+        assertEquals(decodeCount + 1, OperatorMetrics.stageHistogram(ServiceOperatorType.Buffer, OperatorMetrics.Stage.decode).count());
+        assertNull(OperatorMetrics.Recorder.current());
+    }
+
+    @Test
+    public void testRequestTrace() throws Exception {
+        Polyline polyline = new Polyline();
+        polyline.startPath(0, 0);
+        polyline.lineTo(2, 3);
+        polyline.lineTo(3, 3);
+
+        OperatorRequest serviceOpLeft = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt(GeometryEngine.geometryToWkt(polyline, 0)))
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(1))
+                .build();
+        OperatorRequest nestedLeft = OperatorRequest.newBuilder()
+                .setLeftGeometryRequest(serviceOpLeft)
+                .setOperatorType(ServiceOperatorType.ConvexHull)
+                .build();
+
+        Metadata headers = new Metadata();
+        headers.put(RequestTrace.ENABLE_KEY, "true");
+        AtomicReference<Metadata> trailers = new AtomicReference<>();
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = MetadataUtils.captureMetadata(
+                MetadataUtils.attachHeaders(GeometryOperatorsGrpc.newBlockingStub(inProcessChannel), headers),
+                new AtomicReference<>(),
+                trailers);
+        stub.executeOperation(nestedLeft);
+
+        JSONArray trace = new JSONArray(trailers.get().get(RequestTrace.TRAILER_KEY));
+        assertEquals(2, trace.length());
+        Map<String, JSONObject> nodes = new HashMap<>();
+        for (int i = 0; i < trace.length(); i++) {
+            nodes.put(trace.getJSONObject(i).getString("path"), trace.getJSONObject(i));
+        }
+        assertEquals("ConvexHull", nodes.get("root").getString("operator"));
+        assertEquals(1, nodes.get("root").getLong("geometries_out"));
+        JSONObject buffer = nodes.get("root.left_geometry_request");
+        assertEquals("Buffer", buffer.getString("operator"));
+        assertEquals(1, buffer.getLong("geometries_in"));
+        assertEquals(3, buffer.getLong("vertices_in"));
+        assertEquals(1, buffer.getLong("geometries_out"));
+        assertTrue(buffer.getLong("vertices_out") > 3);
+
+        // without the header there is no trace
+        trailers.set(null);
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub plainStub = MetadataUtils.captureMetadata(
+                GeometryOperatorsGrpc.newBlockingStub(inProcessChannel), new AtomicReference<>(), trailers);
+        plainStub.executeOperation(nestedLeft);
+        assertNull(trailers.get().get(RequestTrace.TRAILER_KEY));
+    }
+
+    @Test
+    public void testPreparedGeometryCache() {
+        GeometryBagData fence = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .addWkt("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))")
+                .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326))
+                .build();
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+
+        long hits = PreparedGeometryCache.stats().hitCount();
+        String[] points = {"POINT (5 5)", "POINT (15 5)", "POINT (1 9)"};
+        boolean[] expected = {true, false, true};
+        for (int i = 0; i < points.length; i++) {
+            OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                    .setLeftGeometryBag(fence)
+                    .setRightGeometryBag(GeometryBagData.newBuilder()
+                            .setGeometryEncodingType(GeometryEncodingType.wkt)
+                            .addWkt(points[i])
+                            .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326)))
+                    .setOperatorType(ServiceOperatorType.Contains)
+                    .build();
+            OperatorResult operatorResult = stub.executeOperation(operatorRequest);
+            assertEquals(expected[i], operatorResult.getRelateMapMap().get(0));
+        }
+
+        // the fence was prepared by the first request and reused by the others
+        assertEquals(hits + 2, PreparedGeometryCache.stats().hitCount());
+    }
+
+    @Test
+    public void testGeometryRegistry() {
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        GeometryBagHandle geometryBagHandle = stub.registerGeometryBag(GeometryBagRegistration.newBuilder()
+                .setGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))")
+                        .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326)))
+                .setTtlSeconds(60)
+                .build());
+        assertEquals(1, geometryBagHandle.getGeometryCount());
+        assertEquals(60, geometryBagHandle.getTtlSeconds());
+        assertTrue(geometryBagHandle.getMemoryBytes() > 0);
+
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setLeftGeometryHandle(geometryBagHandle.getHandle())
+                .setRightGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POINT (5 5)")
+                        .addWkt("POINT (15 5)")
+                        .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326)))
+                .setOperatorType(ServiceOperatorType.Contains)
+                .build();
+        OperatorResult operatorResult = stub.executeOperation(operatorRequest);
+        assertEquals(true, operatorResult.getRelateMapMap().get(0));
+        assertEquals(false, operatorResult.getRelateMapMap().get(1));
+
+        stub.releaseGeometryBag(geometryBagHandle);
+        boolean released = false;
+        try {
+            stub.executeOperation(operatorRequest);
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.NOT_FOUND, e.getStatus().getCode());
+            released = true;
+        }
+        assertTrue(released);
+    }
+
+    @Test
+    public void testGeometryRegistrySweep() throws Exception {
+        GeometryRegistry registry = new GeometryRegistry(1024 * 1024);
+        registry.register(GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .addWkt("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))")
+                .build(), 1);
+        assertEquals(1, registry.size());
+        assertTrue(registry.usedBytes() > 0);
+
+        // expired bags give back their quota without another registration
+        Thread.sleep(1100);
+        registry.sweep();
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.usedBytes());
+    }
+
+    @Test
+    public void testPackedRTree() {
+        Random random = new Random(1);
+        Envelope2D[] envelopes = new Envelope2D[1000];
+        for (int i = 0; i < envelopes.length; i++) {
+            double x = random.nextDouble() * 100;
+            double y = random.nextDouble() * 100;
+            envelopes[i] = new Envelope2D(x, y, x + 1, y + 1);
+        }
+        PackedRTree packedRTree = new PackedRTree(envelopes);
+
+        Envelope2D query = new Envelope2D(20, 20, 40, 30);
+        Set<Integer> found = new HashSet<>();
+        packedRTree.search(query, found::add);
+        for (int i = 0; i < envelopes.length; i++) {
+            assertEquals(envelopes[i].isIntersecting(query), found.contains(i));
+        }
+    }
+
+    @Test
+    public void testSpatialJoin() {
+        GeometryBagData polygons = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .addWkt("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))")
+                .addWkt("POLYGON ((5 5, 15 5, 15 15, 5 15, 5 5))")
+                .addWkt("POLYGON ((100 100, 110 100, 110 110, 100 110, 100 100))")
+                .addAllGeometryIds(Arrays.asList(10L, 11L, 12L))
+                .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326))
+                .build();
+        GeometryBagData points = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .addWkt("POINT (1 1)")
+                .addWkt("POINT (7 7)")
+                .addWkt("POINT (50 50)")
+                .addWkt("POINT (105 105)")
+                .addAllGeometryIds(Arrays.asList(1L, 2L, 3L, 4L))
+                .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326))
+                .build();
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(polygons)
+                .setRightGeometryBag(points)
+                .setOperatorType(ServiceOperatorType.Contains)
+                .setSpatialJoinParams(SpatialJoinParams.newBuilder().setBatchSize(2).setReturnIntersection(true))
+                .setResultsEncodingType(GeometryEncodingType.wkt)
+                .build();
+
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        List<String> pairs = new ArrayList<>();
+        List<String> intersections = new ArrayList<>();
+        Iterator<SpatialJoinResult> results = stub.spatialJoin(operatorRequest);
+        while (results.hasNext()) {
+            SpatialJoinResult spatialJoinResult = results.next();
+            assertEquals(spatialJoinResult.getLeftIdsCount(), spatialJoinResult.getIntersections().getWktCount());
+            for (int i = 0; i < spatialJoinResult.getLeftIdsCount(); i++) {
+                pairs.add(spatialJoinResult.getLeftIds(i) + "-" + spatialJoinResult.getRightIds(i));
+            }
+            intersections.addAll(spatialJoinResult.getIntersections().getWktList());
+        }
+        assertEquals(Arrays.asList("10-1", "10-2", "11-2", "12-4"), pairs);
+        assertEquals("POINT (7 7)", intersections.get(2));
+
+        boolean rejected = false;
+        try {
+            stub.spatialJoin(operatorRequest.toBuilder().setOperatorType(ServiceOperatorType.Disjoint).build()).hasNext();
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    @Test
+    public void testProximity() {
+        Random random = new Random(2);
+        GeometryBagData.Builder candidates = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326));
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            String wkt = GeometryEngine.geometryToWkt(new Point(random.nextDouble() * 20 - 10, random.nextDouble() * 20 - 10), 0);
+            // what the server decodes
+            points.add((Point) GeometryEngine.geometryFromWkt(wkt, 0, Geometry.Type.Unknown));
+            candidates.addWkt(wkt).addGeometryIds(1000 + i);
+        }
+
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POINT (1 2)")
+                        .addWkt("POINT (-5 7)")
+                        .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326)))
+                .setRightGeometryBag(candidates)
+                .setOperatorType(ServiceOperatorType.Proximity2D)
+                .setProximityParams(ProximityParams.newBuilder().setK(5))
+                .build();
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        OperatorResult operatorResult = stub.executeOperation(operatorRequest);
+        assertEquals(2, operatorResult.getProximityResultsCount());
+
+        Point[] queries = {new Point(1, 2), new Point(-5, 7)};
+        for (int q = 0; q < queries.length; q++) {
+            Point query = queries[q];
+            List<Integer> bruteForce = new ArrayList<>();
+            for (int i = 0; i < points.size(); i++) {
+                bruteForce.add(i);
+            }
+            bruteForce.sort(Comparator.comparingDouble(i -> GeometryEngine.distance(query, points.get(i), null)));
+
+            ProximityResult proximityResult = operatorResult.getProximityResults(q);
+            assertEquals(q, proximityResult.getQueryId());
+            assertEquals(5, proximityResult.getIdsCount());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(1000 + bruteForce.get(i), proximityResult.getIds(i));
+                assertEquals(GeometryEngine.distance(query, points.get(bruteForce.get(i)), null), proximityResult.getDistances(i), 1e-9);
+            }
+        }
+
+        // a degree of latitude at the equator
+        OperatorResult geodesicResult = stub.executeOperation(operatorRequest.toBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POINT (0 0)")
+                        .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326)))
+                .setRightGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POINT (3 0)")
+                        .addWkt("POINT (0 1)")
+                        .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326)))
+                .setProximityParams(ProximityParams.newBuilder().setK(1).setGeodesic(true))
+                .build());
+        assertEquals(1, geodesicResult.getProximityResults(0).getIds(0));
+        assertEquals(110574, geodesicResult.getProximityResults(0).getDistances(0), 1);
+    }
+
+    @Test
+    public void testMeasures() {
+        // enough geometries to be measured on the worker pool
+        GeometryBagData.Builder squares = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326));
+        int count = GeometryMeasures.PARALLEL_THRESHOLD + 100;
+        for (int i = 0; i < count; i++) {
+            int size = i % 10 + 1;
+            squares.addWkt(String.format("POLYGON ((0 0, %d 0, %d %d, 0 %d, 0 0))", size, size, size, size)).addGeometryIds(5000 + i);
+        }
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+
+        OperatorResult areas = stub.executeOperation(OperatorRequest.newBuilder()
+                .setGeometryBag(squares)
+                .setOperatorType(ServiceOperatorType.Area)
+                .build());
+        OperatorResult lengths = stub.executeOperation(OperatorRequest.newBuilder()
+                .setGeometryBag(squares)
+                .setOperatorType(ServiceOperatorType.Length)
+                .build());
+        assertEquals(count, areas.getMeasuresCount());
+        assertEquals(count, areas.getGeometryBag().getGeometryIdsCount());
+        for (int i = 0; i < count; i++) {
+            int size = i % 10 + 1;
+            assertEquals(5000 + i, areas.getGeometryBag().getGeometryIds(i));
+            assertEquals(size * size, areas.getMeasures(i), 1e-9);
+            assertEquals(size * 4, lengths.getMeasures(i), 1e-9);
+        }
+
+        GeometryBagData oneDegree = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .addWkt("POLYGON ((0 0, 1 0, 1 1, 0 1, 0 0))")
+                .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326))
+                .build();
+        OperatorResult geodeticArea = stub.executeOperation(OperatorRequest.newBuilder()
+                .setGeometryBag(oneDegree)
+                .setOperatorType(ServiceOperatorType.GeodeticArea)
+                .build());
+        assertEquals(12308e6, geodeticArea.getMeasures(0), 1e6);
+        OperatorResult geodeticLength = stub.executeOperation(OperatorRequest.newBuilder()
+                .setGeometryBag(oneDegree)
+                .setOperatorType(ServiceOperatorType.GeodeticLength)
+                .build());
+        assertEquals(443771, geodeticLength.getMeasures(0), 1);
+
+        OperatorResult distances = stub.executeOperation(OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POINT (3 4)")
+                        .addWkt("POINT (0 2)"))
+                .setRightGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POINT (0 0)"))
+                .setOperatorType(ServiceOperatorType.Distance)
+                .build());
+        assertEquals(2, distances.getMeasuresCount());
+        assertEquals(5, distances.getMeasures(0), 1e-9);
+        assertEquals(2, distances.getMeasures(1), 1e-9);
+        assertEquals(5, distances.getDistance(), 1e-9);
+    }
+
+    @Test
+    public void testRelateBits() throws Exception {
+        GeometryBagData.Builder points = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkt)
+                .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326));
+        for (int i = 0; i < 100; i++) {
+            points.addWkt("POINT (" + (i - 20) * 0.5 + " 5)");
+        }
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))")
+                        .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(4326)))
+                .setRightGeometryBag(points)
+                .setOperatorType(ServiceOperatorType.Contains)
+                .build();
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        Map<Integer, Boolean> relateMap = stub.executeOperation(operatorRequest).getRelateMapMap();
+
+        for (RelateResultEncoding encoding : new RelateResultEncoding[]{RelateResultEncoding.bitset, RelateResultEncoding.run_length}) {
+            OperatorResult operatorResult = stub.executeOperation(operatorRequest.toBuilder()
+                    .setRelateParams(RelateParams.newBuilder().setResultEncoding(encoding))
+                    .build());
+            assertEquals(0, operatorResult.getRelateMapCount());
+            assertEquals(100, operatorResult.getRelateCount());
+            BitSet bits = RelateBits.decode(operatorResult, encoding);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(relateMap.get(i), bits.get(i));
+            }
+        }
+
+        // runs that start with a match and end on one
+        BitSet bits = new BitSet();
+        bits.set(0, 3);
+        bits.set(10, 12);
+        OperatorResult operatorResult = OperatorResult.newBuilder()
+                .setRelateBits(RelateBits.encode(bits, 12, RelateResultEncoding.run_length))
+                .build();
+        assertEquals(bits, RelateBits.decode(operatorResult, RelateResultEncoding.run_length));
+        assertEquals(4, operatorResult.getRelateBits().size());
+    }
+
+    @Test
+    public void testParallelUnion() throws Exception {
+        // a shuffled grid of overlapping squares, more than one leaf of the union tree
+        List<String> squares = new ArrayList<>();
+        for (int x = 0; x < 30; x++) {
+            for (int y = 0; y < 30; y++) {
+                squares.add("POLYGON ((" + x + " " + y + ", " + (x + 1.5) + " " + y + ", " + (x + 1.5) + " " + (y + 1.5) + ", " + x + " " + (y + 1.5) + ", " + x + " " + y + "))");
+            }
+        }
+        Collections.shuffle(squares, new Random(17));
+        assertTrue(squares.size() > ParallelUnion.LEAF_SIZE * 2);
+
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addAllWkt(squares))
+                .setOperatorType(ServiceOperatorType.Union)
+                .build();
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        OperatorResult operatorResult = stub.executeOperation(operatorRequest);
+
+        assertEquals(1, operatorResult.getGeometryBag().getWktCount());
+        Geometry union = OperatorImportFromWkt.local().execute(0, Geometry.Type.Unknown, operatorResult.getGeometryBag().getWkt(0), null);
+        assertEquals(30.5 * 30.5, union.calculateArea2D(), 1e-9);
+        assertEquals(1, ((Polygon) union).getPathCount());
+    }
+
+    @Test
+    public void testAggregateOperations() throws InterruptedException {
+        GeometryOperatorsGrpc.GeometryOperatorsStub stub = GeometryOperatorsGrpc.newStub(inProcessChannel);
+
+        // a 10 by 10 block of overlapping squares sent a row at a time
+        List<OperatorRequest> unionRequests = new ArrayList<>();
+        List<OperatorRequest> hullRequests = new ArrayList<>();
+        for (int y = 0; y < 10; y++) {
+            GeometryBagData.Builder squares = GeometryBagData.newBuilder().setGeometryEncodingType(GeometryEncodingType.wkt);
+            GeometryBagData.Builder points = GeometryBagData.newBuilder().setGeometryEncodingType(GeometryEncodingType.wkt);
+            for (int x = 0; x < 10; x++) {
+                squares.addWkt("POLYGON ((" + x + " " + y + ", " + (x + 1.5) + " " + y + ", " + (x + 1.5) + " " + (y + 1.5) + ", " + x + " " + (y + 1.5) + ", " + x + " " + y + "))");
+                points.addWkt("POINT (" + x + " " + y + ")");
+            }
+            unionRequests.add(OperatorRequest.newBuilder()
+                    .setLeftGeometryBag(squares)
+                    .setOperatorType(ServiceOperatorType.Union)
+                    .setResultsEncodingType(GeometryEncodingType.wkt)
+                    .build());
+            hullRequests.add(OperatorRequest.newBuilder()
+                    .setLeftGeometryBag(points)
+                    .setOperatorType(ServiceOperatorType.ConvexHull)
+                    .setResultsEncodingType(GeometryEncodingType.wkt)
+                    .build());
+        }
+
+        OperatorResult union = __aggregate(stub, unionRequests).get();
+        assertEquals(1, union.getGeometryBag().getWktCount());
+        Geometry unionGeometry = OperatorImportFromWkt.local().execute(0, Geometry.Type.Unknown, union.getGeometryBag().getWkt(0), null);
+        assertEquals(10.5 * 10.5, unionGeometry.calculateArea2D(), 1e-9);
+
+        OperatorResult hull = __aggregate(stub, hullRequests).get();
+        assertEquals(1, hull.getGeometryBag().getWktCount());
+        Geometry hullGeometry = OperatorImportFromWkt.local().execute(0, Geometry.Type.Unknown, hull.getGeometryBag().getWkt(0), null);
+        assertEquals(81, hullGeometry.calculateArea2D(), 1e-9);
+
+        // every request of an aggregate has the same operator
+        List<OperatorRequest> mixed = new ArrayList<>(unionRequests.subList(0, 2));
+        mixed.add(hullRequests.get(2));
+        AtomicReference<OperatorResult> rejected = __aggregate(stub, mixed);
+        assertNull(rejected.get());
+    }
+
+    // the aggregate of requests, or null if the call failed with INVALID_ARGUMENT
+    private AtomicReference<OperatorResult> __aggregate(GeometryOperatorsGrpc.GeometryOperatorsStub stub,
+                                                        List<OperatorRequest> requests) throws InterruptedException {
+        CollectingObserver observer = new CollectingObserver();
+        StreamObserver<OperatorRequest> requestObserver = stub.aggregateOperations(observer);
+        for (OperatorRequest request : requests) {
+            requestObserver.onNext(request);
+        }
+        requestObserver.onCompleted();
+
+        Throwable error = observer.await();
+        if (error != null) {
+            assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, io.grpc.Status.fromThrowable(error).getCode());
+            return new AtomicReference<>();
+        }
+        assertEquals(1, observer.results.size());
+        return new AtomicReference<>(observer.results.get(0));
+    }
+
+    /**
+     * Collects the results of a streaming call.
+     */
+    private static class CollectingObserver implements StreamObserver<OperatorResult> {
+        final List<OperatorResult> results = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onNext(OperatorResult value) {
+            results.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error.set(t);
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+
+        // waits for the call to finish, the error it failed with or null
+        Throwable await() throws InterruptedException {
+            assertTrue(done.await(60, TimeUnit.SECONDS));
+            return error.get();
+        }
+
+        List<OperatorResult> awaitCompleted() throws InterruptedException {
+            Throwable t = await();
+            if (t != null) {
+                throw new AssertionError(t);
+            }
+            return results;
+        }
+    }
+
+    @Test
+    public void testParallelMap() throws Exception {
+        int count = ParallelMap.CHUNK_SIZE * 3 + 7;
+        GeometryBagData.Builder points = GeometryBagData.newBuilder().setGeometryEncodingType(GeometryEncodingType.wkt);
+        for (int i = 0; i < count; i++) {
+            points.addWkt("POINT (" + i + " " + (i % 13) + ")").addGeometryIds(i * 10);
+        }
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setGeometryBag(points)
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(0.25))
+                .setResultsEncodingType(GeometryEncodingType.wkt)
+                .build();
+
+        ForkJoinPool workerPool = new ForkJoinPool(4);
+        ForkJoinPool singleThread = new ForkJoinPool(1);
+        try {
+            assertTrue(ParallelMap.splits(operatorRequest, workerPool));
+            assertTrue(!ParallelMap.splits(operatorRequest, singleThread));
+            // a unioned buffer isn't per geometry
+            assertTrue(!ParallelMap.splits(operatorRequest.toBuilder()
+                    .setBufferParams(BufferParams.newBuilder().addDistances(0.25).setUnionResult(true))
+                    .build(), workerPool));
+
+            OperatorResult operatorResult = ParallelMap.execute(operatorRequest, workerPool);
+            GeometryBagData results = operatorResult.getGeometryBag();
+            assertEquals(count, results.getWktCount());
+            assertEquals(count, results.getGeometryIdsCount());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i * 10, results.getGeometryIds(i));
+                Envelope envelope = new Envelope();
+                OperatorImportFromWkt.local().execute(0, Geometry.Type.Unknown, results.getWkt(i), null).queryEnvelope(envelope);
+                assertEquals(i, envelope.getCenterX(), 1e-6);
+                assertEquals(i % 13, envelope.getCenterY(), 1e-6);
+            }
+        } finally {
+            workerPool.shutdown();
+            singleThread.shutdown();
+        }
+    }
+
+    @Test
+    public void testVectorTiles() throws Exception {
+        // a square around the web mercator origin, in the four middle tiles of zoom 2
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt("POLYGON ((-1000000 -1000000, 1000000 -1000000, 1000000 1000000, -1000000 1000000, -1000000 -1000000))")
+                        .addGeometryIds(42)
+                        .setSpatialReference(SpatialReferenceData.newBuilder().setWkid(3857)))
+                .setTileParams(TileParams.newBuilder()
+                        .setLayerName("squares")
+                        .addTileRanges(TileRange.newBuilder().setZoom(1).setMaxX(1).setMaxY(1))
+                        .addTileRanges(TileRange.newBuilder().setZoom(2).setMaxX(3).setMaxY(3)))
+                .build();
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        List<VectorTile> tiles = new ArrayList<>();
+        stub.vectorTiles(operatorRequest).forEachRemaining(tiles::add);
+
+        // the empty tiles of zoom 2 are skipped
+        assertEquals(8, tiles.size());
+        Set<String> tileNames = new HashSet<>();
+        for (VectorTile tile : tiles) {
+            assertEquals(1, tile.getFeatureCount());
+            tileNames.add(tile.getZoom() + "/" + tile.getX() + "/" + tile.getY());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("1/0/0", "1/0/1", "1/1/0", "1/1/1", "2/1/1", "2/1/2", "2/2/1", "2/2/2")), tileNames);
+
+        // the north west quarter of the square at zoom 1, a ring of 4 points in the corner of the tile
+        com.google.protobuf.UnknownFieldSet layer = com.google.protobuf.UnknownFieldSet.parseFrom(
+                com.google.protobuf.UnknownFieldSet.parseFrom(tiles.get(0).getMvt()).getField(3).getLengthDelimitedList().get(0));
+        assertEquals("squares", layer.getField(1).getLengthDelimitedList().get(0).toStringUtf8());
+        assertEquals(Collections.singletonList(4096L), layer.getField(5).getVarintList());
+        com.google.protobuf.UnknownFieldSet feature = com.google.protobuf.UnknownFieldSet.parseFrom(layer.getField(2).getLengthDelimitedList().get(0));
+        assertEquals(Collections.singletonList(42L), feature.getField(1).getVarintList());
+        assertEquals(Collections.singletonList(3L), feature.getField(3).getVarintList());
+        com.google.protobuf.CodedInputStream geometry = feature.getField(4).getLengthDelimitedList().get(0).newCodedInput();
+        List<Integer> commands = new ArrayList<>();
+        while (!geometry.isAtEnd()) {
+            commands.add(geometry.readRawVarint32());
+        }
+        // MoveTo 1, LineTo 3, ClosePath, the ring starting from the square's corner at 3892, 3892
+        assertEquals(11, commands.size());
+        assertEquals(9, (int) commands.get(0));
+        assertEquals(26, (int) commands.get(3));
+        assertEquals(15, (int) commands.get(10));
+
+        boolean rejected = false;
+        try {
+            stub.vectorTiles(operatorRequest.toBuilder()
+                    .setTileParams(TileParams.newBuilder().addTileRanges(TileRange.newBuilder().setZoom(VectorTiles.MAX_ZOOM + 1)))
+                    .build()).hasNext();
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    @Test
+    public void testTwkb() {
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        String wkt = "MULTIPOLYGON (((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 4, 4 4, 4 2, 2 2)), ((20 20, 21.25 20, 21.25 21.25, 20 21.25, 20 20)))";
+        OperatorRequest toTwkb = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.wkt)
+                        .addWkt(wkt))
+                .setOperatorType(ServiceOperatorType.ConvexHull)
+                .setResultsEncodingType(GeometryEncodingType.twkb)
+                .setTwkbParams(TwkbParams.newBuilder().setPrecision(2).setIncludeBbox(true))
+                .build();
+        GeometryBagData twkbBag = stub.executeOperation(toTwkb).getGeometryBag();
+        assertEquals(1, twkbBag.getTwkbCount());
+        // polygon, precision 2 zig-zagged to 4 in the high nibble, then the bbox flag
+        assertEquals(0x43, twkbBag.getTwkb(0).byteAt(0));
+        assertEquals(0x01, twkbBag.getTwkb(0).byteAt(1));
+
+        // twkb back in, a multipolygon with a hole through the round trip
+        Geometry polygons = OperatorImportFromWkt.local().execute(0, Geometry.Type.Unknown, wkt, null);
+        OperatorRequest fromTwkb = OperatorRequest.newBuilder()
+                .setGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.twkb)
+                        .addTwkb(Twkb.encode(polygons, Twkb.DEFAULT_PRECISION, false)))
+                .setOperatorType(ServiceOperatorType.ExportToWkt)
+                .setResultsEncodingType(GeometryEncodingType.wkt)
+                .build();
+        GeometryBagData wktBag = stub.executeOperation(fromTwkb).getGeometryBag();
+        Geometry roundTrip = OperatorImportFromWkt.local().execute(0, Geometry.Type.Unknown, wktBag.getWkt(0), null);
+        assertTrue(OperatorEquals.local().execute(polygons, roundTrip, null, null));
+        assertEquals(100 - 4 + 1.5625, roundTrip.calculateArea2D(), 1e-9);
+
+        // the hull, rounded to hundredths, decodes as the hull of the input
+        Geometry hull = Twkb.decode(twkbBag.getTwkb(0));
+        assertEquals(6, ((Polygon) hull).getPointCount());
+        Envelope envelope = new Envelope();
+        hull.queryEnvelope(envelope);
+        assertEquals(21.25, envelope.getXMax(), 0);
+    }
+
+    @Test
+    public void testGeometryColumns() {
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        GeometryColumns.Builder points = GeometryColumns.newBuilder().setGeometryType(ColumnGeometryType.column_point);
+        for (int i = 0; i < 5; i++) {
+            points.addX(i * 10).addY(-i);
+        }
+        OperatorRequest bufferRequest = OperatorRequest.newBuilder()
+                .setGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.columns)
+                        .setColumns(points)
+                        .addAllGeometryIds(Arrays.asList(7L, 8L, 9L, 10L, 11L)))
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(1))
+                .setResultsEncodingType(GeometryEncodingType.columns)
+                .build();
+        GeometryBagData buffers = stub.executeOperation(bufferRequest).getGeometryBag();
+        GeometryColumns polygons = buffers.getColumns();
+        assertEquals(ColumnGeometryType.column_polygon, polygons.getGeometryType());
+        // a ring each, and the offsets end where the arrays do
+        assertEquals(6, polygons.getGeometryOffsetsCount());
+        assertEquals(6, polygons.getPartOffsetsCount());
+        assertEquals(polygons.getXCount(), polygons.getPartOffsets(5));
+        assertEquals(11L, buffers.getGeometryIds(4));
+
+        // the buffers back in as columns
+        OperatorRequest wktRequest = OperatorRequest.newBuilder()
+                .setGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.columns)
+                        .setColumns(polygons))
+                .setOperatorType(ServiceOperatorType.ExportToWkt)
+                .build();
+        GeometryBagData wktBag = stub.executeOperation(wktRequest).getGeometryBag();
+        assertEquals(5, wktBag.getWktCount());
+        for (int i = 0; i < 5; i++) {
+            Geometry buffer = OperatorImportFromWkt.local().execute(0, Geometry.Type.Unknown, wktBag.getWkt(i), null);
+            assertEquals(Math.PI, buffer.calculateArea2D(), 0.01);
+            Envelope envelope = new Envelope();
+            buffer.queryEnvelope(envelope);
+            assertEquals(i * 10, envelope.getCenterX(), 1e-6);
+        }
+
+        // offsets that run past the coordinates
+        boolean rejected = false;
+        try {
+            stub.executeOperation(wktRequest.toBuilder()
+                    .setGeometryBag(GeometryBagData.newBuilder()
+                            .setGeometryEncodingType(GeometryEncodingType.columns)
+                            .setColumns(polygons.toBuilder().setPartOffsets(5, polygons.getXCount() + 1)))
+                    .build());
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    @Test
+    public void testGeometryColumnsOfLargeBag() {
+        // polygon results of more than a chunk of points, each chunk's offsets start at 0 and are rebased on merging
+        int count = ParallelMap.CHUNK_SIZE * 2 + 3;
+        GeometryColumns.Builder points = GeometryColumns.newBuilder().setGeometryType(ColumnGeometryType.column_point);
+        for (int i = 0; i < count; i++) {
+            points.addX(i * 10).addY(-i);
+        }
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.columns)
+                        .setColumns(points))
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(1))
+                .setResultsEncodingType(GeometryEncodingType.columns)
+                .build();
+        ForkJoinPool workerPool = new ForkJoinPool(4);
+        GeometryColumns polygons;
+        try {
+            assertTrue(ParallelMap.splits(operatorRequest, workerPool));
+            polygons = ParallelMap.execute(operatorRequest, workerPool).getGeometryBag().getColumns();
+        } finally {
+            workerPool.shutdown();
+        }
+
+        assertEquals(ColumnGeometryType.column_polygon, polygons.getGeometryType());
+        GeometryColumnsCodec.validate(polygons);
+        assertEquals(count, GeometryColumnsCodec.geometryCount(polygons));
+        GeometryCursor buffers = GeometryColumnsCodec.importCursor(polygons);
+        int i = 0;
+        for (Geometry buffer = buffers.next(); buffer != null; buffer = buffers.next(), i++) {
+            assertEquals(Math.PI, buffer.calculateArea2D(), 0.01);
+            Envelope envelope = new Envelope();
+            buffer.queryEnvelope(envelope);
+            assertEquals(i * 10, envelope.getCenterX(), 1e-6);
+            assertEquals(-i, envelope.getCenterY(), 1e-6);
+        }
+        assertEquals(count, i);
+    }
+
+    @Test
+    public void testArrow() {
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        List<Geometry> points = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            points.add(new Point(i * 10, i));
+            ids.add(100L + i);
+        }
+        ByteString arrow = ArrowIpc.encode(new SimpleGeometryCursor(points), ids, null);
+        assertEquals(4, ArrowIpc.geometryCount(arrow));
+        assertEquals(ids, ArrowIpc.geometryIds(arrow));
+
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.arrow)
+                        .setArrow(arrow))
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(2))
+                .setResultsEncodingType(GeometryEncodingType.arrow)
+                .build();
+        GeometryBagData results = stub.executeOperation(operatorRequest).getGeometryBag();
+        // the ids come from the stream's geometry_id column, and go back into the result's
+        assertEquals(ids, results.getGeometryIdsList());
+        assertEquals(ids, ArrowIpc.geometryIds(results.getArrow()));
+
+        GeometryCursor buffers = ArrowIpc.importCursor(results.getArrow());
+        int count = 0;
+        for (Geometry buffer = buffers.next(); buffer != null; buffer = buffers.next(), count++) {
+            assertEquals(Geometry.Type.Polygon, buffer.getType());
+            assertEquals(4 * Math.PI, buffer.calculateArea2D(), 0.05);
+            Envelope envelope = new Envelope();
+            buffer.queryEnvelope(envelope);
+            assertEquals(count * 10, envelope.getCenterX(), 1e-6);
+        }
+        assertEquals(4, count);
+
+        boolean rejected = false;
+        try {
+            stub.executeOperation(operatorRequest.toBuilder()
+                    .setGeometryBag(GeometryBagData.newBuilder()
+                            .setGeometryEncodingType(GeometryEncodingType.arrow)
+                            .setArrow(arrow.substring(0, 100)))
+                    .build());
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    @Test
+    public void testArrowResultsOfLargeBag() {
+        // more than a chunk of input, the arrow result is a single stream and mustn't be split
+        int count = ParallelMap.CHUNK_SIZE + 1;
+        GeometryBagData.Builder points = GeometryBagData.newBuilder().setGeometryEncodingType(GeometryEncodingType.wkt);
+        for (int i = 0; i < count; i++) {
+            points.addWkt("POINT (" + i + " " + (i % 7) + ")").addGeometryIds(i);
+        }
+        OperatorRequest operatorRequest = OperatorRequest.newBuilder()
+                .setGeometryBag(points)
+                .setOperatorType(ServiceOperatorType.Buffer)
+                .setBufferParams(BufferParams.newBuilder().addDistances(0.25))
+                .setResultsEncodingType(GeometryEncodingType.arrow)
+                .build();
+        ForkJoinPool workerPool = new ForkJoinPool(4);
+        try {
+            assertTrue(!ParallelMap.splits(operatorRequest, workerPool));
+        } finally {
+            workerPool.shutdown();
+        }
+
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        GeometryBagData results = stub.executeOperation(operatorRequest).getGeometryBag();
+        assertEquals(count, ArrowIpc.geometryCount(results.getArrow()));
+        assertEquals(points.getGeometryIdsList(), ArrowIpc.geometryIds(results.getArrow()));
+        GeometryCursor buffers = ArrowIpc.importCursor(results.getArrow());
+        int i = 0;
+        for (Geometry buffer = buffers.next(); buffer != null; buffer = buffers.next(), i++) {
+            Envelope envelope = new Envelope();
+            buffer.queryEnvelope(envelope);
+            assertEquals(i, envelope.getCenterX(), 1e-6);
+        }
+        assertEquals(count, i);
+    }
+
+    @Test
+    public void testTextDecimalDigits() {
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        Polyline polyline = new Polyline();
+        polyline.startPath(-122.419416, 37.774929);
+        polyline.lineTo(-122.4, 37.8);
+        polyline.lineTo(0.1 + 0.2, 1e-9);
+        GeometryBagData geometryBag = GeometryBagData.newBuilder()
+                .setGeometryEncodingType(GeometryEncodingType.wkb)
+                .addWkb(ByteString.copyFrom(OperatorExportToWkb.local().execute(0, polyline, null)))
+                .build();
+
+        OperatorRequest rounded = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(geometryBag)
+                .setOperatorType(ServiceOperatorType.ExportToWkt)
+                .setTextParams(TextParams.newBuilder().setDecimalDigits(2))
+                .build();
+        assertEquals("MULTILINESTRING ((-122.42 37.77, -122.4 37.8, 0.3 0))",
+                stub.executeOperation(rounded).getGeometryBag().getWkt(0));
+
+        // without text_params every coordinate reads back as it was
+        OperatorRequest shortest = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(geometryBag)
+                .setOperatorType(ServiceOperatorType.ExportToGeoJson)
+                .build();
+        GeometryBagData geoJsonBag = stub.executeOperation(shortest).getGeometryBag();
+        assertEquals("{\"type\":\"LineString\",\"coordinates\":[[-122.419416,37.774929],[-122.4,37.8],[0.30000000000000004,0.000000001]]}",
+                geoJsonBag.getGeojson(0));
+        assertEquals(0, geoJsonBag.getEsriJsonCount());
+        Geometry roundTrip = OperatorImportFromGeoJson.local().execute(0, Geometry.Type.Unknown, geoJsonBag.getGeojson(0), null).getGeometry();
+        assertTrue(OperatorEquals.local().execute(polyline, roundTrip, null, null));
+
+        boolean rejected = false;
+        try {
+            stub.executeOperation(rounded.toBuilder().setTextParams(TextParams.newBuilder().setDecimalDigits(18)).build());
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    @Test
+    public void testTextInteriorFirstRing() {
+        // counterclockwise, so esri reads the only ring as interior
+        Polygon polygon = new Polygon();
+        polygon.startPath(0, 0);
+        polygon.lineTo(10, 0);
+        polygon.lineTo(10, 10);
+        polygon.lineTo(0, 10);
+        assertTrue(!polygon.isExteriorRing(0));
+
+        List<String> text = new ArrayList<>();
+        GeometryTextWriter.writeWkt(new SimpleGeometryCursor(polygon), GeometryTextWriter.SHORTEST, wkt -> text.add(wkt.toStringUtf8()), null);
+        GeometryTextWriter.writeGeoJson(new SimpleGeometryCursor(polygon), GeometryTextWriter.SHORTEST, geoJson -> text.add(geoJson.toStringUtf8()), null);
+        assertEquals(OperatorExportToWkt.local().execute(0, polygon, null), text.get(0));
+        assertEquals(OperatorExportToGeoJson.local().execute(GeoJsonExportFlags.geoJsonExportSkipCRS, null, polygon), text.get(1));
+    }
+
+    @Test
+    public void testJsonFeatureCollections() {
+        GeometryOperatorsGrpc.GeometryOperatorsBlockingStub stub = GeometryOperatorsGrpc.newBlockingStub(inProcessChannel);
+        StringBuilder featureSet = new StringBuilder("{\"geometryType\":\"esriGeometryPoint\",\"spatialReference\":{\"wkid\":4326},\"features\":[");
+        for (int i = 0; i < 1000; i++) {
+            featureSet.append(i == 0 ? "" : ",")
+                    .append("{\"attributes\":{\"id\":").append(i).append(",\"tags\":[\"a\",{\"b\":1}]},")
+                    .append("\"geometry\":{\"x\":").append(i).append(",\"y\":").append(-i).append("}}");
+        }
+        featureSet.append("]}");
+
+        // every element of the bag is read, a lone geometry and then a feature set
+        OperatorRequest esriJson = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.esrijson)
+                        .addEsriJson("{\"spatialReference\":{\"wkid\":4326},\"paths\":[[[0,0],[1,1]]]}")
+                        .addEsriJson(featureSet.toString()))
+                .setOperatorType(ServiceOperatorType.ExportToWkt)
+                .build();
+        GeometryBagData wktBag = stub.executeOperation(esriJson).getGeometryBag();
+        assertEquals(1001, wktBag.getWktCount());
+        assertEquals("MULTILINESTRING ((0 0, 1 1))", wktBag.getWkt(0));
+        assertEquals("POINT (999 -999)", wktBag.getWkt(1000));
+
+        // features without a geometry are skipped
+        String featureCollection = "{\"type\":\"FeatureCollection\",\"features\":[" +
+                "{\"type\":\"Feature\",\"properties\":{},\"geometry\":{\"type\":\"Point\",\"coordinates\":[1,2]}}," +
+                "{\"type\":\"Feature\",\"properties\":{},\"geometry\":null}," +
+                "{\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[0,0],[2,2]]},\"type\":\"Feature\"}]}";
+        OperatorRequest geoJson = OperatorRequest.newBuilder()
+                .setLeftGeometryBag(GeometryBagData.newBuilder()
+                        .setGeometryEncodingType(GeometryEncodingType.geojson)
+                        .addGeojson(featureCollection)
+                        .addGeojson("[{\"type\":\"Point\",\"coordinates\":[3,4]}]"))
+                .setOperatorType(ServiceOperatorType.ExportToWkt)
+                .build();
+        wktBag = stub.executeOperation(geoJson).getGeometryBag();
+        assertEquals(Arrays.asList("POINT (1 2)", "MULTILINESTRING ((0 0, 2 2))", "POINT (3 4)"), wktBag.getWktList());
+
+        boolean rejected = false;
+        try {
+            stub.executeOperation(esriJson.toBuilder()
+                    .setLeftGeometryBag(GeometryBagData.newBuilder()
+                            .setGeometryEncodingType(GeometryEncodingType.esrijson)
+                            .addEsriJson("{\"x\":1,\"y\":2}")
+                            .addEsriJson("{\"features\":[{\"geometry\":{\"x\":1,"))
+                    .build());
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
 }